@@ -0,0 +1,73 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of aligning a batch:  marshalling the bases, native mapping, and decoding the results.
+ * Compare alignSeqs (a List of Lists of MiniMap2Alignment) with alignSeqsInto (the reusable view) to see
+ * what decoding costs, and vary nThreads to see how the native work scales.
+ * Scores are per batch, so divide by batchSize for the per-read cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class AlignSeqsBenchmark {
+    /** short reads get the SR preset, and long reads MAP_ONT */
+    @Param({ "150", "10000" })
+    public int readLength;
+
+    @Param({ "1", "100", "1000" })
+    public int batchSize;
+
+    @Param({ "1", "4" })
+    public int nThreads;
+
+    private MiniMap2Index index;
+    private MiniMap2Aligner aligner;
+    private List<byte[]> reads;
+    private final MiniMap2Alignments results = new MiniMap2Alignments();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final MiniMap2Aligner.Preset preset = readLength < 1000 ? MiniMap2Aligner.Preset.SR : MiniMap2Aligner.Preset.MAP_ONT;
+        final SyntheticReference reference = new SyntheticReference(8, 1000000);
+        index = reference.buildIndex(preset);
+        aligner = new MiniMap2Aligner(index, preset);
+        aligner.setNumThreads(nThreads);
+        reads = reference.sampleReads(batchSize, readLength, 17L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        aligner.close();
+        index.close();
+    }
+
+    @Benchmark
+    public List<List<MiniMap2Alignment>> alignSeqs() {
+        return aligner.alignSeqs(reads);
+    }
+
+    @Benchmark
+    public MiniMap2Alignments alignSeqsInto() {
+        return aligner.alignSeqsInto(reads, results);
+    }
+}
@@ -0,0 +1,75 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding alone:  the native results of aligning 1000 reads are captured once, and then decoded over and over,
+ * either into MiniMap2Alignment objects or into a reusable MiniMap2Alignments view.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class DecodeBenchmark {
+    private static final int N_READS = 1000;
+
+    @Param({ "150", "10000" })
+    public int readLength;
+
+    /** 0 for compact records, or 15 for all the MiniMap2Alignment.EXTRA_* fields */
+    @Param({ "0", "15" })
+    public int extraFields;
+
+    private ByteBuffer alignBuffer;
+    private final MiniMap2Alignments view = new MiniMap2Alignments();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final MiniMap2Aligner.Preset preset = readLength < 1000 ? MiniMap2Aligner.Preset.SR : MiniMap2Aligner.Preset.MAP_ONT;
+        final SyntheticReference reference = new SyntheticReference(8, 1000000);
+        try ( final MiniMap2Index index = reference.buildIndex(preset);
+              final MiniMap2Aligner aligner = new MiniMap2Aligner(index, preset);
+              final MiniMap2SeqBuffer seqs = new MiniMap2SeqBuffer() ) {
+            aligner.setExtraFields(extraFields);
+            seqs.start();
+            for ( final byte[] read : reference.sampleReads(N_READS, readLength, 29L) ) {
+                seqs.beginSeq();
+                seqs.put(read);
+                seqs.endSeq();
+            }
+            // the aligner's result arena is freed when it's closed, so keep a copy in a direct buffer of our own
+            final ByteBuffer nativeResults = aligner.align(seqs);
+            alignBuffer = ByteBuffer.allocateDirect(nativeResults.capacity()).order(ByteOrder.nativeOrder());
+            alignBuffer.put(nativeResults);
+        }
+    }
+
+    @Benchmark
+    public List<List<MiniMap2Alignment>> decodeToObjects() {
+        return MiniMap2Aligner.decodeAlignments(alignBuffer, N_READS, extraFields);
+    }
+
+    @Benchmark
+    public MiniMap2Alignments decodeToView() {
+        view.load(alignBuffer, N_READS, extraFields);
+        return view;
+    }
+}
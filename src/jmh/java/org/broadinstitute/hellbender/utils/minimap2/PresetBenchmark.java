@@ -0,0 +1,57 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of aligning the same 1000 reads of 1000 bases under each preset, on a single thread.
+ * The index is built with the preset's own k and w, as the minimap2 command-line tool would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class PresetBenchmark {
+    @Param({ "SR", "MAP_ONT", "MAP_PB", "ASM5", "ASM20", "SPLICE" })
+    public MiniMap2Aligner.Preset preset;
+
+    private MiniMap2Index index;
+    private MiniMap2Aligner aligner;
+    private List<byte[]> reads;
+    private final MiniMap2Alignments results = new MiniMap2Alignments();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final SyntheticReference reference = new SyntheticReference(8, 1000000);
+        index = reference.buildIndex(preset);
+        aligner = new MiniMap2Aligner(index, preset);
+        reads = reference.sampleReads(1000, 1000, 23L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        aligner.close();
+        index.close();
+    }
+
+    @Benchmark
+    public MiniMap2Alignments align() {
+        return aligner.alignSeqsInto(reads, results);
+    }
+}
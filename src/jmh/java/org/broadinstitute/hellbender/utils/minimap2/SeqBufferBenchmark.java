@@ -0,0 +1,82 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marshalling alone:  copying a batch of reads into the native sequence buffer, from byte[]'s and from ByteBuffers.
+ * The buffer is reused, as an aligner reuses it, so after the first invocation nothing is allocated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class SeqBufferBenchmark {
+    @Param({ "150", "10000" })
+    public int readLength;
+
+    @Param({ "100", "1000" })
+    public int batchSize;
+
+    private List<byte[]> reads;
+    private List<ByteBuffer> readBuffers;
+    private MiniMap2SeqBuffer seqBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        reads = new SyntheticReference(1, Math.max(100000, 4 * readLength)).sampleReads(batchSize, readLength, 31L);
+        readBuffers = new ArrayList<>(batchSize);
+        for ( final byte[] read : reads ) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(read.length);
+            buffer.put(read).flip();
+            readBuffers.add(buffer);
+        }
+        MiniMap2Index.loadNativeLibrary(); // there's no index to load it for us
+        seqBuffer = new MiniMap2SeqBuffer();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        seqBuffer.close();
+    }
+
+    @Benchmark
+    public ByteBuffer fromByteArrays() {
+        seqBuffer.start();
+        for ( final byte[] read : reads ) {
+            seqBuffer.beginSeq();
+            seqBuffer.put(read);
+            seqBuffer.endSeq();
+        }
+        return seqBuffer.finish();
+    }
+
+    @Benchmark
+    public ByteBuffer fromByteBuffers() {
+        seqBuffer.start();
+        for ( final ByteBuffer read : readBuffers ) {
+            seqBuffer.beginSeq();
+            seqBuffer.put(read);
+            seqBuffer.endSeq();
+        }
+        return seqBuffer.finish();
+    }
+}
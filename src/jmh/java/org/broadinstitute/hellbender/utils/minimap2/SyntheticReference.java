@@ -0,0 +1,86 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A reproducible, locally generated reference and reads sampled from it, so that the benchmarks can run offline.
+ * Everything is derived from fixed seeds:  the same arguments always produce the same bases.
+ * The contigs are uniformly random (so repeats are rare), and each read is a substring of a contig,
+ * from either strand, with a sprinkling of substitutions and small indels.
+ */
+final class SyntheticReference {
+    private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+    private static final long REF_SEED = 0x5EED5EEDL;
+
+    private final List<String> contigNames = new ArrayList<>();
+    private final List<byte[]> contigSeqs = new ArrayList<>();
+
+    SyntheticReference( final int nContigs, final int contigLength ) {
+        final Random random = new Random(REF_SEED);
+        for ( int contigIdx = 0; contigIdx != nContigs; ++contigIdx ) {
+            contigNames.add("contig" + contigIdx);
+            final byte[] seq = new byte[contigLength];
+            for ( int idx = 0; idx != contigLength; ++idx ) {
+                seq[idx] = BASES[random.nextInt(4)];
+            }
+            contigSeqs.add(seq);
+        }
+    }
+
+    /** builds an index of the reference (in memory:  nothing is written to disk) */
+    MiniMap2Index buildIndex( final MiniMap2Aligner.Preset preset ) {
+        return MiniMap2Index.buildFromContigs(contigNames, contigSeqs, preset);
+    }
+
+    /**
+     * Samples nReads reads of readLength bases.  About 1 base in 100 is substituted, and about
+     * 1 in 1000 starts a short indel.  The seed determines the reads completely.
+     */
+    List<byte[]> sampleReads( final int nReads, final int readLength, final long seed ) {
+        final Random random = new Random(seed);
+        final List<byte[]> reads = new ArrayList<>(nReads);
+        final byte[] buf = new byte[2 * readLength];
+        while ( reads.size() != nReads ) {
+            final byte[] contig = contigSeqs.get(random.nextInt(contigSeqs.size()));
+            if ( contig.length < 2 * readLength ) {
+                throw new IllegalStateException("Contigs are too short for reads of length " + readLength);
+            }
+            int refIdx = random.nextInt(contig.length - 2 * readLength);
+            int len = 0;
+            while ( len != readLength ) {
+                final int roll = random.nextInt(1000);
+                if ( roll < 10 ) {
+                    buf[len++] = BASES[random.nextInt(4)]; // substitution
+                    refIdx += 1;
+                } else if ( roll == 10 ) {
+                    refIdx += 1 + random.nextInt(3); // deletion
+                } else if ( roll == 11 ) {
+                    buf[len++] = BASES[random.nextInt(4)]; // insertion
+                } else {
+                    buf[len++] = contig[refIdx++];
+                }
+            }
+            final byte[] read = new byte[readLength];
+            if ( random.nextBoolean() ) {
+                System.arraycopy(buf, 0, read, 0, readLength);
+            } else {
+                for ( int idx = 0; idx != readLength; ++idx ) {
+                    read[idx] = complement(buf[readLength - 1 - idx]);
+                }
+            }
+            reads.add(read);
+        }
+        return reads;
+    }
+
+    private static byte complement( final byte base ) {
+        switch ( base ) {
+            case 'A': return 'T';
+            case 'C': return 'G';
+            case 'G': return 'C';
+            default: return 'A';
+        }
+    }
+}
@@ -0,0 +1,26 @@
+#ifndef MM2_MIRRORS_H
+#define MM2_MIRRORS_H
+
+/*
+ * Copies of structures that are private to minimap2's index.c, which the mappable index layout needs to read and
+ * write.  They must match the minimap2 version pinned in the Makefile:  mm2_mirrors_check.c, which the Makefile
+ * compiles before it builds the library, fails to compile if they don't.
+ */
+#include <stdint.h>
+#include "minimap2/minimap.h"
+
+typedef struct {                // mirrors mm_idx_bucket_t in minimap2's index.c
+    mm128_v a;
+    int32_t n;
+    uint64_t* p;
+    void* h;
+} IdxBucket;
+
+typedef struct {                // mirrors khash_t(idx) in minimap2's index.c
+    uint32_t n_buckets, size, n_occupied, upper_bound;
+    uint32_t* flags;
+    uint64_t* keys;
+    uint64_t* vals;
+} IdxHash;
+
+#endif
@@ -0,0 +1,27 @@
+/*
+ * Compiled, but never linked, when the library is built:  it fails to compile if the structures mirrored in
+ * mm2_mirrors.h no longer match minimap2's own, e.g., because the pinned minimap2 version has changed.
+ */
+#include <stddef.h>
+#include "minimap2/index.c"
+#include "mm2_mirrors.h"
+
+#define SAME_FIELD(MIRROR, ORIGINAL, FIELD) \
+    _Static_assert(offsetof(MIRROR, FIELD) == offsetof(ORIGINAL, FIELD) && \
+                   sizeof(((MIRROR*)0)->FIELD) == sizeof(((ORIGINAL*)0)->FIELD), \
+                   #MIRROR "." #FIELD " doesn't match minimap2's " #ORIGINAL)
+
+_Static_assert(sizeof(IdxBucket) == sizeof(struct mm_idx_bucket_s), "IdxBucket doesn't match minimap2's bucket");
+SAME_FIELD(IdxBucket, struct mm_idx_bucket_s, a);
+SAME_FIELD(IdxBucket, struct mm_idx_bucket_s, n);
+SAME_FIELD(IdxBucket, struct mm_idx_bucket_s, p);
+SAME_FIELD(IdxBucket, struct mm_idx_bucket_s, h);
+
+_Static_assert(sizeof(IdxHash) == sizeof(khash_t(idx)), "IdxHash doesn't match minimap2's hash table");
+SAME_FIELD(IdxHash, khash_t(idx), n_buckets);
+SAME_FIELD(IdxHash, khash_t(idx), size);
+SAME_FIELD(IdxHash, khash_t(idx), n_occupied);
+SAME_FIELD(IdxHash, khash_t(idx), upper_bound);
+SAME_FIELD(IdxHash, khash_t(idx), flags);
+SAME_FIELD(IdxHash, khash_t(idx), keys);
+SAME_FIELD(IdxHash, khash_t(idx), vals);
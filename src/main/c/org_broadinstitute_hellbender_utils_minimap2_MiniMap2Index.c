@@ -1,19 +1,36 @@
 #include <jni.h>
 #include <fcntl.h>
+#include <math.h>
+#include <stdio.h>
 #include <string.h>
 #include <stdlib.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
 #include "version.h"
 #include "minimap2/minimap.h"
+#include "minimap2/kthread.h"
+#include "mm2_mirrors.h"
 
 /*
  * Implementation of native routines declared in MiniMap2Index.java.
-    static native ByteBuffer createOptions( String preset );
+    static native ByteBuffer createOptions( long addr, String preset );
     static native ByteBuffer createSeqBuffer( int length );
     static native void destroyByteBuffer( ByteBuffer buffer );
+    static native ByteBuffer growByteBuffer( ByteBuffer buffer, int length );
+    static native long createAlignerContext();
+    static native void destroyAlignerContext( long ctxAddr );
+    static native ByteBuffer getAlignerStats( long ctxAddr );
 
     private static native long openIndex( String mmiFile );
-    private static native void destroyIndex( long indexAddress );
-    private static native ByteBuffer align( long addr, ByteBuffer seqs, ByteBuffer opts );
+    private static native long buildIndex( String fastaFile, String preset, int k, int w, long batchSize, int nThreads,
+                                           String mmiFile );
+    private static native long buildIndexFromContigs( String[] names, byte[][] seqs, String preset, int k, int w, String mmiFile );
+    private static native void destroyIndex( long addr );
+    private static native void writeMappableIndex( long addr, String fileName );
+    private static native ByteBuffer createAlignments( long addr, long ctxAddr, ByteBuffer opts, ByteBuffer seqs, int[] segCounts,
+                                                       int extraFields, int nThreads );
     private static native ByteBuffer getRefNames( long addr );
 
     private static native String getVersion();
@@ -31,6 +48,334 @@ static void throwErrorMessage( JNIEnv* env, char* message ) {
     if ( exceptionClass ) (*env)->ThrowNew(env, exceptionClass, message);
 }
 
+// what an index address points to:  all the parts of a minimap2 index, and how they were loaded
+typedef struct {
+    int nParts;
+    mm_idx_t** ppParts;         // a (multi-part) index has a separate mm_idx_t for each part
+    uint32_t* pRidOffsets;      // the global refId of the first contig of each part (nParts+1 entries)
+    void* pMap;                 // the mmap'd file that backs the parts, or 0 if they were read into malloc'd memory
+    size_t mapLen;
+} IndexHandle;
+
+// adds a part to an index, and returns 0 if there's no memory for it
+static int addPart( IndexHandle* pHandle, mm_idx_t* pIdx ) {
+    mm_idx_t** ppParts = realloc(pHandle->ppParts, (pHandle->nParts + 1) * sizeof(mm_idx_t*));
+    if ( ppParts ) pHandle->ppParts = ppParts;
+    uint32_t* pRidOffsets = realloc(pHandle->pRidOffsets, (pHandle->nParts + 2) * sizeof(uint32_t));
+    if ( pRidOffsets ) pHandle->pRidOffsets = pRidOffsets;
+    if ( !ppParts || !pRidOffsets ) return 0;
+    uint32_t firstRid = pHandle->nParts ? pRidOffsets[pHandle->nParts] : 0;
+    pRidOffsets[pHandle->nParts] = firstRid;
+    pRidOffsets[pHandle->nParts + 1] = firstRid + pIdx->n_seq;
+    ppParts[pHandle->nParts++] = pIdx;
+    return 1;
+}
+
+/*
+ * The mappable index layout.
+ * An ordinary .mmi file serializes each bucket's hash table as a list of key/value pairs, so it has to be
+ * re-hashed into malloc'd memory as it's read.  This layout instead holds minimap2's in-memory arrays verbatim
+ * (8-byte aligned), so an index can be used directly from mmap'd pages shared through the OS page cache.
+ * Only the small per-sequence and per-bucket descriptors are allocated when it's opened.
+ * It's written by writeMappableIndex from a loaded index.  A multi-part index is written as one image per part,
+ * one after the other.  All offsets are from the start of the part's image.
+ *
+ * The bucket and hash table structures are private to minimap2's index.c, so they're mirrored in mm2_mirrors.h.
+ * Building the library checks that they match the minimap2 version pinned in the Makefile (see mm2_mirrors_check.c).
+ */
+#define MAPPABLE_MAGIC "MM2JMAP1"
+
+#define HASH_FLAGS_WORDS(nBuckets) ((nBuckets) < 16 ? 1 : (nBuckets) >> 4)
+
+typedef struct {
+    char magic[8];
+    int32_t b, w, k, flag;
+    uint32_t nSeqs;
+    int32_t index;
+    uint64_t nSWords;           // number of 32-bit words of 4-bit packed reference sequence
+    uint64_t seqsOff, namesOff, sOff, bucketsOff;
+    uint64_t partLen;           // the length of this part's image
+} MappableHeader;
+
+typedef struct {
+    uint64_t nameOff;
+    uint64_t offset;
+    uint32_t len;
+    uint32_t pad;
+} MappableSeq;
+
+typedef struct {
+    int32_t n;
+    uint32_t hasHash;
+    uint64_t pOff;
+    uint32_t nBuckets, size, nOccupied, upperBound;
+    uint64_t flagsOff, keysOff, valsOff;
+} MappableBucket;
+
+static uint64_t align8( uint64_t off ) { return (off + 7) & ~(uint64_t)7; }
+
+static uint64_t nSWords( const mm_idx_t* pIdx ) {
+    if ( !pIdx->S || !pIdx->n_seq ) return 0;
+    const mm_idx_seq_t* pLast = pIdx->seq + pIdx->n_seq - 1;
+    return (pLast->offset + pLast->len + 7) / 8;
+}
+
+// writes len bytes, followed by padding to the next 8-byte boundary
+static int writePadded( FILE* fp, const void* pData, uint64_t len ) {
+    static const char zeros[8] = { 0 };
+    if ( len && fwrite(pData, 1, len, fp) != len ) return 0;
+    uint64_t pad = align8(len) - len;
+    return !pad || fwrite(zeros, 1, pad, fp) == pad;
+}
+
+static int writeMappable( const mm_idx_t* pIdx, FILE* fp ) {
+    uint32_t nBuckets = 1U << pIdx->b;
+    const IdxBucket* pBuckets = (const IdxBucket*)pIdx->B;
+    MappableHeader hdr;
+    memset(&hdr, 0, sizeof(hdr));
+    memcpy(hdr.magic, MAPPABLE_MAGIC, sizeof(hdr.magic));
+    hdr.b = pIdx->b; hdr.w = pIdx->w; hdr.k = pIdx->k; hdr.flag = pIdx->flag;
+    hdr.nSeqs = pIdx->n_seq;
+    hdr.index = pIdx->index;
+    hdr.nSWords = nSWords(pIdx);
+
+    // lay out the file
+    uint64_t off = align8(sizeof(MappableHeader));
+    hdr.seqsOff = off;
+    off += align8((uint64_t)hdr.nSeqs * sizeof(MappableSeq));
+    hdr.namesOff = off;
+    MappableSeq* pMSeqs = calloc(hdr.nSeqs + 1, sizeof(MappableSeq));
+    if ( !pMSeqs ) return 0;
+    uint64_t namesLen = 0;
+    uint32_t seqId;
+    for ( seqId = 0; seqId != hdr.nSeqs; ++seqId ) {
+        const char* name = pIdx->seq[seqId].name;
+        pMSeqs[seqId].nameOff = hdr.namesOff + namesLen;
+        pMSeqs[seqId].offset = pIdx->seq[seqId].offset;
+        pMSeqs[seqId].len = pIdx->seq[seqId].len;
+        namesLen += (name ? strlen(name) : 0) + 1;
+    }
+    off += align8(namesLen);
+    hdr.sOff = off;
+    off += align8(hdr.nSWords * sizeof(uint32_t));
+    hdr.bucketsOff = off;
+    off += align8((uint64_t)nBuckets * sizeof(MappableBucket));
+    MappableBucket* pMBuckets = calloc(nBuckets, sizeof(MappableBucket));
+    if ( !pMBuckets ) {
+        free(pMSeqs);
+        return 0;
+    }
+    uint32_t bucketId;
+    for ( bucketId = 0; bucketId != nBuckets; ++bucketId ) {
+        const IdxBucket* pBucket = pBuckets + bucketId;
+        MappableBucket* pMBucket = pMBuckets + bucketId;
+        pMBucket->n = pBucket->n;
+        pMBucket->pOff = off;
+        off += align8((uint64_t)pBucket->n * sizeof(uint64_t));
+        const IdxHash* pHash = pBucket->h;
+        if ( pHash ) {
+            pMBucket->hasHash = 1;
+            pMBucket->nBuckets = pHash->n_buckets;
+            pMBucket->size = pHash->size;
+            pMBucket->nOccupied = pHash->n_occupied;
+            pMBucket->upperBound = pHash->upper_bound;
+            pMBucket->flagsOff = off;
+            off += align8((uint64_t)HASH_FLAGS_WORDS(pHash->n_buckets) * sizeof(uint32_t));
+            pMBucket->keysOff = off;
+            off += align8((uint64_t)pHash->n_buckets * sizeof(uint64_t));
+            pMBucket->valsOff = off;
+            off += align8((uint64_t)pHash->n_buckets * sizeof(uint64_t));
+        }
+    }
+    hdr.partLen = off;
+
+    // write it
+    int ok = writePadded(fp, &hdr, sizeof(hdr)) &&
+             writePadded(fp, pMSeqs, (uint64_t)hdr.nSeqs * sizeof(MappableSeq));
+    for ( seqId = 0; ok && seqId != hdr.nSeqs; ++seqId ) {
+        const char* name = pIdx->seq[seqId].name ? pIdx->seq[seqId].name : "";
+        size_t len = strlen(name) + 1;
+        ok = fwrite(name, 1, len, fp) == len;
+    }
+    if ( ok && namesLen != align8(namesLen) ) {
+        static const char zeros[8] = { 0 };
+        ok = fwrite(zeros, 1, align8(namesLen) - namesLen, fp) == align8(namesLen) - namesLen;
+    }
+    if ( ok ) ok = writePadded(fp, pIdx->S, hdr.nSWords * sizeof(uint32_t));
+    if ( ok ) ok = writePadded(fp, pMBuckets, (uint64_t)nBuckets * sizeof(MappableBucket));
+    for ( bucketId = 0; ok && bucketId != nBuckets; ++bucketId ) {
+        const IdxBucket* pBucket = pBuckets + bucketId;
+        const IdxHash* pHash = pBucket->h;
+        ok = writePadded(fp, pBucket->p, (uint64_t)pBucket->n * sizeof(uint64_t));
+        if ( ok && pHash ) {
+            ok = writePadded(fp, pHash->flags, (uint64_t)HASH_FLAGS_WORDS(pHash->n_buckets) * sizeof(uint32_t)) &&
+                 writePadded(fp, pHash->keys, (uint64_t)pHash->n_buckets * sizeof(uint64_t)) &&
+                 writePadded(fp, pHash->vals, (uint64_t)pHash->n_buckets * sizeof(uint64_t));
+        }
+    }
+    free(pMSeqs);
+    free(pMBuckets);
+    return ok;
+}
+
+static void destroyIndexHandle( IndexHandle* pHandle );
+static void destroyMappedPart( mm_idx_t* pIdx );
+
+// whether an array of len bytes at off lies within a part's image of partLen bytes, and is 8-byte aligned
+static int inPart( uint64_t off, uint64_t len, uint64_t partLen ) {
+    return !(off & 7) && off <= partLen && len <= partLen - off;
+}
+
+// checks a bucket's descriptor, so that nothing it points to lies outside the part's image
+static int goodBucket( const MappableBucket* pMBucket, uint64_t partLen ) {
+    if ( pMBucket->n < 0 || !inPart(pMBucket->pOff, (uint64_t)pMBucket->n * sizeof(uint64_t), partLen) ) return 0;
+    if ( !pMBucket->hasHash ) return 1;
+    uint32_t nBuckets = pMBucket->nBuckets;
+    return !(nBuckets & (nBuckets - 1)) && pMBucket->size <= nBuckets && // khash wants a power of 2 (or 0)
+           inPart(pMBucket->flagsOff, (uint64_t)HASH_FLAGS_WORDS(nBuckets) * sizeof(uint32_t), partLen) &&
+           inPart(pMBucket->keysOff, (uint64_t)nBuckets * sizeof(uint64_t), partLen) &&
+           inPart(pMBucket->valsOff, (uint64_t)nBuckets * sizeof(uint64_t), partLen);
+}
+
+// builds a part whose big arrays live in an mmap'd image in the mappable layout, or returns 0 if the image is bad
+// (e.g., truncated or corrupt):  every offset in it is checked against the part's length before it's used
+static mm_idx_t* mapPart( char* pImage, size_t maxLen ) {
+    const MappableHeader* pHdr = (const MappableHeader*)pImage;
+    if ( maxLen < sizeof(MappableHeader) || memcmp(pHdr->magic, MAPPABLE_MAGIC, sizeof(pHdr->magic)) ) return 0;
+    uint64_t partLen = pHdr->partLen;
+    if ( partLen < align8(sizeof(MappableHeader)) || (partLen & 7) || partLen > maxLen ) return 0;
+    if ( pHdr->b < 0 || pHdr->b > 31 ) return 0;
+    uint32_t nBuckets = 1U << pHdr->b;
+    if ( !inPart(pHdr->seqsOff, (uint64_t)pHdr->nSeqs * sizeof(MappableSeq), partLen) ||
+            !inPart(pHdr->sOff, pHdr->nSWords * sizeof(uint32_t), partLen) ||
+            !inPart(pHdr->bucketsOff, (uint64_t)nBuckets * sizeof(MappableBucket), partLen) ) {
+        return 0;
+    }
+    mm_idx_t* pIdx = calloc(1, sizeof(mm_idx_t));
+    if ( !pIdx ) return 0;
+    pIdx->b = pHdr->b; pIdx->w = pHdr->w; pIdx->k = pHdr->k; pIdx->flag = pHdr->flag;
+    pIdx->n_seq = pHdr->nSeqs;
+    pIdx->index = pHdr->index;
+    pIdx->S = pHdr->nSWords ? (uint32_t*)(pImage + pHdr->sOff) : 0;
+    pIdx->seq = calloc(pHdr->nSeqs + 1, sizeof(mm_idx_seq_t));
+    IdxBucket* pBuckets = calloc(nBuckets, sizeof(IdxBucket));
+    pIdx->B = (struct mm_idx_bucket_s*)pBuckets;
+    if ( !pIdx->seq || !pBuckets ) {
+        destroyMappedPart(pIdx);
+        return 0;
+    }
+    const MappableSeq* pMSeqs = (const MappableSeq*)(pImage + pHdr->seqsOff);
+    uint32_t seqId;
+    for ( seqId = 0; seqId != pHdr->nSeqs; ++seqId ) {
+        // the name must be terminated within the part, and the bases must lie within the packed sequence
+        uint64_t nameOff = pMSeqs[seqId].nameOff;
+        if ( nameOff >= partLen || !memchr(pImage + nameOff, 0, partLen - nameOff) ||
+                (pHdr->nSWords && pMSeqs[seqId].offset + pMSeqs[seqId].len > pHdr->nSWords * 8) ) {
+            destroyMappedPart(pIdx);
+            return 0;
+        }
+        pIdx->seq[seqId].name = pImage + nameOff;
+        pIdx->seq[seqId].offset = pMSeqs[seqId].offset;
+        pIdx->seq[seqId].len = pMSeqs[seqId].len;
+    }
+    const MappableBucket* pMBuckets = (const MappableBucket*)(pImage + pHdr->bucketsOff);
+    uint32_t bucketId;
+    for ( bucketId = 0; bucketId != nBuckets; ++bucketId ) {
+        const MappableBucket* pMBucket = pMBuckets + bucketId;
+        IdxBucket* pBucket = pBuckets + bucketId;
+        if ( !goodBucket(pMBucket, partLen) ) {
+            destroyMappedPart(pIdx);
+            return 0;
+        }
+        pBucket->n = pMBucket->n;
+        pBucket->p = (uint64_t*)(pImage + pMBucket->pOff);
+        if ( pMBucket->hasHash ) {
+            IdxHash* pHash = malloc(sizeof(IdxHash));
+            if ( !pHash ) {
+                destroyMappedPart(pIdx);
+                return 0;
+            }
+            pHash->n_buckets = pMBucket->nBuckets;
+            pHash->size = pMBucket->size;
+            pHash->n_occupied = pMBucket->nOccupied;
+            pHash->upper_bound = pMBucket->upperBound;
+            pHash->flags = (uint32_t*)(pImage + pMBucket->flagsOff);
+            pHash->keys = (uint64_t*)(pImage + pMBucket->keysOff);
+            pHash->vals = (uint64_t*)(pImage + pMBucket->valsOff);
+            pBucket->h = pHash;
+        }
+    }
+    return pIdx;
+}
+
+// maps a file in the mappable layout
+static IndexHandle* openMappable( const char* fileName ) {
+    int fd = open(fileName, O_RDONLY);
+    if ( fd < 0 ) return 0;
+    struct stat st;
+    if ( fstat(fd, &st) || st.st_size < (off_t)sizeof(MappableHeader) ) {
+        close(fd);
+        return 0;
+    }
+    size_t mapLen = st.st_size;
+    char* pMap = mmap(0, mapLen, PROT_READ, MAP_SHARED, fd, 0);
+    close(fd);
+    if ( pMap == MAP_FAILED ) return 0;
+    IndexHandle* pHandle = calloc(1, sizeof(IndexHandle));
+    if ( !pHandle ) {
+        munmap(pMap, mapLen);
+        return 0;
+    }
+    pHandle->pMap = pMap;
+    pHandle->mapLen = mapLen;
+    size_t off = 0;
+    while ( off < mapLen ) {
+        mm_idx_t* pIdx = mapPart(pMap + off, mapLen - off);
+        if ( !pIdx || !addPart(pHandle, pIdx) ) {
+            if ( pIdx ) destroyMappedPart(pIdx);
+            destroyIndexHandle(pHandle);
+            return 0;
+        }
+        off += ((const MappableHeader*)(pMap + off))->partLen; // at least a header's worth:  mapPart checked
+    }
+    return pHandle;
+}
+
+// frees the descriptors of a mapped part:  the arrays they point to belong to the mapping
+static void destroyMappedPart( mm_idx_t* pIdx ) {
+    if ( pIdx->B ) {
+        IdxBucket* pBuckets = (IdxBucket*)pIdx->B;
+        uint32_t nBuckets = 1U << pIdx->b;
+        uint32_t bucketId;
+        for ( bucketId = 0; bucketId != nBuckets; ++bucketId ) free(pBuckets[bucketId].h);
+        free(pBuckets);
+    }
+    free(pIdx->seq);
+    free(pIdx);
+}
+
+static void destroyIndexHandle( IndexHandle* pHandle ) {
+    int partId;
+    for ( partId = 0; partId != pHandle->nParts; ++partId ) {
+        if ( pHandle->pMap ) destroyMappedPart(pHandle->ppParts[partId]);
+        else mm_idx_destroy(pHandle->ppParts[partId]);
+    }
+    if ( pHandle->pMap ) munmap(pHandle->pMap, pHandle->mapLen);
+    free(pHandle->ppParts);
+    free(pHandle->pRidOffsets);
+    free(pHandle);
+}
+
+// whether a file starts with the mappable layout's magic
+static int isMappable( const char* fileName ) {
+    char magic[8];
+    FILE* fp = fopen(fileName, "rb");
+    if ( !fp ) return 0;
+    int result = fread(magic, 1, sizeof(magic), fp) == sizeof(magic) && !memcmp(magic, MAPPABLE_MAGIC, sizeof(magic));
+    fclose(fp);
+    return result;
+}
+
 JNIEXPORT jobject JNICALL
 Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_createOptions( JNIEnv* env, jclass cls, jlong idxAddr, jstring preset ) {
     mm_idxopt_t idxOpts;
@@ -46,7 +391,16 @@ Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_createOptions( J
         free(presetChars);
     }
     pMapOpts->flag |= MM_F_CIGAR;
-    mm_mapopt_update(pMapOpts, (mm_idx_t*)idxAddr);
+    // the threshold for ignoring repetitive minimizers is computed from each part's statistics:  we use the largest
+    IndexHandle* pHandle = (IndexHandle*)idxAddr;
+    mm_mapopt_t presetOpts = *pMapOpts;
+    int partId;
+    for ( partId = 0; partId != pHandle->nParts; ++partId ) {
+        mm_mapopt_t partOpts = presetOpts;
+        mm_mapopt_update(&partOpts, pHandle->ppParts[partId]);
+        if ( !partId ) *pMapOpts = partOpts;
+        else if ( partOpts.mid_occ > pMapOpts->mid_occ ) pMapOpts->mid_occ = partOpts.mid_occ;
+    }
     return (*env)->NewDirectByteBuffer(env, pMapOpts, sizeof(mm_mapopt_t));
 }
 
@@ -67,20 +421,189 @@ Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_destroyByteBuffe
     free(buf);
 }
 
+// reallocates the memory behind a ByteBuffer created by createSeqBuffer, preserving its contents
+// the old ByteBuffer must not be used after this call
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_growByteBuffer( JNIEnv* env, jclass cls, jobject byteBuf, jint length ) {
+    void* buf = (*env)->GetDirectBufferAddress(env, byteBuf);
+    if ( !buf ) {
+        throwErrorMessage(env, "C code can't get ByteBuffer address");
+        return 0;
+    }
+    void* newBuf = realloc(buf, length);
+    if ( !newBuf ) {
+        throwErrorMessage(env, "C code can't reallocate memory for ByteBuffer");
+        return 0;
+    }
+    jobject result = (*env)->NewDirectByteBuffer(env, newBuf, length);
+    if ( !result ) {
+        free(newBuf);
+        throwErrorMessage(env, "C code can't create ByteBuffer");
+    }
+    return result;
+}
+
+// reads every part of a (possibly multi-part) index, or indexes every batch of a FASTA, and closes the reader
+// nThreads is only used when indexing a FASTA
+static IndexHandle* readAllParts( JNIEnv* env, mm_idx_reader_t* pIdxReader, int nThreads ) {
+    IndexHandle* pHandle = calloc(1, sizeof(IndexHandle));
+    if ( !pHandle ) {
+        mm_idx_reader_close(pIdxReader);
+        throwErrorMessage(env, "C code can't allocate memory for index handle");
+        return 0;
+    }
+    mm_idx_t* pIdx;
+    while ( (pIdx = mm_idx_reader_read(pIdxReader, nThreads)) ) {
+        if ( !addPart(pHandle, pIdx) ) {
+            mm_idx_destroy(pIdx);
+            mm_idx_reader_close(pIdxReader);
+            destroyIndexHandle(pHandle);
+            throwErrorMessage(env, "C code can't allocate memory for index handle");
+            return 0;
+        }
+    }
+    mm_idx_reader_close(pIdxReader);
+    if ( !pHandle->nParts ) {
+        destroyIndexHandle(pHandle);
+        throwErrorMessage(env, "C code can't read index file");
+        return 0;
+    }
+    return pHandle;
+}
+
+// fills in minimap2's default indexing options as modified by a preset (which may be null), and
+// then overrides k and w unless they're 0.  returns 0 (after throwing) if the preset is unknown.
+static int setIndexOptions( JNIEnv* env, jstring preset, jint k, jint w, mm_idxopt_t* pIdxOpts, mm_mapopt_t* pMapOpts ) {
+    mm_set_opt(0, pIdxOpts, pMapOpts);
+    if ( preset ) {
+        char* presetName = jstringToChars(env, preset);
+        int status = mm_set_opt(presetName, pIdxOpts, pMapOpts);
+        free(presetName);
+        if ( status < 0 ) {
+            throwErrorMessage(env, "C code doesn't recognize the preset");
+            return 0;
+        }
+    }
+    if ( k > 0 ) pIdxOpts->k = k;
+    if ( w > 0 ) pIdxOpts->w = w;
+    return 1;
+}
+
+// opens either an ordinary .mmi file (which is read into memory), or a file in the mappable layout (which is mmap'd)
 JNIEXPORT jlong JNICALL
 Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_openIndex( JNIEnv* env, jclass cls, jstring idxFilename ) {
     mm_verbose = 0;
     char* imageName = jstringToChars(env, idxFilename);
+    if ( isMappable(imageName) ) {
+        IndexHandle* pHandle = openMappable(imageName);
+        free(imageName);
+        if ( !pHandle ) throwErrorMessage(env, "C code can't map index file");
+        return (jlong)pHandle;
+    }
     mm_idx_reader_t* pIdxReader = mm_idx_reader_open(imageName, 0, 0);
     free(imageName);
     if ( !pIdxReader ) {
         throwErrorMessage(env, "C code can't open index file");
         return 0;
     }
-    mm_idx_t* pIdx = mm_idx_reader_read(pIdxReader, 0);
-    if ( !pIdx ) throwErrorMessage(env, "C code can't read index file");
-    mm_idx_reader_close(pIdxReader);
-    return (jlong)pIdx;
+    return (jlong)readAllParts(env, pIdxReader, 0);
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_buildIndex( JNIEnv* env, jclass cls,
+                jstring fastaFilename, jstring preset, jint k, jint w, jlong batchSize, jint nThreads,
+                jstring mmiFilename ) {
+    mm_verbose = 0;
+    mm_idxopt_t idxOpts;
+    mm_mapopt_t mapOpts;
+    if ( !setIndexOptions(env, preset, k, w, &idxOpts, &mapOpts) ) return 0;
+    if ( batchSize > 0 ) idxOpts.batch_size = batchSize;
+    char* fastaName = jstringToChars(env, fastaFilename);
+    char* mmiName = mmiFilename ? jstringToChars(env, mmiFilename) : 0;
+    mm_idx_reader_t* pIdxReader = mm_idx_reader_open(fastaName, &idxOpts, mmiName);
+    free(fastaName);
+    free(mmiName);
+    if ( !pIdxReader ) {
+        throwErrorMessage(env, "C code can't open FASTA file, or can't create index file");
+        return 0;
+    }
+    return (jlong)readAllParts(env, pIdxReader, nThreads < 1 ? 1 : nThreads);
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_buildIndexFromContigs( JNIEnv* env, jclass cls,
+                jobjectArray names, jobjectArray seqs, jstring preset, jint k, jint w, jstring mmiFilename ) {
+    mm_verbose = 0;
+    mm_idxopt_t idxOpts;
+    mm_mapopt_t mapOpts;
+    if ( !setIndexOptions(env, preset, k, w, &idxOpts, &mapOpts) ) return 0;
+    jsize nContigs = (*env)->GetArrayLength(env, seqs);
+    if ( nContigs < 1 || (*env)->GetArrayLength(env, names) != nContigs ) {
+        throwErrorMessage(env, "C code can't build an index without contigs, or with a name missing");
+        return 0;
+    }
+    // mm_idx_str wants null-terminated sequences
+    char** pNames = calloc(nContigs, sizeof(char*));
+    char** pSeqs = calloc(nContigs, sizeof(char*));
+    int ok = pNames && pSeqs;
+    jsize contigId;
+    for ( contigId = 0; ok && contigId != nContigs; ++contigId ) {
+        jstring name = (*env)->GetObjectArrayElement(env, names, contigId);
+        jbyteArray seq = (*env)->GetObjectArrayElement(env, seqs, contigId);
+        if ( !name || !seq ) {
+            ok = 0;
+            break;
+        }
+        jsize seqLen = (*env)->GetArrayLength(env, seq);
+        pNames[contigId] = jstringToChars(env, name);
+        pSeqs[contigId] = malloc(seqLen + 1);
+        if ( !pNames[contigId] || !pSeqs[contigId] ) ok = 0;
+        else {
+            (*env)->GetByteArrayRegion(env, seq, 0, seqLen, (jbyte*)pSeqs[contigId]);
+            pSeqs[contigId][seqLen] = 0;
+        }
+        (*env)->DeleteLocalRef(env, name);
+        (*env)->DeleteLocalRef(env, seq);
+    }
+    mm_idx_t* pIdx = 0;
+    if ( ok ) {
+        pIdx = mm_idx_str(idxOpts.w, idxOpts.k, idxOpts.flag & MM_I_HPC, idxOpts.bucket_bits, nContigs,
+                          (const char**)pSeqs, (const char**)pNames);
+    }
+    for ( contigId = 0; contigId != nContigs; ++contigId ) {
+        if ( pNames ) free(pNames[contigId]);
+        if ( pSeqs ) free(pSeqs[contigId]);
+    }
+    free(pNames);
+    free(pSeqs);
+    if ( !pIdx ) {
+        throwErrorMessage(env, "C code can't build index from contigs");
+        return 0;
+    }
+    if ( mmiFilename ) {
+        char* mmiName = jstringToChars(env, mmiFilename);
+        FILE* fp = fopen(mmiName, "wb");
+        free(mmiName);
+        if ( !fp ) {
+            mm_idx_destroy(pIdx);
+            throwErrorMessage(env, "C code can't create index file");
+            return 0;
+        }
+        mm_idx_dump(fp, pIdx);
+        if ( fclose(fp) ) {
+            mm_idx_destroy(pIdx);
+            throwErrorMessage(env, "C code can't write index file");
+            return 0;
+        }
+    }
+    IndexHandle* pHandle = calloc(1, sizeof(IndexHandle));
+    if ( !pHandle || !addPart(pHandle, pIdx) ) {
+        mm_idx_destroy(pIdx);
+        if ( pHandle ) destroyIndexHandle(pHandle);
+        throwErrorMessage(env, "C code can't allocate memory for index handle");
+        return 0;
+    }
+    return (jlong)pHandle;
 }
 
 JNIEXPORT void JNICALL
@@ -89,153 +612,1369 @@ Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_destroyIndex( JN
         throwErrorMessage(env, "C code can't close null index address");
         return;
     }
-    mm_idx_destroy((mm_idx_t*)idxAddr);
+    destroyIndexHandle((IndexHandle*)idxAddr);
+}
+
+// writes a loaded index in the mappable layout
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_writeMappableIndex( JNIEnv* env, jclass cls, jlong idxAddr, jstring fileName ) {
+    if ( !idxAddr ) {
+        throwErrorMessage(env, "C code can't write index from null index address");
+        return;
+    }
+    char* fileNameChars = jstringToChars(env, fileName);
+    FILE* fp = fopen(fileNameChars, "wb");
+    free(fileNameChars);
+    if ( !fp ) {
+        throwErrorMessage(env, "C code can't open mappable index file for writing");
+        return;
+    }
+    IndexHandle* pHandle = (IndexHandle*)idxAddr;
+    int ok = 1;
+    int partId;
+    for ( partId = 0; ok && partId != pHandle->nParts; ++partId ) {
+        ok = writeMappable(pHandle->ppParts[partId], fp);
+    }
+    if ( fclose(fp) ) ok = 0;
+    if ( !ok ) throwErrorMessage(env, "C code can't write mappable index file");
+}
+
+// measurements of the most recent call, which Java reads through a ByteBuffer (see MiniMap2Aligner.STAT_*)
+#define STAT_MAP_NANOS 0        // mapping
+#define STAT_FINISH_NANOS 1     // merging index parts, filtering, making MD/cs strings, and sizing the results
+#define STAT_ENCODE_NANOS 2     // writing the results into the arena
+#define STAT_N_BASES 3
+#define STAT_N_ALIGNMENTS 4
+#define STAT_N_UNMAPPED 5       // sequences with no alignments
+#define STAT_RESULT_BYTES 6
+#define N_STATS 7
+
+static int64_t nanoTime() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t)ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+// long-lived native state owned by a MiniMap2Aligner and reused across calls to avoid malloc churn
+typedef struct {
+    int nTBufs;
+    mm_tbuf_t** pTBufs;         // one thread buffer for each worker thread
+    size_t seqsCapacity;        // number of sequences for which the per-sequence arrays have room
+    uint32_t* pLengths;         // the length of each sequence
+    char** pSeqStarts;          // the start of each sequence's bases
+    size_t regsCapacity;        // number of (sequence, index part) pairs for which the next two arrays have room
+    mm_reg1_t** ppRegs;         // the alignments minimap2 returned for each sequence against each index part
+    int* pNRegs;                // the number of alignments for each sequence against each index part
+    size_t* pOffsets;           // where each sequence's results go in the arena (nSeqs+1 entries)
+    uint32_t* pFragStarts;      // in fragment mode, the first sequence of each fragment (nFrags+1 entries)
+    uint32_t* pSegFlags;        // in fragment mode, the SAM flags each sequence gets from its place in its fragment
+    char*** pppStrs;            // when MD or cs strings are requested, N_ALIGN_STRS strings for each alignment
+    char** ppReadFields;        // with BAM records, each sequence's name and base qualities in the reads buffer
+                                // (two for each sequence, each pointing at the field's length word)
+    char* pDecoded;             // the bases of packed sequences, decoded to ASCII
+    size_t decodedCapacity;
+    char* pArena;               // the results of the most recent call
+    size_t arenaCapacity;
+    int64_t stats[N_STATS];     // measurements of the most recent call (see getAlignerStats)
+    int filterFlags;            // the FILTER_* kinds of alignment to drop
+    int maxHits;                // the most alignments to keep for each sequence, or 0 for no limit
+    int minMapQ;                // alignments with a lower mapQ are dropped
+    int minScore;               // alignments with a lower score are dropped, if this is positive
+} AlignerContext;
+
+// kinds of alignment that an aligner can ask to have dropped before they're encoded (these match MiniMap2Aligner.FILTER_*)
+#define FILTER_NO_SECONDARY 0x1
+#define FILTER_NO_SUPPLEMENTARY 0x2
+
+// optional fields that can be appended to each alignment record (these match MiniMap2Alignment.EXTRA_*)
+#define EXTRA_COORDS 0x1        // query start, query end, reference end
+#define EXTRA_SCORES 0x2        // DP alignment score (AS), chaining score, number of minimizers
+#define EXTRA_MD 0x4            // MD string
+#define EXTRA_CS 0x8            // cs string (short form)
+// also passed with the extra fields:  map only, skipping base-level alignment, and encode compact hit records
+// instead of alignment records (this matches MiniMap2Aligner.RECORD_HITS)
+#define RECORD_HITS 0x100
+#define HIT_WORDS 9             // flags, refId, refStart, refEnd, queryStart, queryEnd, mapQ, chainScore, nMinimizers
+// also passed with the extra fields:  encode each sequence's alignments as ready-to-write BAM records, using the
+// names and base qualities in the reads buffer (this matches MiniMap2Aligner.RECORD_BAM)
+#define RECORD_BAM 0x200
+
+// the strings genStrings may make for each alignment
+#define STR_MD 0
+#define STR_CS 1
+#define STR_SA 2                // with BAM records, this alignment's entry in the SA tags of the others
+#define N_ALIGN_STRS 3
+
+// how a sequence's bases are encoded, given by the top two bits of its length word (these match MiniMap2Aligner.SeqEncoding)
+#define SEQ_ASCII 0
+#define SEQ_4BIT 1              // as in BAM:  two bases per byte, from "=ACMGRSVTWYHKDBN", the first in the high nibble
+#define SEQ_2BIT 2              // four bases per byte, from "ACGT", the first in the high-order bits
+#define SEQ_ENCODING_SHIFT 30
+#define SEQ_LEN_MASK 0x3fffffff
+
+// the number of bytes that a sequence of nBases takes in an encoding
+static size_t encodedSeqBytes( uint32_t nBases, int encoding ) {
+    if ( encoding == SEQ_4BIT ) return ((size_t)nBases + 1) / 2;
+    if ( encoding == SEQ_2BIT ) return ((size_t)nBases + 3) / 4;
+    return nBases;
+}
+
+// expands packed bases to ASCII
+static void decodeSeq( char* pDest, const unsigned char* pPacked, uint32_t nBases, int encoding ) {
+    static const char nt16[] = "=ACMGRSVTWYHKDBN";
+    static const char nt4[] = "ACGT";
+    char* pEnd = pDest + nBases;
+    if ( encoding == SEQ_4BIT ) {
+        while ( pEnd - pDest >= 2 ) {
+            unsigned char code = *pPacked++;
+            *pDest++ = nt16[code >> 4];
+            *pDest++ = nt16[code & 0xf];
+        }
+        if ( pDest != pEnd ) *pDest = nt16[*pPacked >> 4];
+    } else {
+        while ( pEnd - pDest >= 4 ) {
+            unsigned char code = *pPacked++;
+            *pDest++ = nt4[code >> 6];
+            *pDest++ = nt4[(code >> 4) & 3];
+            *pDest++ = nt4[(code >> 2) & 3];
+            *pDest++ = nt4[code & 3];
+        }
+        int shift = 6;
+        while ( pDest != pEnd ) {
+            *pDest++ = nt4[(*pPacked >> shift) & 3];
+            shift -= 2;
+        }
+    }
+}
+
+// the most segments a fragment may have (the same limit minimap2's command-line tool has)
+#define MAX_SEGS 255
+
+// state shared by the worker threads that align a batch of sequences
+typedef struct {
+    IndexHandle* pIndex;
+    mm_mapopt_t* pOpts;
+    int fragMode;               // whether the sequences are segments of fragments (e.g., read pairs)
+    int extraFields;            // which of the optional EXTRA_* fields to add to each alignment record
+    AlignerContext* pCtx;
+} AlignBatch;
+
+// makes sure that *ppBuf has room for at least len bytes, preserving its contents
+static int ensureCapacity( void* ppBuf, size_t* pCapacity, size_t len ) {
+    if ( len <= *pCapacity ) return 1;
+    size_t newCapacity = *pCapacity ? *pCapacity : 1024;
+    while ( newCapacity < len ) newCapacity *= 2;
+    void* pNew = realloc(*(void**)ppBuf, newCapacity);
+    if ( !pNew ) return 0;
+    *(void**)ppBuf = pNew;
+    *pCapacity = newCapacity;
+    return 1;
+}
+
+static int ensureSeqsCapacity( AlignerContext* pCtx, size_t nSeqs, int nParts ) {
+    if ( nSeqs + 1 > pCtx->seqsCapacity ) {
+        size_t newCapacity = 2 * (nSeqs + 1);
+        uint32_t* pLengths = realloc(pCtx->pLengths, newCapacity * sizeof(uint32_t));
+        if ( pLengths ) pCtx->pLengths = pLengths;
+        char** pSeqStarts = realloc(pCtx->pSeqStarts, newCapacity * sizeof(char*));
+        if ( pSeqStarts ) pCtx->pSeqStarts = pSeqStarts;
+        size_t* pOffsets = realloc(pCtx->pOffsets, newCapacity * sizeof(size_t));
+        if ( pOffsets ) pCtx->pOffsets = pOffsets;
+        uint32_t* pFragStarts = realloc(pCtx->pFragStarts, newCapacity * sizeof(uint32_t));
+        if ( pFragStarts ) pCtx->pFragStarts = pFragStarts;
+        uint32_t* pSegFlags = realloc(pCtx->pSegFlags, newCapacity * sizeof(uint32_t));
+        if ( pSegFlags ) pCtx->pSegFlags = pSegFlags;
+        char*** pppStrs = realloc(pCtx->pppStrs, newCapacity * sizeof(char**));
+        if ( pppStrs ) pCtx->pppStrs = pppStrs;
+        char** ppReadFields = realloc(pCtx->ppReadFields, 2 * newCapacity * sizeof(char*));
+        if ( ppReadFields ) pCtx->ppReadFields = ppReadFields;
+        if ( !pLengths || !pSeqStarts || !pOffsets || !pFragStarts || !pSegFlags || !pppStrs || !ppReadFields ) return 0;
+        pCtx->seqsCapacity = newCapacity;
+    }
+    size_t nRegs = nSeqs * nParts + 1;
+    if ( nRegs > pCtx->regsCapacity ) {
+        size_t newCapacity = 2 * nRegs;
+        mm_reg1_t** ppRegs = realloc(pCtx->ppRegs, newCapacity * sizeof(mm_reg1_t*));
+        if ( ppRegs ) pCtx->ppRegs = ppRegs;
+        int* pNRegs = realloc(pCtx->pNRegs, newCapacity * sizeof(int));
+        if ( pNRegs ) pCtx->pNRegs = pNRegs;
+        if ( !ppRegs || !pNRegs ) return 0;
+        pCtx->regsCapacity = newCapacity;
+    }
+    return 1;
+}
+
+static int ensureTBufs( AlignerContext* pCtx, int nThreads ) {
+    if ( nThreads <= pCtx->nTBufs ) return 1;
+    mm_tbuf_t** pTBufs = realloc(pCtx->pTBufs, nThreads * sizeof(mm_tbuf_t*));
+    if ( !pTBufs ) return 0;
+    pCtx->pTBufs = pTBufs;
+    while ( pCtx->nTBufs < nThreads ) {
+        if ( !(pTBufs[pCtx->nTBufs] = mm_tbuf_init()) ) return 0;
+        pCtx->nTBufs += 1;
+    }
+    return 1;
+}
+
+// BAM records (see RECORD_BAM) are written in native byte order, which is BAM's little-endian order on every
+// platform we build for.  they aren't aligned, so multi-byte fields are written with memcpy.
+#define BAM_FIXED_BYTES 36      // block_size through tlen
+#define BAM_MAX_CIGAR_OPS 65535 // a longer CIGAR goes into a CG tag, with a placeholder in the record itself
+#define BAM_UNMAPPED_BIN 4680   // the bin of an unmapped read:  reg2bin(-1, 0)
+
+static char* putInt32( char* buf, int32_t val ) {
+    memcpy(buf, &val, sizeof(val));
+    return buf + sizeof(val);
+}
+
+static char* putUInt16( char* buf, uint16_t val ) {
+    memcpy(buf, &val, sizeof(val));
+    return buf + sizeof(val);
+}
+
+static char* putIntTag( char* buf, const char* tag, int32_t val ) {
+    *buf++ = tag[0];
+    *buf++ = tag[1];
+    *buf++ = 'i';
+    return putInt32(buf, val);
+}
+
+static char* putStringTag( char* buf, const char* tag, const char* str ) {
+    size_t len = strlen(str) + 1;
+    *buf++ = tag[0];
+    *buf++ = tag[1];
+    *buf++ = 'Z';
+    memcpy(buf, str, len);
+    return buf + len;
+}
+
+// the BAM bin of a 0-based, half-open reference interval (as in the SAM spec)
+static int reg2bin( int beg, int end ) {
+    --end;
+    if ( beg >> 14 == end >> 14 ) return ((1 << 15) - 1) / 7 + (beg >> 14);
+    if ( beg >> 17 == end >> 17 ) return ((1 << 12) - 1) / 7 + (beg >> 17);
+    if ( beg >> 20 == end >> 20 ) return ((1 << 9) - 1) / 7 + (beg >> 20);
+    if ( beg >> 23 == end >> 23 ) return ((1 << 6) - 1) / 7 + (beg >> 23);
+    if ( beg >> 26 == end >> 26 ) return ((1 << 3) - 1) / 7 + (beg >> 26);
+    return 0;
+}
+
+// the BAM 4-bit code of a base call (an index into "=ACMGRSVTWYHKDBN")
+static int nt16Code( char base ) {
+    switch ( base ) {
+        case '=': return 0;
+        case 'A': case 'a': return 1;
+        case 'C': case 'c': return 2;
+        case 'M': case 'm': return 3;
+        case 'G': case 'g': return 4;
+        case 'R': case 'r': return 5;
+        case 'S': case 's': return 6;
+        case 'V': case 'v': return 7;
+        case 'T': case 't': return 8;
+        case 'W': case 'w': return 9;
+        case 'Y': case 'y': return 10;
+        case 'H': case 'h': return 11;
+        case 'K': case 'k': return 12;
+        case 'D': case 'd': return 13;
+        case 'B': case 'b': return 14;
+        default: return 15;
+    }
+}
+
+// the 4-bit code of the base at pos of a read, in the reference's orientation
+static int orientedBaseCode( const char* pBases, uint32_t seqLen, uint32_t pos, int rev ) {
+    static const unsigned char complement[] = { 0, 8, 4, 12, 2, 10, 6, 14, 1, 9, 5, 13, 3, 11, 7, 15 };
+    return rev ? complement[nt16Code(pBases[seqLen - 1 - pos])] : nt16Code(pBases[pos]);
+}
+
+// a sequence's name (fieldId 0) or base qualities (fieldId 1), and its length, from the reads buffer
+static const char* readField( const AlignerContext* pCtx, long seqId, int fieldId, uint32_t* pLen ) {
+    const char* pField = pCtx->ppReadFields[2 * seqId + fieldId];
+    memcpy(pLen, pField, sizeof(uint32_t));
+    return pField + sizeof(uint32_t);
+}
+
+// how an alignment is laid out as a BAM record
+typedef struct {
+    uint32_t startClip;         // the clips, in the reference's orientation
+    uint32_t endClip;
+    int clipOp;                 // 4 (soft) or 5 (hard)
+    uint32_t nCigar;            // the number of CIGAR ops, including the clips
+    uint32_t seqStart;          // the bases (and qualities) in the record, as a range of the read in the reference's
+    uint32_t lSeq;              //   orientation
+    size_t saLen;               // the length of the SA tag's value (without its null), or 0 for no SA tag
+    size_t size;                // the size of the whole record, including block_size
+} BamLayout;
+
+// the total length of a sequence's SA entries
+static size_t saEntriesLen( char** ppStrs, int nAligns ) {
+    size_t len = 0;
+    int alnId;
+    if ( ppStrs ) {
+        for ( alnId = 0; alnId != nAligns; ++alnId ) {
+            const char* entry = ppStrs[N_ALIGN_STRS * alnId + STR_SA];
+            if ( entry ) len += strlen(entry);
+        }
+    }
+    return len;
+}
+
+// works out the layout of the BAM record for an alignment (or, if pAlign is null, for an unmapped read)
+// ppAlnStrs, if not null, are the alignment's strings, and saTotal is saEntriesLen for the whole sequence
+static void layOutBamRecord( const AlignBatch* pBatch, long seqId, const mm_reg1_t* pAlign, char** ppAlnStrs,
+                             size_t saTotal, BamLayout* pLayout ) {
+    const AlignerContext* pCtx = pBatch->pCtx;
+    uint32_t seqLen = pCtx->pLengths[seqId];
+    uint32_t nameLen;
+    readField(pCtx, seqId, 0, &nameLen);
+    memset(pLayout, 0, sizeof(BamLayout));
+    pLayout->clipOp = 4;
+    pLayout->lSeq = seqLen;
+    size_t size = BAM_FIXED_BYTES + nameLen + 1;
+    if ( pAlign ) {
+        int secondary = pAlign->parent != pAlign->id;
+        if ( pAlign->p ) {
+            pLayout->startClip = pAlign->rev ? seqLen - pAlign->qe : pAlign->qs;
+            pLayout->endClip = pAlign->rev ? pAlign->qs : seqLen - pAlign->qe;
+            pLayout->nCigar = pAlign->p->n_cigar + (pLayout->startClip > 0) + (pLayout->endClip > 0);
+            // as in minimap2's SAM output, supplementary alignments are hard-clipped, unless soft clipping is asked for
+            if ( !secondary && !pAlign->sam_pri && !(pBatch->pOpts->flag & MM_F_SOFTCLIP) ) {
+                pLayout->clipOp = 5;
+                pLayout->seqStart = pLayout->startClip;
+                pLayout->lSeq = seqLen - pLayout->startClip - pLayout->endClip;
+            }
+            size += pLayout->nCigar > BAM_MAX_CIGAR_OPS ? 2 * sizeof(uint32_t) : pLayout->nCigar * sizeof(uint32_t);
+            size += 2 * (3 + sizeof(int32_t)); // NM and AS
+            if ( ppAlnStrs && ppAlnStrs[STR_MD] ) size += 3 + strlen(ppAlnStrs[STR_MD]) + 1;
+            if ( ppAlnStrs && ppAlnStrs[STR_CS] ) size += 3 + strlen(ppAlnStrs[STR_CS]) + 1;
+            if ( ppAlnStrs && !secondary ) {
+                const char* ownEntry = ppAlnStrs[STR_SA];
+                pLayout->saLen = saTotal - (ownEntry ? strlen(ownEntry) : 0);
+                if ( pLayout->saLen ) size += 3 + pLayout->saLen + 1;
+            }
+            if ( pLayout->nCigar > BAM_MAX_CIGAR_OPS ) size += 4 + sizeof(uint32_t) + pLayout->nCigar * sizeof(uint32_t);
+        }
+        if ( secondary ) pLayout->lSeq = 0; // as in minimap2's SAM output, secondaries have no SEQ or QUAL
+    }
+    pLayout->size = size + (pLayout->lSeq + 1) / 2 + pLayout->lSeq;
+}
+
+// writes an alignment's CIGAR ops, with its clips
+static char* putCigar( char* buf, const mm_reg1_t* pAlign, const BamLayout* pLayout ) {
+    if ( pLayout->startClip ) buf = putInt32(buf, (pLayout->startClip << 4) | pLayout->clipOp);
+    size_t cigarLen = pAlign->p->n_cigar * sizeof(uint32_t);
+    memcpy(buf, pAlign->p->cigar, cigarLen);
+    buf += cigarLen;
+    if ( pLayout->endClip ) buf = putInt32(buf, (pLayout->endClip << 4) | pLayout->clipOp);
+    return buf;
+}
+
+// writes the BAM record for one of a sequence's alignments (or, if alnId is negative, for an unmapped read)
+static char* encodeBamRecord( const AlignBatch* pBatch, long seqId, int alnId, const BamLayout* pLayout, char* buf ) {
+    const AlignerContext* pCtx = pBatch->pCtx;
+    long item = seqId * pBatch->pIndex->nParts;
+    int nAligns = pCtx->pNRegs[item];
+    const mm_reg1_t* pAlign = alnId < 0 ? 0 : pCtx->ppRegs[item] + alnId;
+    char** ppStrs = pCtx->pppStrs[seqId];
+    uint32_t seqLen = pCtx->pLengths[seqId];
+    uint32_t nameLen, qualsLen;
+    const char* pName = readField(pCtx, seqId, 0, &nameLen);
+    const char* pQuals = readField(pCtx, seqId, 1, &qualsLen);
+    int rev = pAlign && pAlign->rev;
+
+    int flag = 0x4;
+    if ( pAlign ) {
+        flag = 0;
+        if ( rev ) flag |= 0x10;
+        if ( pAlign->parent != pAlign->id ) flag |= 0x100;
+        else if ( !pAlign->sam_pri ) flag |= 0x800;
+    }
+    buf = putInt32(buf, pLayout->size - sizeof(int32_t));
+    buf = putInt32(buf, pAlign ? pAlign->rid : -1);
+    buf = putInt32(buf, pAlign ? pAlign->rs : -1);
+    *buf++ = nameLen + 1;
+    *buf++ = pAlign ? pAlign->mapq : 0;
+    buf = putUInt16(buf, pAlign ? reg2bin(pAlign->rs, pAlign->re > pAlign->rs ? pAlign->re : pAlign->rs + 1)
+                                : BAM_UNMAPPED_BIN);
+    buf = putUInt16(buf, pLayout->nCigar > BAM_MAX_CIGAR_OPS ? 2 : pLayout->nCigar);
+    buf = putUInt16(buf, flag);
+    buf = putInt32(buf, pLayout->lSeq);
+    buf = putInt32(buf, -1); // next refID
+    buf = putInt32(buf, -1); // next pos
+    buf = putInt32(buf, 0);  // tlen
+    memcpy(buf, pName, nameLen);
+    buf += nameLen;
+    *buf++ = 0;
+    if ( pLayout->nCigar > BAM_MAX_CIGAR_OPS ) {
+        // the placeholder:  the query length as a soft clip, and the reference length as a skip
+        uint32_t queryLen = seqLen - (pLayout->clipOp == 5 ? pLayout->startClip + pLayout->endClip : 0);
+        buf = putInt32(buf, (queryLen << 4) | 4);
+        buf = putInt32(buf, ((pAlign->re - pAlign->rs) << 4) | 3);
+    } else if ( pLayout->nCigar ) {
+        buf = putCigar(buf, pAlign, pLayout);
+    }
+
+    const char* pBases = pCtx->pSeqStarts[seqId];
+    uint32_t idx;
+    for ( idx = 0; idx < pLayout->lSeq; idx += 2 ) {
+        int code = orientedBaseCode(pBases, seqLen, pLayout->seqStart + idx, rev) << 4;
+        if ( idx + 1 < pLayout->lSeq ) code |= orientedBaseCode(pBases, seqLen, pLayout->seqStart + idx + 1, rev);
+        *buf++ = code;
+    }
+    if ( !qualsLen ) {
+        memset(buf, 0xff, pLayout->lSeq);
+    } else if ( !rev ) {
+        memcpy(buf, pQuals + pLayout->seqStart, pLayout->lSeq);
+    } else {
+        for ( idx = 0; idx != pLayout->lSeq; ++idx ) buf[idx] = pQuals[seqLen - 1 - pLayout->seqStart - idx];
+    }
+    buf += pLayout->lSeq;
+
+    if ( !pAlign || !pAlign->p ) return buf;
+    char** ppAlnStrs = ppStrs ? ppStrs + N_ALIGN_STRS * alnId : 0;
+    buf = putIntTag(buf, "NM", pAlign->blen - pAlign->mlen + pAlign->p->n_ambi);
+    buf = putIntTag(buf, "AS", pAlign->p->dp_score);
+    if ( ppAlnStrs && ppAlnStrs[STR_MD] ) buf = putStringTag(buf, "MD", ppAlnStrs[STR_MD]);
+    if ( ppAlnStrs && ppAlnStrs[STR_CS] ) buf = putStringTag(buf, "cs", ppAlnStrs[STR_CS]);
+    if ( pLayout->saLen ) {
+        *buf++ = 'S';
+        *buf++ = 'A';
+        *buf++ = 'Z';
+        int otherId;
+        for ( otherId = 0; otherId != nAligns; ++otherId ) {
+            const char* entry = ppStrs[N_ALIGN_STRS * otherId + STR_SA];
+            if ( otherId == alnId || !entry ) continue;
+            size_t len = strlen(entry);
+            memcpy(buf, entry, len);
+            buf += len;
+        }
+        *buf++ = 0;
+    }
+    if ( pLayout->nCigar > BAM_MAX_CIGAR_OPS ) {
+        *buf++ = 'C';
+        *buf++ = 'G';
+        *buf++ = 'B';
+        *buf++ = 'I';
+        buf = putInt32(buf, pLayout->nCigar);
+        buf = putCigar(buf, pAlign, pLayout);
+    }
+    return buf;
+}
+
+// the number of bytes needed for a sequence's BAM records:  one for each alignment, or an unmapped one
+static size_t bamSize( AlignBatch* pBatch, long seqId ) {
+    AlignerContext* pCtx = pBatch->pCtx;
+    long item = seqId * pBatch->pIndex->nParts;
+    int nAligns = pCtx->pNRegs[item];
+    char** ppStrs = pCtx->pppStrs[seqId];
+    size_t saTotal = saEntriesLen(ppStrs, nAligns);
+    BamLayout layout;
+    if ( !nAligns ) {
+        layOutBamRecord(pBatch, seqId, 0, 0, 0, &layout);
+        return layout.size;
+    }
+    size_t len = 0;
+    int alnId;
+    for ( alnId = 0; alnId != nAligns; ++alnId ) {
+        layOutBamRecord(pBatch, seqId, pCtx->ppRegs[item] + alnId, ppStrs ? ppStrs + N_ALIGN_STRS * alnId : 0,
+                        saTotal, &layout);
+        len += layout.size;
+    }
+    return len;
+}
+
+// the number of 32-bit words a string takes in an alignment record:  its length, and then its bytes, null-padded
+static size_t stringWords( const char* str ) {
+    return 1 + (str ? (strlen(str) + 3) / 4 : 0);
+}
+
+// the number of bytes needed to encode a sequence's alignments
+static size_t encodedSize( AlignBatch* pBatch, long seqId ) {
+    AlignerContext* pCtx = pBatch->pCtx;
+    long item = seqId * pBatch->pIndex->nParts;
+    uint32_t seqLen = pCtx->pLengths[seqId];
+    int nAligns = pCtx->pNRegs[item];
+    if ( pBatch->extraFields & RECORD_BAM ) return bamSize(pBatch, seqId);
+    size_t len = sizeof(uint32_t); // space for nAligns
+    if ( pBatch->extraFields & RECORD_HITS ) return len + (size_t)nAligns * HIT_WORDS * sizeof(uint32_t);
+    char** ppStrs = (pBatch->extraFields & (EXTRA_MD | EXTRA_CS)) ? pCtx->pppStrs[seqId] : 0;
+    int alnId;
+    for ( alnId = 0; alnId != nAligns; ++alnId ) {
+        mm_reg1_t* pAlign = pCtx->ppRegs[item] + alnId;
+        uint32_t nCigar = pAlign->p ? (pAlign->p->n_cigar + (pAlign->qs > 0) + (pAlign->qe < seqLen) + 1) : 0;
+        size_t nWords = 5 + nCigar;
+        if ( pBatch->extraFields & EXTRA_COORDS ) nWords += 3;
+        if ( pBatch->extraFields & EXTRA_SCORES ) nWords += 3;
+        if ( pBatch->extraFields & EXTRA_MD ) nWords += stringWords(ppStrs ? ppStrs[N_ALIGN_STRS * alnId + STR_MD] : 0);
+        if ( pBatch->extraFields & EXTRA_CS ) nWords += stringWords(ppStrs ? ppStrs[N_ALIGN_STRS * alnId + STR_CS] : 0);
+        len += nWords * sizeof(uint32_t);
+    }
+    return len;
+}
+
+// the index part that holds a (global) refId
+static int partOf( const IndexHandle* pIndex, int32_t rid ) {
+    int partId = 0;
+    while ( rid >= pIndex->pRidOffsets[partId + 1] ) ++partId;
+    return partId;
+}
+
+// makes an alignment's entry in the SA tag of the read's other records, just as minimap2's SAM output does:
+// "rname,pos,strand,CIGAR,mapQ,NM;", where the CIGAR just sums up the aligned part as M and a net I or D
+static char* genSAEntry( const IndexHandle* pIndex, const mm_reg1_t* pAlign, uint32_t seqLen ) {
+    int partId = partOf(pIndex, pAlign->rid);
+    const char* refName = pIndex->ppParts[partId]->seq[pAlign->rid - pIndex->pRidOffsets[partId]].name;
+    size_t maxLen = strlen(refName) + 128; // room for the name, and for 8 numbers of up to 11 characters
+    char* entry = malloc(maxLen);
+    if ( !entry ) return 0;
+    int qLen = pAlign->qe - pAlign->qs;
+    int rLen = pAlign->re - pAlign->rs;
+    int clip5 = pAlign->rev ? seqLen - pAlign->qe : pAlign->qs;
+    int clip3 = pAlign->rev ? pAlign->qs : seqLen - pAlign->qe;
+    int len = snprintf(entry, maxLen, "%s,%d,%c,", refName, pAlign->rs + 1, "+-"[pAlign->rev]);
+    if ( clip5 ) len += snprintf(entry + len, maxLen - len, "%dS", clip5);
+    len += snprintf(entry + len, maxLen - len, "%dM", qLen < rLen ? qLen : rLen);
+    if ( qLen > rLen ) len += snprintf(entry + len, maxLen - len, "%dI", qLen - rLen);
+    if ( rLen > qLen ) len += snprintf(entry + len, maxLen - len, "%dD", rLen - qLen);
+    if ( clip3 ) len += snprintf(entry + len, maxLen - len, "%dS", clip3);
+    snprintf(entry + len, maxLen - len, ",%d,%d;", pAlign->mapq, pAlign->blen - pAlign->mlen + pAlign->p->n_ambi);
+    return entry;
+}
+
+// generates the MD and/or cs strings that were asked for, for each of a sequence's (merged) alignments, and, for
+// BAM records of a chimeric read, the SA entries.
+// they're stashed in the context until encodeSeq copies them into the arena.  a string we can't make is left null.
+static void genStrings( AlignBatch* pBatch, long seqId ) {
+    AlignerContext* pCtx = pBatch->pCtx;
+    IndexHandle* pIndex = pBatch->pIndex;
+    long item = seqId * pIndex->nParts;
+    int nAligns = pCtx->pNRegs[item];
+    char** ppStrs = nAligns ? calloc(N_ALIGN_STRS * nAligns, sizeof(char*)) : 0;
+    pCtx->pppStrs[seqId] = ppStrs;
+    if ( !ppStrs ) return;
+    // a read needs SA tags if it has more than one primary or supplementary alignment
+    int nLinear = 0;
+    int alnId;
+    for ( alnId = 0; alnId != nAligns; ++alnId ) {
+        mm_reg1_t* pAlign = pCtx->ppRegs[item] + alnId;
+        if ( pAlign->p && pAlign->parent == pAlign->id ) nLinear += 1;
+    }
+    for ( alnId = 0; alnId != nAligns; ++alnId ) {
+        mm_reg1_t* pAlign = pCtx->ppRegs[item] + alnId;
+        if ( !pAlign->p ) continue;
+        // minimap2 wants the part that holds the reference, and a refId local to that part
+        int partId = partOf(pIndex, pAlign->rid);
+        mm_reg1_t localAlign = *pAlign;
+        localAlign.rid -= pIndex->pRidOffsets[partId];
+        int maxLen = 0;
+        if ( pBatch->extraFields & EXTRA_MD ) {
+            char* buf = 0;
+            if ( mm_gen_MD(0, &buf, &maxLen, pIndex->ppParts[partId], &localAlign, pCtx->pSeqStarts[seqId]) >= 0 ) {
+                ppStrs[N_ALIGN_STRS * alnId + STR_MD] = buf;
+            } else free(buf);
+        }
+        maxLen = 0;
+        if ( pBatch->extraFields & EXTRA_CS ) {
+            char* buf = 0;
+            if ( mm_gen_cs(0, &buf, &maxLen, pIndex->ppParts[partId], &localAlign, pCtx->pSeqStarts[seqId], 1) >= 0 ) {
+                ppStrs[N_ALIGN_STRS * alnId + STR_CS] = buf;
+            } else free(buf);
+        }
+        if ( (pBatch->extraFields & RECORD_BAM) && nLinear > 1 && pAlign->parent == pAlign->id ) {
+            ppStrs[N_ALIGN_STRS * alnId + STR_SA] = genSAEntry(pIndex, pAlign, pCtx->pLengths[seqId]);
+        }
+    }
+}
+
+// copies a string into an alignment record as its length followed by its null-padded bytes, and frees it
+static uint32_t* encodeString( uint32_t* buf, char* str ) {
+    uint32_t len = str ? strlen(str) : 0;
+    *buf++ = len;
+    if ( len ) {
+        size_t nWords = (len + 3) / 4;
+        buf[nWords - 1] = 0;
+        memcpy(buf, str, len);
+        buf += nWords;
+    }
+    free(str);
+    return buf;
+}
+
+// frees what minimap2 (and genStrings) allocated for a sequence, without encoding it
+static void freeSeqResults( AlignBatch* pBatch, long seqId ) {
+    AlignerContext* pCtx = pBatch->pCtx;
+    long item = seqId * pBatch->pIndex->nParts;
+    int nAligns = pCtx->pNRegs[item];
+    int alnId;
+    for ( alnId = 0; alnId != nAligns; ++alnId ) free(pCtx->ppRegs[item][alnId].p);
+    free(pCtx->ppRegs[item]);
+    pCtx->ppRegs[item] = 0;
+    if ( pBatch->extraFields & (EXTRA_MD | EXTRA_CS) ) {
+        char** ppStrs = pCtx->pppStrs[seqId];
+        if ( ppStrs ) {
+            for ( alnId = 0; alnId != N_ALIGN_STRS * nAligns; ++alnId ) free(ppStrs[alnId]);
+            free(ppStrs);
+        }
+        pCtx->pppStrs[seqId] = 0;
+    }
+}
+
+// whether an alignment gets past the aligner's filters
+static int passesFilters( const AlignerContext* pCtx, const mm_reg1_t* pAlign ) {
+    if ( pAlign->parent != pAlign->id ) {
+        if ( pCtx->filterFlags & FILTER_NO_SECONDARY ) return 0;
+    } else if ( !pAlign->sam_pri ) {
+        if ( pCtx->filterFlags & FILTER_NO_SUPPLEMENTARY ) return 0;
+    }
+    if ( pAlign->mapq < pCtx->minMapQ ) return 0;
+    // the DP score (AS), or the chaining score when there's no base-level alignment
+    if ( pCtx->minScore > 0 && (pAlign->p ? pAlign->p->dp_score : pAlign->score) < pCtx->minScore ) return 0;
+    return 1;
+}
+
+// drops the alignments that the aligner's filters reject (and those beyond maxHits), before anything is spent
+// generating strings for them or encoding them
+static void filterSeq( AlignBatch* pBatch, long seqId ) {
+    AlignerContext* pCtx = pBatch->pCtx;
+    if ( !pCtx->filterFlags && !pCtx->maxHits && pCtx->minMapQ <= 0 && pCtx->minScore <= 0 ) return;
+    long item = seqId * pBatch->pIndex->nParts;
+    mm_reg1_t* pAligns = pCtx->ppRegs[item];
+    int nAligns = pCtx->pNRegs[item];
+    int nKept = 0;
+    int alnId;
+    for ( alnId = 0; alnId != nAligns; ++alnId ) {
+        mm_reg1_t* pAlign = pAligns + alnId;
+        if ( (pCtx->maxHits && nKept == pCtx->maxHits) || !passesFilters(pCtx, pAlign) ) {
+            free(pAlign->p);
+        } else {
+            if ( nKept != alnId ) pAligns[nKept] = *pAlign;
+            nKept += 1;
+        }
+    }
+    pCtx->pNRegs[item] = nKept;
+}
+
+// maps one sequence of the batch against one part of the index (called by kt_for, possibly from many threads at once)
+// stashes minimap2's alignments in the context
+static void mapSeq( void* pData, long item, int threadId ) {
+    AlignBatch* pBatch = pData;
+    AlignerContext* pCtx = pBatch->pCtx;
+    int nParts = pBatch->pIndex->nParts;
+    long seqId = item / nParts;
+    int nAligns = 0;
+    mm_reg1_t* pAligns = mm_map(pBatch->pIndex->ppParts[item % nParts], pCtx->pLengths[seqId], pCtx->pSeqStarts[seqId],
+                                &nAligns, pCtx->pTBufs[threadId], pBatch->pOpts, 0);
+    pCtx->ppRegs[item] = pAligns;
+    pCtx->pNRegs[item] = nAligns;
+}
+
+// maps the segments of one fragment together against one part of the index, so that minimap2 can pair them
+static void mapFrag( void* pData, long item, int threadId ) {
+    AlignBatch* pBatch = pData;
+    AlignerContext* pCtx = pBatch->pCtx;
+    int nParts = pBatch->pIndex->nParts;
+    long fragId = item / nParts;
+    int partId = item % nParts;
+    uint32_t firstSeq = pCtx->pFragStarts[fragId];
+    int nSegs = pCtx->pFragStarts[fragId + 1] - firstSeq;
+    int qLens[MAX_SEGS] = { 0 };
+    const char* pSeqs[MAX_SEGS] = { 0 };
+    int nRegs[MAX_SEGS] = { 0 };
+    mm_reg1_t* pRegs[MAX_SEGS] = { 0 };
+    int segId;
+    for ( segId = 0; segId != nSegs; ++segId ) {
+        qLens[segId] = pCtx->pLengths[firstSeq + segId];
+        pSeqs[segId] = pCtx->pSeqStarts[firstSeq + segId];
+    }
+    mm_map_frag(pBatch->pIndex->ppParts[partId], nSegs, qLens, pSeqs, nRegs, pRegs,
+                pCtx->pTBufs[threadId], pBatch->pOpts, 0);
+    for ( segId = 0; segId != nSegs; ++segId ) {
+        pCtx->ppRegs[(firstSeq + segId) * nParts + partId] = pRegs[segId];
+        pCtx->pNRegs[(firstSeq + segId) * nParts + partId] = nRegs[segId];
+    }
+}
+
+// works out the flags each segment of a fragment gets from its position, and from the primary alignment of its mate
+// (the next segment, cyclically, as in minimap2's SAM output).  must be called after the parts are merged, and
+// before filtering, so that the mate flags describe the mate's primary even if it's filtered out.
+static void setSegFlags( AlignerContext* pCtx, int nParts, uint32_t nFrags ) {
+    uint32_t fragId;
+    for ( fragId = 0; fragId != nFrags; ++fragId ) {
+        uint32_t firstSeq = pCtx->pFragStarts[fragId];
+        uint32_t nSegs = pCtx->pFragStarts[fragId + 1] - firstSeq;
+        uint32_t segId;
+        for ( segId = 0; segId != nSegs; ++segId ) {
+            uint32_t flags = 0;
+            if ( nSegs > 1 ) {
+                flags = 0x1;
+                if ( segId == 0 ) flags |= 0x40;
+                if ( segId == nSegs - 1 ) flags |= 0x80;
+                uint32_t mateId = firstSeq + (segId + 1) % nSegs;
+                mm_reg1_t* pMate = pCtx->ppRegs[mateId * nParts];
+                mm_reg1_t* pMateEnd = pMate + pCtx->pNRegs[mateId * nParts];
+                while ( pMate != pMateEnd && !pMate->sam_pri ) ++pMate;
+                if ( pMate == pMateEnd ) flags |= 0x8;
+                else if ( pMate->rev ) flags |= 0x20;
+            }
+            pCtx->pSegFlags[firstSeq + segId] = flags;
+        }
+    }
+}
+
+static int hitScore( const mm_reg1_t* pAlign ) {
+    return pAlign->p ? pAlign->p->dp_max : pAlign->score;
+}
+
+// best first, with ties broken by hash, as in minimap2's mm_hit_sort
+static int compareHits( const void* pV1, const void* pV2 ) {
+    const mm_reg1_t* pAlign1 = pV1;
+    const mm_reg1_t* pAlign2 = pV2;
+    uint64_t key1 = (uint64_t)hitScore(pAlign1) << 32 | pAlign1->hash;
+    uint64_t key2 = (uint64_t)hitScore(pAlign2) << 32 | pAlign2->hash;
+    return key1 > key2 ? -1 : (key1 < key2 ? 1 : 0);
+}
+
+static int compareUInt64s( const void* pV1, const void* pV2 ) {
+    uint64_t val1 = *(const uint64_t*)pV1;
+    uint64_t val2 = *(const uint64_t*)pV2;
+    return val1 < val2 ? -1 : (val1 > val2 ? 1 : 0);
+}
+
+// minimap2's mm_set_parent (in hit.c), for sorted hits:  a hit is the secondary of the first primary that covers
+// enough of the same stretch of the query, and that primary's best competitor (subsc, dp_max2) and count of close
+// competitors (n_sub) are updated.  pCov is scratch space for nRegs entries (or 0, if there's no memory for it,
+// in which case overlaps aren't discounted by the stretch of the hit that no primary covers).
+static void setParents( mm_reg1_t* pRegs, int nRegs, uint64_t* pCov, float maskLevel, int subDiff ) {
+    int regId;
+    for ( regId = 0; regId != nRegs; ++regId ) {
+        mm_reg1_t* pReg = pRegs + regId;
+        int qs = pReg->qs, qe = pReg->qe;
+        pReg->id = regId;
+        pReg->parent = regId;
+        if ( regId == 0 ) continue;
+        int nCov = 0, uncovLen = 0, priId;
+        for ( priId = 0; priId != regId; ++priId ) {
+            mm_reg1_t* pPri = pRegs + priId;
+            if ( pPri->parent != priId || pPri->qe <= qs || pPri->qs >= qe ) continue;
+            if ( pCov ) pCov[nCov++] = (uint64_t)(pPri->qs > qs ? pPri->qs : qs) << 32 | (pPri->qe < qe ? pPri->qe : qe);
+            else nCov += 1;
+        }
+        if ( !nCov ) continue;
+        if ( pCov ) {
+            int covId, covEnd = qs;
+            qsort(pCov, nCov, sizeof(uint64_t), compareUInt64s);
+            for ( covId = 0; covId != nCov; ++covId ) {
+                int start = pCov[covId] >> 32, end = (int32_t)pCov[covId];
+                if ( start > covEnd ) uncovLen += start - covEnd;
+                if ( end > covEnd ) covEnd = end;
+            }
+            if ( qe > covEnd ) uncovLen += qe - covEnd;
+        }
+        for ( priId = 0; priId != regId; ++priId ) {
+            mm_reg1_t* pPri = pRegs + priId;
+            int ps = pPri->qs, pe = pPri->qe;
+            if ( pPri->parent != priId || pe <= qs || ps >= qe ) continue;
+            int minLen = pe - ps < qe - qs ? pe - ps : qe - qs;
+            int maxLen = pe - ps > qe - qs ? pe - ps : qe - qs;
+            int overlap = (pe < qe ? pe : qe) - (ps > qs ? ps : qs);
+            if ( (float)overlap / minLen - (float)uncovLen / maxLen <= maskLevel ) continue;
+            int closeSub = pReg->cnt >= pPri->cnt;
+            pReg->parent = priId;
+            if ( pReg->score > pPri->subsc ) pPri->subsc = pReg->score;
+            if ( pPri->p && pReg->p && (pPri->rid != pReg->rid || pPri->rs != pReg->rs || pPri->re != pReg->re ||
+                                        overlap != minLen) ) {
+                if ( pReg->p->dp_max > pPri->p->dp_max2 ) pPri->p->dp_max2 = pReg->p->dp_max;
+                if ( pPri->p->dp_max - pReg->p->dp_max <= subDiff ) closeSub = 1;
+            }
+            if ( closeSub ) pPri->n_sub += 1;
+            break;
+        }
+    }
+}
+
+// minimap2's mm_select_sub (in hit.c):  drops secondaries that score much worse than their primary, or that are
+// identical to it, and all but the best bestN.  the survivors are renumbered, and sam_pri is set on the best primary.
+// returns the number of survivors.
+static int selectSecondaries( mm_reg1_t* pRegs, int nRegs, float priRatio, int minDiff, int bestN ) {
+    int regId, nKept = 0, nSecondaries = 0, nPrimaries = 0;
+    // parents come before their secondaries, and are always kept:  so each hit's new id and parent can be worked out
+    // before anything moves
+    for ( regId = 0; regId != nRegs; ++regId ) {
+        mm_reg1_t* pReg = pRegs + regId;
+        const mm_reg1_t* pPri = pRegs + pReg->parent;
+        int keep = 1;
+        if ( priRatio > 0.f && pReg->parent != regId && !pReg->inv ) {
+            keep = (pReg->score >= pPri->score * priRatio || pReg->score + minDiff >= pPri->score) &&
+                    nSecondaries < bestN &&
+                    !(pReg->qs == pPri->qs && pReg->qe == pPri->qe && pReg->rid == pPri->rid &&
+                      pReg->rs == pPri->rs && pReg->re == pPri->re);
+            nSecondaries += keep;
+        }
+        pReg->id = keep ? nKept++ : -1;
+        if ( keep ) pReg->parent = pRegs[pReg->parent].id;
+    }
+    nKept = 0;
+    for ( regId = 0; regId != nRegs; ++regId ) {
+        mm_reg1_t* pReg = pRegs + regId;
+        if ( pReg->id < 0 ) {
+            free(pReg->p);
+            continue;
+        }
+        pReg->sam_pri = pReg->parent == pReg->id && ++nPrimaries == 1;
+        pRegs[nKept++] = *pReg;
+    }
+    return nKept;
+}
+
+// minimap2's mapQ estimate (mm_set_mapq, in hit.c), from how well each primary's best competitor scores against it,
+// and how many close competitors it has.  minimap2 also discounts the mapQ of a query that's largely repetitive,
+// but it works out how repetitive from each part on its own, and doesn't keep it:  so a primary gets no more than
+// the mapQ it came in with, which mergeParts sets to the one it had in its own part (or to 60, if it wasn't a
+// primary there).
+static void setMapQs( mm_reg1_t* pRegs, int nRegs, const mm_mapopt_t* pOpts ) {
+    static const float qCoef = 40.f;
+    int isShortRead = (pOpts->flag & MM_F_SR) != 0;
+    int regId;
+    for ( regId = 0; regId != nRegs; ++regId ) {
+        mm_reg1_t* pReg = pRegs + regId;
+        if ( pReg->inv || pReg->parent != regId ) {
+            pReg->mapq = 0;
+            continue;
+        }
+        int mapq;
+        float penScore = pReg->score > 100 ? 1.f : .01f * pReg->score;
+        float penCnt = pReg->cnt > 10 ? 1.f : .1f * pReg->cnt;
+        if ( penScore < penCnt ) penCnt = penScore;
+        int subsc = pReg->subsc > pOpts->min_chain_score ? pReg->subsc : pOpts->min_chain_score;
+        if ( pReg->p && pReg->p->dp_max2 > 0 && pReg->p->dp_max > 0 ) {
+            float identity = (float)pReg->mlen / pReg->blen;
+            float x = (float)pReg->p->dp_max2 * subsc / pReg->p->dp_max / pReg->score0;
+            mapq = (int)(identity * penCnt * qCoef * (1.f - x * x) * logf((float)pReg->p->dp_max / pOpts->a));
+            if ( isShortRead ) {
+                int bwaMapQ = (int)(6.02f * identity * identity * (pReg->p->dp_max - pReg->p->dp_max2) / pOpts->a + .499f);
+                if ( bwaMapQ < mapq ) mapq = bwaMapQ;
+            }
+        } else {
+            float x = (float)subsc / pReg->score0;
+            if ( pReg->p ) {
+                float identity = (float)pReg->mlen / pReg->blen;
+                mapq = (int)(identity * penCnt * qCoef * (1.f - x) * logf((float)pReg->p->dp_max / pOpts->a));
+            } else {
+                mapq = (int)(penCnt * qCoef * (1.f - x) * logf((float)pReg->score));
+            }
+        }
+        mapq -= (int)(4.343f * logf(pReg->n_sub + 1) + .499f);
+        if ( mapq < 0 ) mapq = 0;
+        if ( mapq > 60 ) mapq = 60;
+        if ( pReg->p && pReg->p->dp_max > pReg->p->dp_max2 && !mapq ) mapq = 1;
+        if ( mapq < pReg->mapq ) pReg->mapq = mapq;
+    }
+}
+
+// combines a sequence's alignments against each part of the index into a single set, as if the index were unsplit:
+// sorts them, re-derives the primary/secondary relationships, drops secondaries as minimap2 would (by pri_ratio and
+// best_n), and recomputes the mapQs.  the merged set replaces that of the first part.
+static void mergeParts( AlignBatch* pBatch, long seqId ) {
+    AlignerContext* pCtx = pBatch->pCtx;
+    IndexHandle* pIndex = pBatch->pIndex;
+    const mm_mapopt_t* pOpts = pBatch->pOpts;
+    int nParts = pIndex->nParts;
+    mm_reg1_t** ppRegs = pCtx->ppRegs + seqId * nParts;
+    int* pNRegs = pCtx->pNRegs + seqId * nParts;
+    int partId;
+    int nAligns = 0;
+    int nPartsWithHits = 0;
+    for ( partId = 0; partId != nParts; ++partId ) {
+        mm_reg1_t* pAlign = ppRegs[partId];
+        mm_reg1_t* pEnd = pAlign + pNRegs[partId];
+        while ( pAlign != pEnd ) pAlign++->rid += pIndex->pRidOffsets[partId];
+        nAligns += pNRegs[partId];
+        if ( pNRegs[partId] ) nPartsWithHits += 1;
+    }
+    if ( nPartsWithHits <= 1 ) {
+        // nothing to reconcile:  just move the hits (if any) to the first part's slot
+        for ( partId = 1; partId != nParts; ++partId ) {
+            if ( !pNRegs[partId] ) {
+                free(ppRegs[partId]);
+                continue;
+            }
+            free(ppRegs[0]);
+            ppRegs[0] = ppRegs[partId];
+            pNRegs[0] = pNRegs[partId];
+        }
+        return;
+    }
+    mm_reg1_t* pMerged = malloc(nAligns * sizeof(mm_reg1_t));
+    int nMerged = 0;
+    for ( partId = 0; partId != nParts; ++partId ) {
+        mm_reg1_t* pAlign = ppRegs[partId];
+        mm_reg1_t* pEnd = pAlign + pNRegs[partId];
+        for ( ; pAlign != pEnd; ++pAlign ) {
+            if ( !pMerged ) {
+                // no memory:  we'll just have to drop these hits
+                free(pAlign->p);
+                continue;
+            }
+            // the cap on its mapQ (see setMapQs).  competitors are recounted from scratch, but the best competitor
+            // seen in its own part stands:  a maximum doesn't change when the same competitors are seen again.
+            if ( pAlign->parent != pAlign->id ) pAlign->mapq = 60;
+            pAlign->n_sub = 0;
+            pMerged[nMerged++] = *pAlign;
+        }
+        free(ppRegs[partId]);
+    }
+    ppRegs[0] = pMerged;
+    pNRegs[0] = nMerged;
+    if ( !pMerged ) return;
+
+    qsort(pMerged, nMerged, sizeof(mm_reg1_t), compareHits);
+    uint64_t* pCov = malloc(nMerged * sizeof(uint64_t));
+    setParents(pMerged, nMerged, pCov, pOpts->mask_level, pOpts->a * 2 + pOpts->b);
+    free(pCov);
+    nMerged = selectSecondaries(pMerged, nMerged, pOpts->pri_ratio, pIndex->ppParts[0]->k * 2, pOpts->best_n);
+    pNRegs[0] = nMerged;
+    setMapQs(pMerged, nMerged, pOpts);
+}
+
+// merges one sequence's alignments once it has been mapped against every part of the index
+static void mergeSeq( void* pData, long seqId, int threadId ) {
+    mergeParts(pData, seqId);
+}
+
+// finishes off one sequence's alignments, and notes how much space they'll take to encode
+static void finishSeq( void* pData, long seqId, int threadId ) {
+    AlignBatch* pBatch = pData;
+    AlignerContext* pCtx = pBatch->pCtx;
+    filterSeq(pBatch, seqId);
+    if ( pBatch->extraFields & (EXTRA_MD | EXTRA_CS) ) genStrings(pBatch, seqId);
+    pCtx->pOffsets[seqId + 1] = encodedSize(pBatch, seqId);
+}
+
+// encodes one sequence's hits as compact records (see RECORD_HITS), and frees minimap2's version
+static void encodeHits( AlignBatch* pBatch, long seqId ) {
+    AlignerContext* pCtx = pBatch->pCtx;
+    long item = seqId * pBatch->pIndex->nParts;
+    uint32_t* buf = (uint32_t*)(pCtx->pArena + pCtx->pOffsets[seqId]);
+    int nAligns = pCtx->pNRegs[item];
+    *buf++ = nAligns;
+    mm_reg1_t* pAlign = pCtx->ppRegs[item];
+    mm_reg1_t* pEnd = pAlign + nAligns;
+    while ( pAlign != pEnd ) {
+        int flags = 0;
+        if ( pAlign->rev ) flags |= 0x10;
+        if ( pAlign->parent != pAlign->id ) flags |= 0x100;
+        else if ( !pAlign->sam_pri ) flags |= 0x800;
+        *buf++ = flags;
+        *buf++ = pAlign->rid;
+        *buf++ = pAlign->rs;
+        *buf++ = pAlign->re;
+        *buf++ = pAlign->qs;
+        *buf++ = pAlign->qe;
+        *buf++ = pAlign->mapq;
+        *buf++ = pAlign->score;
+        *buf++ = pAlign->cnt;
+        free(pAlign->p);
+        pAlign += 1;
+    }
+    free(pCtx->ppRegs[item]);
+    pCtx->ppRegs[item] = 0;
+}
+
+// encodes one sequence's alignments as BAM records (see RECORD_BAM), and frees minimap2's version
+static void encodeBam( AlignBatch* pBatch, long seqId ) {
+    AlignerContext* pCtx = pBatch->pCtx;
+    long item = seqId * pBatch->pIndex->nParts;
+    char* buf = pCtx->pArena + pCtx->pOffsets[seqId];
+    int nAligns = pCtx->pNRegs[item];
+    char** ppStrs = pCtx->pppStrs[seqId];
+    size_t saTotal = saEntriesLen(ppStrs, nAligns);
+    BamLayout layout;
+    if ( !nAligns ) {
+        layOutBamRecord(pBatch, seqId, 0, 0, 0, &layout);
+        encodeBamRecord(pBatch, seqId, -1, &layout, buf);
+    }
+    int alnId;
+    for ( alnId = 0; alnId != nAligns; ++alnId ) {
+        layOutBamRecord(pBatch, seqId, pCtx->ppRegs[item] + alnId, ppStrs ? ppStrs + N_ALIGN_STRS * alnId : 0,
+                        saTotal, &layout);
+        buf = encodeBamRecord(pBatch, seqId, alnId, &layout, buf);
+    }
+    freeSeqResults(pBatch, seqId);
+}
+
+// encodes one sequence's alignments directly into its spot in the arena, and frees minimap2's version
+static void encodeSeq( void* pData, long seqId, int threadId ) {
+    AlignBatch* pBatch = pData;
+    if ( pBatch->extraFields & RECORD_HITS ) {
+        encodeHits(pBatch, seqId);
+        return;
+    }
+    if ( pBatch->extraFields & RECORD_BAM ) {
+        encodeBam(pBatch, seqId);
+        return;
+    }
+    AlignerContext* pCtx = pBatch->pCtx;
+    long item = seqId * pBatch->pIndex->nParts;
+    uint32_t seqLen = pCtx->pLengths[seqId];
+    uint32_t* buf = (uint32_t*)(pCtx->pArena + pCtx->pOffsets[seqId]);
+    int nAligns = pCtx->pNRegs[item];
+    *buf++ = nAligns;
+    mm_reg1_t* pAlignsBase = pCtx->ppRegs[item];
+    char** ppStrs = (pBatch->extraFields & (EXTRA_MD | EXTRA_CS)) ? pCtx->pppStrs[seqId] : 0;
+    mm_reg1_t* pAlign = pAlignsBase;
+    mm_reg1_t* pEnd = pAlign + nAligns;
+    uint32_t segFlags = pBatch->fragMode ? pCtx->pSegFlags[seqId] : 0;
+    while ( pAlign != pEnd ) {
+        int samFlag = segFlags;
+        if ( (segFlags & 0x1) && pAlign->proper_frag ) samFlag |= 0x2;
+        if ( pAlign->rev ) samFlag |= 0x10;
+        if ( pAlign->parent != pAlign->id ) samFlag |= 0x100;
+        else if ( !pAlign->sam_pri ) samFlag |= 0x800;
+        *buf++ = samFlag;
+        *buf++ = pAlign->rid;
+        *buf++ = pAlign->rs;
+        *buf++ = pAlign->mapq;
+        if ( !pAlign->p ) {
+            *buf++ = 0;
+        } else {
+            *buf++ = pAlign->p->n_cigar + (pAlign->qs > 0) + (pAlign->qe < seqLen);
+            *buf++ = pAlign->blen - pAlign->mlen + pAlign->p->n_ambi;
+            if ( !pAlign->rev && pAlign->qs > 0 ) {
+                *buf++ = (pAlign->qs << 4) | 4; // soft-clip at the beginning
+            } else if ( pAlign->rev && pAlign->qe < seqLen ) {
+                *buf++ = ((seqLen - pAlign->qe) << 4) | 4; // final soft-clip reversed to beginning
+            }
+            uint32_t nCigar = pAlign->p->n_cigar;
+            memcpy(buf, pAlign->p->cigar, nCigar * sizeof(uint32_t));
+            buf += nCigar;
+            if ( !pAlign->rev && pAlign->qe < seqLen ) {
+                *buf++ = ((seqLen - pAlign->qe) << 4) | 4; // final soft-clip
+            } else if ( pAlign->rev && pAlign->qs > 0 ) {
+                *buf++ = (pAlign->qs << 4) | 4; // initial soft-clip reversed to end
+            }
+        }
+        if ( pBatch->extraFields & EXTRA_COORDS ) {
+            *buf++ = pAlign->qs;
+            *buf++ = pAlign->qe;
+            *buf++ = pAlign->re;
+        }
+        if ( pBatch->extraFields & EXTRA_SCORES ) {
+            *buf++ = pAlign->p ? pAlign->p->dp_score : 0;
+            *buf++ = pAlign->score;
+            *buf++ = pAlign->cnt;
+        }
+        if ( ppStrs ) {
+            long alnId = pAlign - pAlignsBase;
+            if ( pBatch->extraFields & EXTRA_MD ) buf = encodeString(buf, ppStrs[N_ALIGN_STRS * alnId + STR_MD]);
+            if ( pBatch->extraFields & EXTRA_CS ) buf = encodeString(buf, ppStrs[N_ALIGN_STRS * alnId + STR_CS]);
+        } else {
+            if ( pBatch->extraFields & EXTRA_MD ) *buf++ = 0;
+            if ( pBatch->extraFields & EXTRA_CS ) *buf++ = 0;
+        }
+        free(pAlign->p);
+        pAlign += 1;
+    }
+    free(pAlignsBase);
+    pCtx->ppRegs[item] = 0;
+    if ( ppStrs ) {
+        free(ppStrs);
+        pCtx->pppStrs[seqId] = 0;
+    }
+}
+
+JNIEXPORT jlong JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_createAlignerContext( JNIEnv* env, jclass cls ) {
+    AlignerContext* pCtx = calloc(1, sizeof(AlignerContext));
+    if ( !pCtx ) {
+        throwErrorMessage(env, "C code can't allocate memory for aligner context");
+        return 0;
+    }
+    return (jlong)pCtx;
+}
+
+JNIEXPORT jobject JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_getAlignerStats( JNIEnv* env, jclass cls, jlong ctxAddr ) {
+    if ( !ctxAddr ) {
+        throwErrorMessage(env, "C code can't get stats for null aligner context address");
+        return 0;
+    }
+    AlignerContext* pCtx = (AlignerContext*)ctxAddr;
+    jobject statsBuf = (*env)->NewDirectByteBuffer(env, pCtx->stats, sizeof(pCtx->stats));
+    if ( !statsBuf ) throwErrorMessage(env, "C code can't create ByteBuffer for aligner stats");
+    return statsBuf;
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_setAlignerFilter( JNIEnv* env, jclass cls, jlong ctxAddr,
+                                        jint filterFlags, jint maxHits, jint minMapQ, jint minScore ) {
+    if ( !ctxAddr ) {
+        throwErrorMessage(env, "C code can't set filters for null aligner context address");
+        return;
+    }
+    AlignerContext* pCtx = (AlignerContext*)ctxAddr;
+    pCtx->filterFlags = filterFlags;
+    pCtx->maxHits = maxHits;
+    pCtx->minMapQ = minMapQ;
+    pCtx->minScore = minScore;
+}
+
+JNIEXPORT void JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_destroyAlignerContext( JNIEnv* env, jclass cls, jlong ctxAddr ) {
+    if ( !ctxAddr ) {
+        throwErrorMessage(env, "C code can't destroy null aligner context address");
+        return;
+    }
+    AlignerContext* pCtx = (AlignerContext*)ctxAddr;
+    int threadId;
+    for ( threadId = 0; threadId != pCtx->nTBufs; ++threadId ) {
+        mm_tbuf_destroy(pCtx->pTBufs[threadId]);
+    }
+    free(pCtx->pTBufs);
+    free(pCtx->pLengths);
+    free(pCtx->pSeqStarts);
+    free(pCtx->ppRegs);
+    free(pCtx->pNRegs);
+    free(pCtx->pOffsets);
+    free(pCtx->pFragStarts);
+    free(pCtx->pSegFlags);
+    free(pCtx->pppStrs);
+    free(pCtx->ppReadFields);
+    free(pCtx->pDecoded);
+    free(pCtx->pArena);
+    free(pCtx);
 }
 
 // we accept a ByteBuffer that contains:
 //   a 32-bit integer count of the number of sequences to follow
-//   a 32-bit integer for each sequence, giving its length
-//   the base calls for each sequence, all run together in a single pool of bytes
-// we return a ByteBuffer that contains:
-// for each sequence,
+//   for each sequence, a 32-bit integer giving its length, followed immediately by its base calls
+//   (the top two bits of the length give the encoding of the bases (SEQ_*), and the rest give the number of bases)
+// (this layout lets the Java side fill the buffer in a single pass over its sequences)
+// packed sequences are decoded into the context before they're aligned
+// the sequences are distributed over nThreads worker threads, each with its own thread buffer
+// the results are left in the context's arena (valid until the next call), and contain:
+// for each sequence (in the same order as the input),
 //   a 32-bit integer count of the number of alignments that follow
 //   for each alignment, a pseudo-structure like this:
 /*
 typedef struct {
+    int32_t samFlag; // 0x10 for reverse strand, 0x100 for secondary, 0x800 for supplementary
     int32_t refID; // reference id
-    int32_t pos;   // reference starting position (0-based) -- if negative, it means reverse strand starting at ~pos
+    int32_t pos;   // reference starting position (0-based)
     int32_t mapQ;  // the map quality
     int32_t nCigar; // nCigarOps
+    int32_t NM;    // edit distance (present only when nCigar > 0)
     int32_t cigarOp[nCigarOps]; // len<<4 | op (i.e., the usual BAM encoding)
 } Alignment;
 */
+// pSegCounts, if not null, gives the number of consecutive sequences that make up each of nFrags fragments
+// with RECORD_BAM, the results are instead BAM records, back to back, for each sequence in turn:  one for each of its
+// alignments, or an unmapped one if it has none.  pReadsBuf then has the same layout as pSeqsBuf, with two entries
+// for each sequence:  its name, and its base qualities (raw phred scores, or no bytes if it has none).
+// on success, returns 0 and sets *pResultsLen:  the results are in the context's arena.  otherwise, returns an error message.
+static const char* alignBatch( IndexHandle* pIndex, AlignerContext* pCtx, mm_mapopt_t* pOpts, uint32_t* pSeqsBuf,
+                               uint32_t* pReadsBuf, const int32_t* pSegCounts, uint32_t nFrags, int extraFields, int nThreads,
+                               size_t* pResultsLen ) {
+    if ( nThreads < 1 ) nThreads = 1;
+
+    uint32_t nSeqs = *pSeqsBuf;
+    if ( !pSegCounts ) nFrags = nSeqs;
+    long nItems = (long)nFrags * pIndex->nParts;
+    if ( nThreads > nItems ) nThreads = nItems ? nItems : 1;
+    if ( !ensureTBufs(pCtx, nThreads) || !ensureSeqsCapacity(pCtx, nSeqs, pIndex->nParts) ) {
+        return "C code can't allocate memory for aligner context";
+    }
+    AlignBatch batch;
+    batch.pIndex = pIndex;
+    batch.pOpts = pOpts;
+    batch.pCtx = pCtx;
+    batch.fragMode = pSegCounts != 0;
+    // hit records have none of the extra fields, and BAM records always have an MD tag
+    batch.extraFields = extraFields;
+    if ( extraFields & RECORD_HITS ) batch.extraFields = RECORD_HITS;
+    else if ( extraFields & RECORD_BAM ) batch.extraFields = RECORD_BAM | EXTRA_MD | (extraFields & EXTRA_CS);
+    if ( batch.extraFields & RECORD_BAM ) {
+        if ( batch.fragMode ) return "C code can't write BAM records in fragment mode";
+        if ( !pReadsBuf || *pReadsBuf != 2 * nSeqs ) {
+            return "C code needs a name and base qualities for each sequence to write BAM records";
+        }
+    }
+    mm_mapopt_t callOpts; // a copy of the caller's options, for a call that needs to change them
+    if ( batch.fragMode ) {
+        // segments are laid out one fragment after another:  find where each fragment starts
+        uint32_t fragId;
+        uint32_t firstSeq = 0;
+        for ( fragId = 0; fragId != nFrags; ++fragId ) {
+            int32_t nSegs = pSegCounts[fragId];
+            if ( nSegs < 1 || nSegs > MAX_SEGS || firstSeq + nSegs > nSeqs ) break;
+            pCtx->pFragStarts[fragId] = firstSeq;
+            firstSeq += nSegs;
+        }
+        if ( fragId != nFrags || firstSeq != nSeqs ) {
+            return "C code got bad segment counts for fragments";
+        }
+        pCtx->pFragStarts[nFrags] = nSeqs;
+        // the caller's options are left alone:  only this batch is aligned in fragment mode
+        callOpts = *pOpts;
+        callOpts.flag |= MM_F_FRAG_MODE;
+        batch.pOpts = &callOpts;
+    }
+    if ( batch.extraFields & RECORD_HITS ) {
+        // mapping only:  minimap2 stops at the chains, and their scores and mapQs, without base-level alignment
+        if ( batch.pOpts != &callOpts ) {
+            callOpts = *pOpts;
+            batch.pOpts = &callOpts;
+        }
+        callOpts.flag &= ~MM_F_CIGAR;
+    }
+    memset(pCtx->stats, 0, sizeof(pCtx->stats));
+    char* pSeqs = (char*)(pSeqsBuf + 1);
+    size_t decodedLen = 0;
+    uint32_t seqId;
+    for ( seqId = 0; seqId != nSeqs; ++seqId ) {
+        uint32_t lenWord;
+        memcpy(&lenWord, pSeqs, sizeof(uint32_t)); // lengths aren't necessarily aligned
+        pSeqs += sizeof(uint32_t);
+        uint32_t seqLen = lenWord & SEQ_LEN_MASK;
+        int encoding = lenWord >> SEQ_ENCODING_SHIFT;
+        if ( encoding != SEQ_ASCII && encoding != SEQ_4BIT && encoding != SEQ_2BIT ) {
+            return "C code got a sequence with an unknown encoding";
+        }
+        pCtx->pLengths[seqId] = seqLen;
+        pCtx->pSeqStarts[seqId] = pSeqs;
+        pSeqs += encodedSeqBytes(seqLen, encoding);
+        if ( encoding != SEQ_ASCII ) decodedLen += seqLen;
+        pCtx->stats[STAT_N_BASES] += seqLen;
+    }
+    if ( batch.extraFields & RECORD_BAM ) {
+        char* pFields = (char*)(pReadsBuf + 1);
+        for ( seqId = 0; seqId != nSeqs; ++seqId ) {
+            uint32_t nameLen, qualsLen;
+            pCtx->ppReadFields[2 * seqId] = pFields;
+            readField(pCtx, seqId, 0, &nameLen);
+            if ( nameLen < 1 || nameLen > 254 ) return "C code got a read name that won't fit in a BAM record";
+            pFields += sizeof(uint32_t) + nameLen;
+            pCtx->ppReadFields[2 * seqId + 1] = pFields;
+            readField(pCtx, seqId, 1, &qualsLen);
+            pFields += sizeof(uint32_t) + qualsLen;
+            if ( qualsLen && qualsLen != pCtx->pLengths[seqId] ) {
+                return "C code got base qualities that don't match the length of the sequence";
+            }
+        }
+    }
+    if ( decodedLen ) {
+        if ( !ensureCapacity(&pCtx->pDecoded, &pCtx->decodedCapacity, decodedLen) ) {
+            return "C code can't allocate memory for decoding sequences";
+        }
+        char* pDecoded = pCtx->pDecoded;
+        for ( seqId = 0; seqId != nSeqs; ++seqId ) {
+            uint32_t lenWord;
+            memcpy(&lenWord, pCtx->pSeqStarts[seqId] - sizeof(uint32_t), sizeof(uint32_t));
+            int encoding = lenWord >> SEQ_ENCODING_SHIFT;
+            if ( encoding == SEQ_ASCII ) continue;
+            uint32_t seqLen = pCtx->pLengths[seqId];
+            decodeSeq(pDecoded, (unsigned char*)pCtx->pSeqStarts[seqId], seqLen, encoding);
+            pCtx->pSeqStarts[seqId] = pDecoded;
+            pDecoded += seqLen;
+        }
+    }
+    int64_t startTime = nanoTime();
+    kt_for(nThreads, batch.fragMode ? mapFrag : mapSeq, &batch, nItems);
+    int64_t mapTime = nanoTime();
+    if ( pIndex->nParts > 1 ) kt_for(nThreads, mergeSeq, &batch, nSeqs);
+    if ( batch.fragMode ) setSegFlags(pCtx, pIndex->nParts, nFrags);
+    kt_for(nThreads, finishSeq, &batch, nSeqs);
+    pCtx->stats[STAT_MAP_NANOS] = mapTime - startTime;
+    pCtx->stats[STAT_FINISH_NANOS] = nanoTime() - mapTime;
+
+    pCtx->pOffsets[0] = 0;
+    for ( seqId = 0; seqId != nSeqs; ++seqId ) {
+        pCtx->pOffsets[seqId + 1] += pCtx->pOffsets[seqId];
+        int nAligns = pCtx->pNRegs[(long)seqId * pIndex->nParts];
+        pCtx->stats[STAT_N_ALIGNMENTS] += nAligns;
+        if ( !nAligns ) pCtx->stats[STAT_N_UNMAPPED] += 1;
+    }
+    size_t totLen = pCtx->pOffsets[nSeqs];
+    pCtx->stats[STAT_RESULT_BYTES] = totLen;
+    if ( !ensureCapacity(&pCtx->pArena, &pCtx->arenaCapacity, totLen ? totLen : 1) ) {
+        for ( seqId = 0; seqId != nSeqs; ++seqId ) freeSeqResults(&batch, seqId);
+        return "C code can't create memory for alignment buffer";
+    }
+    int64_t encodeStartTime = nanoTime();
+    kt_for(nThreads, encodeSeq, &batch, nSeqs);
+    pCtx->stats[STAT_ENCODE_NANOS] = nanoTime() - encodeStartTime;
+    *pResultsLen = totLen;
+    return 0;
+}
+
+
+// the JNI entry point:  returns a ByteBuffer over the context's result arena (valid until the next call)
 JNIEXPORT jobject JNICALL
 Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_createAlignments(
-                JNIEnv* env, jclass cls, jlong idxAddr, jobject optsBuf, jobject seqsBuf ) {
+                JNIEnv* env, jclass cls, jlong idxAddr, jlong ctxAddr, jobject optsBuf, jobject seqsBuf,
+                jobject readsBuf, jintArray segCounts, jint extraFields, jint nThreads ) {
     if ( !idxAddr ) {
         throwErrorMessage(env, "C code can't align with a null index address");
         return 0;
     }
-    mm_idx_t* pIdx = (mm_idx_t*)idxAddr;
+    if ( !ctxAddr ) {
+        throwErrorMessage(env, "C code can't align with a null aligner context address");
+        return 0;
+    }
     mm_mapopt_t* pOpts = (*env)->GetDirectBufferAddress(env, optsBuf);
     if ( !pOpts ) {
         throwErrorMessage(env, "C code can't get address for opts ByteBuffer");
         return 0;
     }
-    uint32_t* pLengths = (*env)->GetDirectBufferAddress(env, seqsBuf);
-    if ( !pLengths ) {
+    uint32_t* pSeqsBuf = (*env)->GetDirectBufferAddress(env, seqsBuf);
+    if ( !pSeqsBuf ) {
         throwErrorMessage(env, "C code can't get address for seqs ByteBuffer");
         return 0;
     }
-
-    uint32_t nSeqs = *pLengths++;
-    char* pSeqs = (char*)(pLengths + nSeqs);
-    mm_tbuf_t* pTBuf = mm_tbuf_init();
-    uint32_t** allAlignsBase = calloc(nSeqs, sizeof(uint32_t*));
-    if ( !allAlignsBase ) {
-        throwErrorMessage(env, "C code can't allocate temporary memory for alignments");
+    uint32_t* pReadsBuf = 0;
+    if ( readsBuf && !(pReadsBuf = (*env)->GetDirectBufferAddress(env, readsBuf)) ) {
+        throwErrorMessage(env, "C code can't get address for reads ByteBuffer");
         return 0;
     }
-    uint32_t** ppAligns = allAlignsBase;
-    uint32_t** ppAlignsEnd = ppAligns + nSeqs;
-    int seqId;
-    int nAligns;
-    for ( seqId = 0; seqId != nSeqs; ++seqId ) {
-        uint32_t seqLen = *pLengths++;
-        nAligns = 0;
-        mm_reg1_t* pAlignsBase = mm_map(pIdx, seqLen, pSeqs, &nAligns, pTBuf, pOpts, 0);
-        pSeqs += seqLen;
-        size_t len = sizeof(uint32_t); // space for nAligns
-        mm_reg1_t* pAlign = pAlignsBase;
-        mm_reg1_t* pEnd = pAlign + nAligns;
-        while ( pAlign != pEnd ) {
-            uint32_t nCigar = pAlign->p ? (pAlign->p->n_cigar + (pAlign->qs > 0) + (pAlign->qe < seqLen) + 1) : 0;
-            len += (5 + nCigar) * sizeof(uint32_t);
-            pAlign += 1;
-        }
-        uint32_t* buf = malloc(len + sizeof(uint32_t)); // extra space for buffer len
-        *ppAligns++ = buf;
-        if ( buf ) {
-            *buf++ = len;
-            *buf++ = nAligns;
-        }
-        pAlign = pAlignsBase;
-        while ( pAlign != pEnd ) {
-            if ( buf ) {
-                int samFlag = 0;
-                if ( pAlign->rev ) samFlag |= 0x10;
-                if ( pAlign->parent != pAlign->id ) samFlag |= 0x100;
-                else if ( !pAlign->sam_pri ) samFlag |= 0x800;
-                *buf++ = samFlag;
-                *buf++ = pAlign->rid;
-                *buf++ = pAlign->rs;
-                *buf++ = pAlign->mapq;
-                if ( !pAlign->p ) {
-                    *buf++ = 0;
-                } else {
-                    *buf++ = pAlign->p->n_cigar + (pAlign->qs > 0) + (pAlign->qe < seqLen);
-                    *buf++ = pAlign->blen - pAlign->mlen + pAlign->p->n_ambi;
-                    if ( !pAlign->rev && pAlign->qs > 0 ) {
-                        *buf++ = (pAlign->qs << 4) | 4; // soft-clip at the beginning
-                    } else if ( pAlign->rev && pAlign->qe < seqLen ) {
-                        *buf++ = ((seqLen - pAlign->qe) << 4) | 4; // final soft-clip reversed to beginning
-                    }
-                    uint32_t nCigar = pAlign->p->n_cigar;
-                    memcpy(buf, pAlign->p->cigar, nCigar * sizeof(uint32_t));
-                    buf += nCigar;
-                    if ( !pAlign->rev && pAlign->qe < seqLen ) {
-                        *buf++ = ((seqLen - pAlign->qe) << 4) | 4; // final soft-clip
-                    } else if ( pAlign->rev && pAlign->qs > 0 ) {
-                        *buf++ = (pAlign->qs << 4) | 4; // initial soft-clip reversed to end
-                    }
-                }
-            }
-            free(pAlign->p);
-            pAlign += 1;
-        }
-        free(pAlignsBase);
-        if ( !buf ) break;
-    }
-    mm_tbuf_destroy(pTBuf);
-    ppAligns = allAlignsBase;
-    uint32_t totLen = 0;
-    while ( ppAligns != ppAlignsEnd ) {
-        uint32_t* pBuf = *ppAligns++;
-        if ( !pBuf ) {
-            totLen = 0;
-            break;
-        }
-        totLen += *pBuf;
-    }
-    char* allBufBase = totLen ? malloc(totLen) : 0;
-    char* allBuf = allBufBase;
-    ppAligns = allAlignsBase;
-    while ( ppAligns != ppAlignsEnd ) {
-        uint32_t* pBuf = *ppAligns++;
-        int len = *pBuf;
-        if ( allBuf ) {
-            memcpy(allBuf, pBuf + 1, len);
-            allBuf += len;
+    jint* pSegCounts = 0;
+    uint32_t nFrags = 0;
+    if ( segCounts ) {
+        pSegCounts = (*env)->GetIntArrayElements(env, segCounts, 0);
+        if ( !pSegCounts ) {
+            throwErrorMessage(env, "C code can't get segment counts for fragments");
+            return 0;
         }
-        free(pBuf);
+        nFrags = (*env)->GetArrayLength(env, segCounts);
     }
-    ppAligns = ppAlignsEnd;
-    while ( ppAligns != ppAlignsEnd ) {
-        free(*ppAligns++);
-    }
-    free(allAlignsBase);
-    if ( !allBufBase ) {
-        throwErrorMessage(env, "C code can't create memory for alignment buffer");
+    AlignerContext* pCtx = (AlignerContext*)ctxAddr;
+    size_t resultsLen = 0;
+    const char* errMsg = alignBatch((IndexHandle*)idxAddr, pCtx, pOpts, pSeqsBuf, pReadsBuf, (int32_t*)pSegCounts,
+                                    nFrags, extraFields, nThreads, &resultsLen);
+    if ( pSegCounts ) (*env)->ReleaseIntArrayElements(env, segCounts, pSegCounts, JNI_ABORT);
+    if ( errMsg ) {
+        throwErrorMessage(env, (char*)errMsg);
         return 0;
     }
-    jobject alnBuf = (*env)->NewDirectByteBuffer(env, allBufBase, totLen);
-    if ( !alnBuf ) {
-        free(allBuf);
-        throwErrorMessage(env, "C code can't create ByteBuffer for alignments");
-    }
+    jobject alnBuf = (*env)->NewDirectByteBuffer(env, pCtx->pArena, resultsLen);
+    if ( !alnBuf ) throwErrorMessage(env, "C code can't create ByteBuffer for alignments");
     return alnBuf;
 }
 
+// the same thing as a plain C function, for callers that don't go through JNI (i.e., MiniMap2ForeignBackend, which
+// uses Java's foreign function API).  the buffers are the memory behind the ByteBuffers that createAlignments takes.
+// on success, returns 0 and sets *ppResults and *pResultsLen to the context's result arena.  otherwise, returns an
+// error message (a string constant).
+JNIEXPORT const char*
+mm2j_align( void* pIdx, void* pCtx, void* pOpts, void* pSeqsBuf, void* pReadsBuf, const int32_t* pSegCounts,
+            int32_t nFrags, int32_t extraFields, int32_t nThreads, char** ppResults, size_t* pResultsLen ) {
+    if ( !pIdx ) return "C code can't align with a null index address";
+    if ( !pCtx ) return "C code can't align with a null aligner context address";
+    if ( !pOpts || !pSeqsBuf ) return "C code can't align with null options or sequences";
+    const char* errMsg = alignBatch(pIdx, pCtx, pOpts, pSeqsBuf, pReadsBuf, pSegCounts, nFrags, extraFields, nThreads,
+                                    pResultsLen);
+    if ( !errMsg ) *ppResults = ((AlignerContext*)pCtx)->pArena;
+    return errMsg;
+}
+
 // returns a ByteBuffer with the reference contig names concatenated
 JNIEXPORT jobject JNICALL
 Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_getRefNames( JNIEnv* env, jclass cls, jlong idxAddr ) {
@@ -243,24 +1982,32 @@ Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_getRefNames( JNI
         throwErrorMessage(env, "C code can't get ref names from null index address");
         return 0;
     }
-    mm_idx_t* pIdx = (mm_idx_t*)idxAddr;
-    uint32_t nSeqs = pIdx->n_seq;
-    mm_idx_seq_t* pSeqs = pIdx->seq;
-    mm_idx_seq_t* pEnd = pSeqs + nSeqs;
-    uint32_t bufLen = nSeqs; // a null byte for each name
-    while ( pSeqs != pEnd ) bufLen += strlen(pSeqs++->name);
-    char* bufBase = malloc(bufLen);
+    IndexHandle* pHandle = (IndexHandle*)idxAddr;
+    uint32_t bufLen = 0;
+    int partId;
+    for ( partId = 0; partId != pHandle->nParts; ++partId ) {
+        mm_idx_t* pIdx = pHandle->ppParts[partId];
+        mm_idx_seq_t* pSeqs = pIdx->seq;
+        mm_idx_seq_t* pEnd = pSeqs + pIdx->n_seq;
+        bufLen += pIdx->n_seq; // a null byte for each name
+        while ( pSeqs != pEnd ) bufLen += strlen(pSeqs++->name);
+    }
+    char* bufBase = malloc(bufLen ? bufLen : 1);
     if ( !bufBase ) {
         throwErrorMessage(env, "C code can't allocate memory for ref names");
         return 0;
     }
     char* buf = bufBase;
-    pSeqs = pIdx->seq;
-    while ( pSeqs != pEnd ) {
-        char* name = pSeqs++->name;
-        uint32_t len = strlen(name) + 1;
-        memcpy(buf, name, len);
-        buf += len;
+    for ( partId = 0; partId != pHandle->nParts; ++partId ) {
+        mm_idx_t* pIdx = pHandle->ppParts[partId];
+        mm_idx_seq_t* pSeqs = pIdx->seq;
+        mm_idx_seq_t* pEnd = pSeqs + pIdx->n_seq;
+        while ( pSeqs != pEnd ) {
+            char* name = pSeqs++->name;
+            uint32_t len = strlen(name) + 1;
+            memcpy(buf, name, len);
+            buf += len;
+        }
     }
     jobject namesBuf = (*env)->NewDirectByteBuffer(env, bufBase, bufLen);
     if ( !namesBuf ) {
@@ -270,6 +2017,93 @@ Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_getRefNames( JNI
     return namesBuf;
 }
 
+// returns the number of parts in the index
+JNIEXPORT jint JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_getNParts( JNIEnv* env, jclass cls, jlong idxAddr ) {
+    if ( !idxAddr ) {
+        throwErrorMessage(env, "C code can't count the parts of null index address");
+        return 0;
+    }
+    return ((IndexHandle*)idxAddr)->nParts;
+}
+
+// returns the lengths of the reference contigs, in refId order across all parts
+JNIEXPORT jintArray JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_getRefLengths( JNIEnv* env, jclass cls, jlong idxAddr ) {
+    if ( !idxAddr ) {
+        throwErrorMessage(env, "C code can't get ref lengths from null index address");
+        return 0;
+    }
+    IndexHandle* pHandle = (IndexHandle*)idxAddr;
+    jsize nRefs = pHandle->nParts ? pHandle->pRidOffsets[pHandle->nParts] : 0;
+    jintArray lengths = (*env)->NewIntArray(env, nRefs);
+    if ( !lengths ) return 0; // an OutOfMemoryError is pending
+    int partId;
+    for ( partId = 0; partId != pHandle->nParts; ++partId ) {
+        mm_idx_t* pIdx = pHandle->ppParts[partId];
+        uint32_t seqId;
+        for ( seqId = 0; seqId != pIdx->n_seq; ++seqId ) {
+            jint len = pIdx->seq[seqId].len;
+            (*env)->SetIntArrayRegion(env, lengths, pHandle->pRidOffsets[partId] + seqId, 1, &len);
+        }
+    }
+    return lengths;
+}
+
+// whether every part of the index holds the reference bases (minimap2 can build an index without them)
+JNIEXPORT jboolean JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_hasRefBases( JNIEnv* env, jclass cls, jlong idxAddr ) {
+    if ( !idxAddr ) {
+        throwErrorMessage(env, "C code can't examine null index address");
+        return JNI_FALSE;
+    }
+    IndexHandle* pHandle = (IndexHandle*)idxAddr;
+    int partId;
+    for ( partId = 0; partId != pHandle->nParts; ++partId ) {
+        if ( !pHandle->ppParts[partId]->S ) return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
+// copies reference bases [start, end) of a contig into dest[destOffset...] as upper-case ASCII, straight from the
+// index's packed sequence.  the caller has checked the arguments.  returns the number of bases copied.
+JNIEXPORT jint JNICALL
+Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_getRefBases( JNIEnv* env, jclass cls, jlong idxAddr,
+                                                                             jint refId, jint start, jint end,
+                                                                             jbyteArray dest, jint destOffset ) {
+    static const char gBaseChars[] = "ACGTNNNNNNNNNNNN";
+    if ( !idxAddr ) {
+        throwErrorMessage(env, "C code can't get ref bases from null index address");
+        return 0;
+    }
+    IndexHandle* pHandle = (IndexHandle*)idxAddr;
+    if ( refId < 0 || !pHandle->nParts || refId >= pHandle->pRidOffsets[pHandle->nParts] ) {
+        throwErrorMessage(env, "C code can't get ref bases for a nonexistent contig");
+        return 0;
+    }
+    int partId = partOf(pHandle, refId);
+    mm_idx_t* pIdx = pHandle->ppParts[partId];
+    if ( !pIdx->S ) {
+        throwErrorMessage(env, "C code can't get ref bases from an index built without them");
+        return 0;
+    }
+    uint32_t localRid = refId - pHandle->pRidOffsets[partId];
+    uint32_t len = pIdx->seq[localRid].len;
+    if ( (uint32_t)end > len ) end = len;
+    if ( start < 0 || start >= end ) return 0;
+    uint8_t* pDest = (*env)->GetPrimitiveArrayCritical(env, dest, 0);
+    if ( !pDest ) {
+        throwErrorMessage(env, "C code can't access array for ref bases");
+        return 0;
+    }
+    uint8_t* pBases = pDest + destOffset;
+    int nBases = mm_idx_getseq(pIdx, localRid, start, end, pBases);
+    int idx;
+    for ( idx = 0; idx < nBases; ++idx ) pBases[idx] = gBaseChars[pBases[idx] & 0xf];
+    (*env)->ReleasePrimitiveArrayCritical(env, dest, pDest, 0);
+    return nBases < 0 ? 0 : nBases;
+}
+
 JNIEXPORT jstring JNICALL
 Java_org_broadinstitute_hellbender_utils_minimap2_MiniMap2Index_getVersion( JNIEnv* env, jclass cls ) {
     return (*env)->NewStringUTF(env, MINIMAP2_VERSION);
@@ -3,44 +3,127 @@ package org.broadinstitute.hellbender.utils.minimap2;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Given an open index, this class lets you do alignment of sequences.
  * Don't forget to close it, or you'll leak a little memory.
+ * Each instance holds on to its native thread buffers, its sequence buffer, and its result memory across
+ * calls to alignSeqs, so it pays to reuse an instance for many batches rather than creating a new one each time.
  * Usage pattern:
  *   Create a MiniMap2Aligner on some MiniMap2Index, specifying a preset if desired
  *   Tweak options as necessary using get/set methods.
+ *   Optionally, call setNumThreads to have each call to alignSeqs spread its batch over several native threads.
  *   Align 1 or more chunks of sequences with alignSeqs
  *   Close the MiniMap2Aligner
  * This class is not thread-safe, but it's very light-weight:  just use a separate instance in each thread.
+ * (Or use a MiniMap2AlignerPool, which multiplexes concurrent requests onto a fixed set of aligners.)
  */
 public class MiniMap2Aligner implements AutoCloseable {
 	private final MiniMap2Index index;
 	private ByteBuffer opts;
+	private long context;
+	private final MiniMap2SeqBuffer seqBuffer = new MiniMap2SeqBuffer();
+	private final MiniMap2SeqBuffer readBuffer = new MiniMap2SeqBuffer(); // read names and qualities, for alignToBam
+	private MiniMap2Cleaner.Cleanable cleanable;
+	private int nThreads = 1;
+	private int extraFields = 0;
+	private int filterFlags = 0;
+	private int maxHits = 0;
+	private int minMapQ = 0;
+	private int minAlignmentScore = 0;
+	private final MiniMap2Metrics metrics = new MiniMap2Metrics();
+	private ByteBuffer stats; // the native context's measurements of our most recent call
+	private long batchStartNanos; // when we started marshalling the current batch, or 0 if we didn't marshal it
+	private long nativeStartNanos;
+	private long nativeEndNanos;
+	private int batchNSeqs;
+	private int batchInputBytes;
 	static final int EXPECTED_OPTS_SIZE = 192;
+	// the native measurements of each call, as 64-bit ints (these match STAT_* in the C code)
+	private static final int STAT_MAP_NANOS = 0;
+	private static final int STAT_FINISH_NANOS = 1;
+	private static final int STAT_ENCODE_NANOS = 2;
+	private static final int STAT_N_BASES = 3;
+	private static final int STAT_N_ALIGNMENTS = 4;
+	private static final int STAT_N_UNMAPPED = 5;
+	private static final int STAT_RESULT_BYTES = 6;
+	// passed along with the extra fields to ask for hit records (see mapSeqs).  this matches RECORD_HITS in the C code.
+	private static final int RECORD_HITS = 0x100;
+	// passed along with the extra fields to ask for BAM records (see alignToBam).  this matches RECORD_BAM in the C code.
+	private static final int RECORD_BAM = 0x200;
+	/** the longest read name a BAM record can hold */
+	public static final int MAX_READ_NAME_LENGTH = 254;
+	/** the most segments a fragment may have */
+	public static final int MAX_SEGMENTS = 255;
+	// kinds of alignment that can be filtered out natively (these match FILTER_* in the C code)
+	/** drop secondary alignments (SAM flag 0x100) */
+	public static final int FILTER_NO_SECONDARY = 0x1;
+	/** drop supplementary alignments (SAM flag 0x800) */
+	public static final int FILTER_NO_SUPPLEMENTARY = 0x2;
+	/** keep only each sequence's primary alignment */
+	public static final int FILTER_PRIMARY_ONLY = FILTER_NO_SECONDARY | FILTER_NO_SUPPLEMENTARY;
 
-	public MiniMap2Aligner( final MiniMap2Index index ) { this(index, null); }
+	public MiniMap2Aligner( final MiniMap2Index index ) { this(index, (Preset)null); }
 
+	/** the preset's options come from a template that the index caches, so this is cheap */
 	public MiniMap2Aligner( final MiniMap2Index index, final Preset preset ) {
+		this(index, getTemplate(index, preset));
+	}
+
+	/** creates an aligner whose options are a copy of a template (see MiniMap2Options) */
+	public MiniMap2Aligner( final MiniMap2Index index, final MiniMap2Options options ) {
 		if ( !index.isOpen() ) {
 			throw new MiniMap2Exception("Can't create MiniMap2Aligner: The index has been closed.");
 		}
 		this.index = index;
-		opts = index.createOptions(preset == null ? null : preset.getName());
+		opts = MiniMap2Index.createSeqBuffer(EXPECTED_OPTS_SIZE);
 		if ( opts == null ) {
-			throw new MiniMap2Exception("Can't create MiniMap2Aligner: Unable to retrieve options object.");
+			throw new MiniMap2Exception("Can't create MiniMap2Aligner: Unable to allocate options object.");
 		}
 		opts.order(ByteOrder.nativeOrder()).clear();
-		if ( opts.capacity() != EXPECTED_OPTS_SIZE ) {
+		options.copyTo(opts);
+		context = MiniMap2Index.createAlignerContext();
+		if ( context == 0L ) {
 			close();
-			throw new MiniMap2Exception(
-					"Can't create MiniMap2Aligner: Unexpected options object size suggests wrong version of MiniMap2.");
+			throw new MiniMap2Exception("Can't create MiniMap2Aligner: Unable to create native context.");
 		}
+		// this is a view of the context's memory:  it's freed along with the context
+		stats = MiniMap2Index.getAlignerStats(context).order(ByteOrder.nativeOrder());
+		cleanable = MiniMap2Cleaner.register(this, "MiniMap2Aligner", releaser(opts, seqBuffer, readBuffer, context));
+	}
+
+	// what the cleaner does with an aligner that was never closed.  it mustn't capture the aligner itself.
+	private static Runnable releaser( final ByteBuffer opts, final MiniMap2SeqBuffer seqBuffer,
+									  final MiniMap2SeqBuffer readBuffer, final long context ) {
+		return () -> {
+			MiniMap2Index.destroyByteBuffer(opts);
+			seqBuffer.close();
+			readBuffer.close();
+			MiniMap2Index.destroyAlignerContext(context);
+		};
 	}
 
+	private static MiniMap2Options getTemplate( final MiniMap2Index index, final Preset preset ) {
+		if ( !index.isOpen() ) {
+			throw new MiniMap2Exception("Can't create MiniMap2Aligner: The index has been closed.");
+		}
+		return index.getOptions(preset);
+	}
+
+	/** a snapshot of our current options, which can be used as a template for other aligners */
+	public MiniMap2Options getOptions() { return MiniMap2Options.copyOf(getOpts()); }
+
+	/** replaces all our options with those of a template */
+	public void setOptions( final MiniMap2Options options ) { options.copyTo(getOpts()); }
+
 	/**
 	 * Align some sequences.
 	 * @param sequences A list of byte[]'s that contain base calls (ASCII 'A', 'C', 'G', or 'T').
@@ -52,59 +135,532 @@ public class MiniMap2Aligner implements AutoCloseable {
 
 	/**
 	 * A more abstract version that takes an iterable of things that can be turned into a byte[] of base calls.
+	 * The iterable is traversed just once, and func is called just once for each item.
 	 * @param iterable An iterable over something like a read, that contains a sequence.
 	 * @param func A lambda that picks the sequence out of your read-like thing.
 	 * @param <T> The read-like thing.
 	 * @return A list of (possibly multiple) alignments for each input sequence.
 	 */
 	public <T> List<List<MiniMap2Alignment>> alignSeqs( final Iterable<T> iterable, final Function<T, byte[]> func ) {
-		int nSeqs = 0;
-		int nBases = 0;
+		startSeqs();
 		for ( final T item : iterable ) {
-			nSeqs += 1;
-			nBases += func.apply(item).length;
+			seqBuffer.beginSeq();
+			seqBuffer.put(func.apply(item));
+			seqBuffer.endSeq();
 		}
+		return alignSeqBuffer();
+	}
 
-		final int len = 4 + nSeqs * 4 + nBases;
-		final ByteBuffer seqBuffer = MiniMap2Index.createSeqBuffer(len);
-		if ( seqBuffer == null ) {
-			throw new MiniMap2Exception("Can't create buffer for passing sequences to MiniMap2.");
+	/**
+	 * The most general version:  for each item, the writer puts its base calls into a sink that copies them
+	 * straight into native memory, so no intermediate arrays need to be created.
+	 * @param iterable An iterable over something like a read, that contains a sequence.
+	 * @param writer A lambda that writes the sequence of your read-like thing into the sink.
+	 * @param <T> The read-like thing.
+	 * @return A list of (possibly multiple) alignments for each input sequence.
+	 */
+	public <T> List<List<MiniMap2Alignment>> alignSeqs( final Iterable<T> iterable, final SeqWriter<T> writer ) {
+		startSeqs();
+		for ( final T item : iterable ) {
+			seqBuffer.beginSeq();
+			writer.write(item, seqBuffer);
+			seqBuffer.endSeq();
 		}
-		seqBuffer.order(ByteOrder.nativeOrder()).clear();
+		return alignSeqBuffer();
+	}
 
-		seqBuffer.putInt(nSeqs);
+	/**
+	 * Align sequences that are ranges of a byte[].
+	 * @param bases A pool of base calls.
+	 * @param offsets The offset of each sequence within the pool.
+	 * @param lengths The length of each sequence.
+	 * @return A list of (possibly multiple) alignments for each sequence.
+	 */
+	public List<List<MiniMap2Alignment>> alignSeqs( final byte[] bases, final int[] offsets, final int[] lengths ) {
+		if ( offsets.length != lengths.length ) {
+			throw new IllegalArgumentException("There must be an offset for each length.");
+		}
+		startSeqs();
+		for ( int idx = 0; idx != offsets.length; ++idx ) {
+			seqBuffer.beginSeq();
+			seqBuffer.put(bases, offsets[idx], lengths[idx]);
+			seqBuffer.endSeq();
+		}
+		return alignSeqBuffer();
+	}
+
+	/**
+	 * Align packed sequences, such as the sequences of BAM records, without decoding them first.
+	 * @param packedSeqs The packed bases of each sequence.
+	 * @param lengths The number of bases in each sequence (which the packed lengths don't tell exactly).
+	 * @param encoding How the bases are packed.
+	 * @return A list of (possibly multiple) alignments for each sequence.
+	 */
+	public List<List<MiniMap2Alignment>> alignPackedSeqs( final List<byte[]> packedSeqs, final int[] lengths,
+														  final SeqEncoding encoding ) {
+		if ( packedSeqs.size() != lengths.length ) {
+			throw new IllegalArgumentException("There must be a length for each sequence.");
+		}
+		startSeqs();
+		int idx = 0;
+		for ( final byte[] packedSeq : packedSeqs ) {
+			seqBuffer.beginSeq();
+			seqBuffer.putPacked(packedSeq, 0, lengths[idx++], encoding);
+			seqBuffer.endSeq();
+		}
+		return alignSeqBuffer();
+	}
+
+	/**
+	 * Align sequences held in ByteBuffers.  The bases between each buffer's position and limit are aligned.
+	 * The buffers' positions are not changed.
+	 * @param sequences ByteBuffers (or slices of them) that contain base calls.
+	 * @return A list of (possibly multiple) alignments for each sequence.
+	 */
+	public List<List<MiniMap2Alignment>> alignByteBuffers( final Iterable<ByteBuffer> sequences ) {
+		return alignSeqs(sequences, ( seq, sink ) -> sink.put(seq));
+	}
+
+	/**
+	 * Align read pairs in minimap2's fragment mode, which pairs the mates natively:  it prefers alignments that
+	 * agree with the expected mate orientation and insert size, rescues mates, and sets the paired-end SAM flags
+	 * (0x1, 0x2, 0x8, 0x20, 0x40, 0x80).  Set up the pairing options with a paired preset, like SR, or by hand
+	 * (see setPEOri and setPEBonus).  Fragment mode is switched on just for this call:  alignSeqs still aligns
+	 * each sequence independently.
+	 * @param firstMates The first read of each pair.
+	 * @param secondMates The second read of each pair, in the same order.
+	 * @return For each pair, a list of two lists of alignments:  one for each mate.
+	 */
+	public List<List<List<MiniMap2Alignment>>> alignPairs( final List<byte[]> firstMates,
+														   final List<byte[]> secondMates ) {
+		if ( firstMates.size() != secondMates.size() ) {
+			throw new IllegalArgumentException("There must be a second mate for each first mate.");
+		}
+		final List<List<byte[]>> pairs = new ArrayList<>(firstMates.size());
+		final Iterator<byte[]> secondItr = secondMates.iterator();
+		for ( final byte[] firstMate : firstMates ) {
+			pairs.add(Arrays.asList(firstMate, secondItr.next()));
+		}
+		return alignFragments(pairs);
+	}
+
+	/**
+	 * Like alignPairs, but each fragment may have any number of segments (up to MAX_SEGMENTS).
+	 * In the SAM flags, each segment's mate is the next one, and the last segment's mate is the first.
+	 * @param fragments For each fragment, the base calls of its segments, in order.
+	 * @return For each fragment, a list of alignments for each of its segments.
+	 */
+	public List<List<List<MiniMap2Alignment>>> alignFragments( final List<? extends List<byte[]>> fragments ) {
+		final int[] segCounts = new int[fragments.size()];
+		startSeqs();
+		int fragIdx = 0;
+		for ( final List<byte[]> segments : fragments ) {
+			if ( segments.isEmpty() || segments.size() > MAX_SEGMENTS ) {
+				throw new IllegalArgumentException("A fragment must have between 1 and " + MAX_SEGMENTS + " segments.");
+			}
+			segCounts[fragIdx++] = segments.size();
+			for ( final byte[] segment : segments ) {
+				seqBuffer.beginSeq();
+				seqBuffer.put(segment);
+				seqBuffer.endSeq();
+			}
+		}
+		final Iterator<List<MiniMap2Alignment>> segAligns =
+				decodeAlignments(align(seqBuffer, null, segCounts, extraFields), seqBuffer.getNSeqs(), extraFields).iterator();
+		final List<List<List<MiniMap2Alignment>>> result = new ArrayList<>(segCounts.length);
+		for ( final int segCount : segCounts ) {
+			final List<List<MiniMap2Alignment>> fragAligns = new ArrayList<>(segCount);
+			for ( int segIdx = 0; segIdx != segCount; ++segIdx ) {
+				fragAligns.add(segAligns.next());
+			}
+			result.add(fragAligns);
+		}
+		recordBatch();
+		return result;
+	}
+
+	/**
+	 * Map sequences without aligning them:  minimap2 stops after chaining, so there are no CIGARs, but each hit
+	 * still has its reference and query coordinates, strand, mapQ, and chaining score.  That's several times
+	 * faster than alignSeqs, and enough for screening (e.g., for contamination) or coarse placement.
+	 * The aligner's options are left as they are:  only this call skips base-level alignment.
+	 * The filters apply as usual, with minAlignmentScore applying to the chaining score.  Extra fields don't apply.
+	 * @param sequences A list of byte[]'s that contain base calls.
+	 * @return A list of (possibly multiple) hits for each sequence.
+	 */
+	public List<List<MiniMap2Hit>> mapSeqs( final List<byte[]> sequences ) {
+		return mapSeqs(sequences, ( seq, sink ) -> sink.put(seq));
+	}
+
+	/** Like mapSeqs(List), but the writer puts the base calls of each item straight into native memory. */
+	public <T> List<List<MiniMap2Hit>> mapSeqs( final Iterable<T> iterable, final SeqWriter<T> writer ) {
+		startSeqs();
 		for ( final T item : iterable ) {
-			seqBuffer.putInt(func.apply(item).length);
+			seqBuffer.beginSeq();
+			writer.write(item, seqBuffer);
+			seqBuffer.endSeq();
+		}
+		final ByteBuffer hitBuffer = align(seqBuffer, null, null, RECORD_HITS);
+		hitBuffer.order(ByteOrder.nativeOrder()).position(0).limit(hitBuffer.capacity());
+		int nSeqs = seqBuffer.getNSeqs();
+		final List<List<MiniMap2Hit>> result = new ArrayList<>(nSeqs);
+		while ( nSeqs-- > 0 ) {
+			int nHits = hitBuffer.getInt();
+			final List<MiniMap2Hit> hits = new ArrayList<>(nHits);
+			while ( nHits-- > 0 ) {
+				hits.add(new MiniMap2Hit(hitBuffer));
+			}
+			result.add(hits);
+		}
+		recordBatch();
+		return result;
+	}
+
+	/**
+	 * Align reads, and encode the results natively as BAM records that are ready to write, e.g., into a BGZF stream,
+	 * with no SAMRecords to build and no re-encoding.  Each read gets a record for each of its alignments, in the
+	 * order alignSeqs would return them, or a single unmapped record if it has none (or if the filters drop them all).
+	 * As in minimap2's SAM output:
+	 *   the bases and qualities are reverse-complemented for alignments to the reverse strand,
+	 *   secondary alignments have no bases or qualities, and supplementary alignments are hard-clipped (unless
+	 *     MM_F_SOFTCLIP is set),
+	 *   mapped records have NM, AS, and MD tags, and the primary and supplementary records of a chimeric read have
+	 *     SA tags.  Ask for EXTRA_CS (see setExtraFields) to add a cs tag, too.  The other extra fields don't apply.
+	 * Each read is aligned independently, so the mate fields are left empty (-1, -1, 0).
+	 * The refIDs are the index's contig numbers, so the BAM header must list the contigs in the index's order.
+	 * @param reads An iterable over something like a read.
+	 * @param writer Writes the bases of each read into a sink, and supplies its name and base qualities.
+	 * @param <T> The read-like thing.
+	 * @return The records, back to back, each starting with its block_size, as in a BAM file.  The buffer belongs to
+	 * this aligner:  it's only valid until the aligner's next call, so write it out (or copy it) before then.
+	 */
+	public <T> ByteBuffer alignToBam( final Iterable<T> reads, final BamReadWriter<T> writer ) {
+		startSeqs();
+		readBuffer.start();
+		for ( final T item : reads ) {
+			seqBuffer.beginSeq();
+			writer.write(item, seqBuffer);
+			seqBuffer.endSeq();
+			final byte[] name = writer.getName(item);
+			if ( name.length == 0 || name.length > MAX_READ_NAME_LENGTH ) {
+				throw new IllegalArgumentException("A read name must have between 1 and " + MAX_READ_NAME_LENGTH +
+													" characters.");
+			}
+			readBuffer.beginSeq();
+			readBuffer.put(name);
+			readBuffer.endSeq();
+			final byte[] quals = writer.getQuals(item);
+			readBuffer.beginSeq();
+			if ( quals != null ) readBuffer.put(quals);
+			readBuffer.endSeq();
 		}
+		final ByteBuffer bamBuffer =
+				align(seqBuffer, readBuffer, null, RECORD_BAM | (extraFields & MiniMap2Alignment.EXTRA_CS));
+		bamBuffer.order(ByteOrder.LITTLE_ENDIAN).position(0).limit(bamBuffer.capacity());
+		recordBatch();
+		return bamBuffer;
+	}
+
+	private void startSeqs() {
+		getContext(); // throws if we've been closed
+		batchStartNanos = System.nanoTime();
+		seqBuffer.start();
+	}
+
+	/**
+	 * Align some sequences, putting the results into a reusable, lazily-decoded view rather than a list of lists.
+	 * This creates almost no garbage, which is handy when aligning billions of reads.
+	 * @param sequences A list of byte[]'s that contain base calls.
+	 * @param results Where to put the alignments.  Its previous contents are replaced.
+	 * @return results, for convenience.
+	 */
+	public MiniMap2Alignments alignSeqsInto( final List<byte[]> sequences, final MiniMap2Alignments results ) {
+		return alignSeqsInto(sequences, ( seq, sink ) -> sink.put(seq), results);
+	}
+
+	/**
+	 * Like alignSeqs(Iterable, Function), but puts the results into a reusable, lazily-decoded view.
+	 */
+	public <T> MiniMap2Alignments alignSeqsInto( final Iterable<T> iterable, final Function<T, byte[]> func,
+												 final MiniMap2Alignments results ) {
+		return alignSeqsInto(iterable, ( item, sink ) -> sink.put(func.apply(item)), results);
+	}
+
+	/**
+	 * Like alignSeqs(Iterable, SeqWriter), but puts the results into a reusable, lazily-decoded view.
+	 */
+	public <T> MiniMap2Alignments alignSeqsInto( final Iterable<T> iterable, final SeqWriter<T> writer,
+												 final MiniMap2Alignments results ) {
+		startSeqs();
 		for ( final T item : iterable ) {
-			seqBuffer.put(func.apply(item));
+			seqBuffer.beginSeq();
+			writer.write(item, seqBuffer);
+			seqBuffer.endSeq();
+		}
+		results.load(align(seqBuffer), seqBuffer.getNSeqs(), extraFields);
+		recordBatch();
+		return results;
+	}
+
+	/**
+	 * Align an unbounded stream of read-like things.
+	 * The input is consumed lazily, in batches of about maxBasesPerBatch bases, and the marshalling of each batch
+	 * overlaps the alignment of the previous one.  So memory use is bounded, no matter how long the input.
+	 * The aligner belongs to the returned iterator until it's exhausted or closed.
+	 * @param input An iterator over something like a read, that contains a sequence.
+	 * @param func A lambda that picks the sequence out of your read-like thing.
+	 * @param maxBasesPerBatch About how many bases to align in each native call.
+	 * @param <T> The read-like thing.
+	 * @return An iterator over each input item paired with its alignments, in input order.
+	 */
+	public <T> MiniMap2AlignmentIterator<T> alignStream( final Iterator<T> input, final Function<T, byte[]> func,
+														 final long maxBasesPerBatch ) {
+		return alignStream(input, ( item, sink ) -> sink.put(func.apply(item)), maxBasesPerBatch);
+	}
+
+	/**
+	 * Like alignStream(Iterator, Function, long), but the bases are written directly into native memory.
+	 */
+	public <T> MiniMap2AlignmentIterator<T> alignStream( final Iterator<T> input, final SeqWriter<T> writer,
+														 final long maxBasesPerBatch ) {
+		return new MiniMap2AlignmentIterator<>(this, input, writer, maxBasesPerBatch);
+	}
+
+	/**
+	 * Like alignStream(Iterator, Function, long), but for a Stream.  Close the returned Stream if you don't
+	 * consume it all.
+	 */
+	public <T> Stream<AlignedItem<T>> alignStream( final Stream<T> input, final Function<T, byte[]> func,
+												   final long maxBasesPerBatch ) {
+		final MiniMap2AlignmentIterator<T> itr = alignStream(input.iterator(), func, maxBasesPerBatch);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(itr, Spliterator.ORDERED), false)
+				.onClose(() -> { itr.close(); input.close(); });
+	}
+
+	/** A read-like thing paired with its alignments. */
+	public static final class AlignedItem<T> {
+		private final T item;
+		private final List<MiniMap2Alignment> alignments;
+
+		public AlignedItem( final T item, final List<MiniMap2Alignment> alignments ) {
+			this.item = item;
+			this.alignments = alignments;
 		}
 
-		try {
-			final ByteBuffer alignBuffer = index.align(opts, seqBuffer);
-			if ( alignBuffer == null ) {
-				throw new MiniMap2Exception("Couldn't create alignments.  Reasons are obscure.");
+		public T getItem() { return item; }
+		public List<MiniMap2Alignment> getAlignments() { return alignments; }
+	}
+
+	private List<List<MiniMap2Alignment>> alignSeqBuffer() {
+		final List<List<MiniMap2Alignment>> result = decodeAlignments(align(seqBuffer), seqBuffer.getNSeqs(), extraFields);
+		recordBatch();
+		return result;
+	}
+
+	// aligns the sequences in a buffer that has been filled
+	ByteBuffer align( final MiniMap2SeqBuffer seqs ) {
+		return align(seqs, null, null, extraFields);
+	}
+
+	// reads, if not null, has the name and qualities of each sequence, for BAM records
+	// segCounts, if not null, groups consecutive sequences into fragments that are aligned in fragment mode
+	// recordFields gives the extra fields for alignment records, or asks for hit records or BAM records
+	private ByteBuffer align( final MiniMap2SeqBuffer seqs, final MiniMap2SeqBuffer reads, final int[] segCounts,
+							  final int recordFields ) {
+		nativeStartNanos = System.nanoTime();
+		batchNSeqs = seqs.getNSeqs();
+		batchInputBytes = seqs.size() + (reads == null ? 0 : reads.size());
+		// the alignBuffer belongs to our native context:  it's reused by the next call, and freed when we're closed
+		final ByteBuffer alignBuffer = index.align(getContext(), getOpts(), seqs.finish(),
+				reads == null ? null : reads.finish(), segCounts, recordFields, nThreads);
+		nativeEndNanos = System.nanoTime();
+		if ( alignBuffer == null ) {
+			throw new MiniMap2Exception("Couldn't create alignments.  Reasons are obscure.");
+		}
+		return alignBuffer;
+	}
+
+	// records the metrics of the batch that align just aligned, once its results have been decoded
+	void recordBatch() {
+		final long decodeNanos = System.nanoTime() - nativeEndNanos;
+		final MiniMap2Metrics.BatchStats batchStats = new MiniMap2Metrics.BatchStats(batchNSeqs,
+				stat(STAT_N_BASES), stat(STAT_N_ALIGNMENTS), stat(STAT_N_UNMAPPED),
+				batchInputBytes, stat(STAT_RESULT_BYTES),
+				batchStartNanos == 0L ? 0L : nativeStartNanos - batchStartNanos,
+				nativeEndNanos - nativeStartNanos,
+				stat(STAT_MAP_NANOS), stat(STAT_FINISH_NANOS), stat(STAT_ENCODE_NANOS), decodeNanos);
+		batchStartNanos = 0L;
+		metrics.record(batchStats);
+		index.getMetrics().record(batchStats);
+	}
+
+	private long stat( final int statIdx ) { return stats.getLong(statIdx * Long.BYTES); }
+
+	/** counters and timings for the work this aligner has done (the index totals them for all its aligners) */
+	public MiniMap2Metrics getMetrics() { return metrics; }
+
+	static List<List<MiniMap2Alignment>> decodeAlignments( final ByteBuffer alignBuffer, int nSeqs,
+																final int extraFields ) {
+		alignBuffer.order(ByteOrder.nativeOrder()).position(0).limit(alignBuffer.capacity());
+		final List<List<MiniMap2Alignment>> result = new ArrayList<>(nSeqs);
+		while ( nSeqs-- > 0 ) {
+			int nAligns = alignBuffer.getInt();
+			final List<MiniMap2Alignment> aligns = new ArrayList<>(nAligns);
+			while ( nAligns-- > 0 ) {
+				aligns.add(new MiniMap2Alignment(alignBuffer, extraFields));
 			}
-			try {
-				alignBuffer.order(ByteOrder.nativeOrder()).position(0).limit(alignBuffer.capacity());
-				final List<List<MiniMap2Alignment>> result = new ArrayList<>(nSeqs);
-				while ( nSeqs-- > 0 ) {
-					int nAligns = alignBuffer.getInt();
-					final List<MiniMap2Alignment> aligns = new ArrayList<>(nAligns);
-					while ( nAligns-- > 0 ) {
-						aligns.add(new MiniMap2Alignment(alignBuffer));
-					}
-					result.add(aligns);
-				}
-				return result;
-			} finally {
-				MiniMap2Index.destroyByteBuffer(alignBuffer);
+			result.add(aligns);
+		}
+		return result;
+	}
+
+	/** Accepts the base calls of a sequence, in one or more pieces, and copies them into native memory. */
+	public interface SeqSink {
+		void put( byte[] bases, int offset, int length );
+		default void put( final byte[] bases ) { put(bases, 0, bases.length); }
+		/** copies the bases between the buffer's position and limit, without changing its position */
+		void put( ByteBuffer bases );
+		void put( byte base );
+		/**
+		 * Copies a whole sequence of nBases packed bases, starting at offset, which will be decoded natively.
+		 * It can't be combined with other calls for the same sequence.
+		 */
+		void putPacked( byte[] packedBases, int offset, int nBases, SeqEncoding encoding );
+	}
+
+	/**
+	 * How the bases of a sequence are encoded.  Packed sequences cross into native memory as is, and are decoded to
+	 * ASCII natively just before they're aligned.  That halves (or quarters) the bytes copied, and saves decoding,
+	 * e.g., BAM sequences into a byte[] for each read.
+	 */
+	public enum SeqEncoding {
+		/** a byte for each base call */
+		ASCII(0),
+		/** as in BAM:  two bases per byte, each a 4-bit index into "=ACMGRSVTWYHKDBN", the first in the high nibble */
+		BAM_4BIT(1),
+		/** four bases per byte, each a 2-bit index into "ACGT", the first in the high-order bits */
+		PACKED_2BIT(2);
+
+		private final int code; // matches SEQ_* in the C code
+		SeqEncoding( final int code ) { this.code = code; }
+		int getCode() { return code; }
+
+		/** the number of bytes that nBases take in this encoding */
+		public int getPackedLength( final int nBases ) {
+			switch ( this ) {
+				case BAM_4BIT: return (int)(((long)nBases + 1) / 2);
+				case PACKED_2BIT: return (int)(((long)nBases + 3) / 4);
+				default: return nBases;
 			}
-		} finally {
-			MiniMap2Index.destroyByteBuffer(seqBuffer);
 		}
 	}
 
+	/** Writes the base calls of a read-like thing into a SeqSink. */
+	@FunctionalInterface
+	public interface SeqWriter<T> {
+		void write( T item, SeqSink sink );
+	}
+
+	/** Writes the base calls of a read-like thing into a SeqSink, and supplies the rest of what a BAM record needs. */
+	public interface BamReadWriter<T> extends SeqWriter<T> {
+		/** the read's name, as ASCII without a terminating null */
+		byte[] getName( T item );
+		/**
+		 * the read's base qualities as raw phred scores (i.e., as BAM stores them, not offset by 33), one for each base,
+		 * or null if it has none
+		 */
+		byte[] getQuals( T item );
+	}
+
+	/** the number of native threads over which each batch of sequences is spread */
+	public int getNumThreads() { return nThreads; }
+
+	/**
+	 * Each call to alignSeqs will distribute its batch of sequences over this many native threads,
+	 * each with its own minimap2 thread buffer.  Results are returned in input order, as usual.
+	 * The call still blocks the calling thread until the whole batch has been aligned.
+	 */
+	public void setNumThreads( final int nThreads ) {
+		if ( nThreads < 1 ) {
+			throw new IllegalArgumentException("The number of threads must be positive.");
+		}
+		this.nThreads = nThreads;
+	}
+
+	/** the extra fields (MiniMap2Alignment.EXTRA_*) that alignments will have */
+	public int getExtraFields() { return extraFields; }
+
+	/**
+	 * Asks for extra fields in each alignment:  a combination of the MiniMap2Alignment.EXTRA_* flags.
+	 * They're computed natively, so you don't have to walk CIGARs or re-read the reference to get them.
+	 * By default there are none, which keeps the results compact.
+	 */
+	public void setExtraFields( final int extraFields ) {
+		final int allFields = MiniMap2Alignment.EXTRA_COORDS | MiniMap2Alignment.EXTRA_SCORES |
+								MiniMap2Alignment.EXTRA_MD | MiniMap2Alignment.EXTRA_CS;
+		if ( (extraFields & ~allFields) != 0 ) {
+			throw new IllegalArgumentException("Unknown extra fields: " + Integer.toHexString(extraFields));
+		}
+		this.extraFields = extraFields;
+	}
+
+	/*
+	 * The filters are applied natively, to each sequence's alignments in the order minimap2 ranks them, before the
+	 * alignments are encoded.  So alignments you'd throw away anyway cost no result memory and no decoding, which
+	 * matters for reads from repetitive regions that can have dozens of secondary hits.
+	 * Filtering doesn't change what's left:  e.g., the mapQ and flags of a primary are the same with or without its
+	 * secondaries, and in fragment mode the mate flags still describe the mate's primary even if it's filtered out.
+	 * Sequences left with no alignments look just like unmapped sequences.
+	 */
+
+	/** the kinds of alignment (FILTER_*) that are dropped */
+	public int getFilterFlags() { return filterFlags; }
+
+	/** drops the kinds of alignment given by a combination of the FILTER_* flags.  by default, none are dropped. */
+	public void setFilterFlags( final int filterFlags ) {
+		if ( (filterFlags & ~FILTER_PRIMARY_ONLY) != 0 ) {
+			throw new IllegalArgumentException("Unknown filter flags: " + Integer.toHexString(filterFlags));
+		}
+		this.filterFlags = filterFlags;
+		updateFilter();
+	}
+
+	/** the most alignments kept for each sequence, or 0 for no limit */
+	public int getMaxHits() { return maxHits; }
+
+	/** keeps only the first (i.e., best) maxHits alignments that pass the other filters.  0 means no limit. */
+	public void setMaxHits( final int maxHits ) {
+		if ( maxHits < 0 ) {
+			throw new IllegalArgumentException("The maximum number of hits can't be negative.");
+		}
+		this.maxHits = maxHits;
+		updateFilter();
+	}
+
+	/** alignments with a lower mapQ are dropped */
+	public int getMinMapQ() { return minMapQ; }
+
+	public void setMinMapQ( final int minMapQ ) {
+		this.minMapQ = minMapQ;
+		updateFilter();
+	}
+
+	/** alignments with a lower score are dropped.  0 (the default) means no minimum. */
+	public int getMinAlignmentScore() { return minAlignmentScore; }
+
+	/**
+	 * Drops alignments that score less than this:  the DP alignment score (AS), or, for alignments without a CIGAR,
+	 * the chaining score.
+	 */
+	public void setMinAlignmentScore( final int minAlignmentScore ) {
+		this.minAlignmentScore = minAlignmentScore;
+		updateFilter();
+	}
+
+	private void updateFilter() {
+		MiniMap2Index.setAlignerFilter(getContext(), filterFlags, maxHits, minMapQ, minAlignmentScore);
+	}
+
 	public boolean isOpen() { return opts != null; }
 
 	public MiniMap2Index getIndex() { return index; }
@@ -112,10 +668,20 @@ public class MiniMap2Aligner implements AutoCloseable {
 	@Override
 	public void close() {
 		synchronized (this) {
+			if ( cleanable != null ) {
+				cleanable.unregister();
+				cleanable = null;
+			}
 			if ( opts != null ) {
 				MiniMap2Index.destroyByteBuffer(opts);
 				opts = null;
 			}
+			seqBuffer.close();
+			readBuffer.close();
+			if ( context != 0L ) {
+				MiniMap2Index.destroyAlignerContext(context);
+				context = 0L;
+			}
 		}
 	}
 
@@ -277,52 +843,61 @@ public class MiniMap2Aligner implements AutoCloseable {
 	public void setMaxSWMat( final long arg ) { getOpts().putLong(176, arg); }
 	// split_prefix is ignored
 
-	public String toString() {
-		return "Flags: " + getOpts().getLong(0) +
-			"\nSeed: " + getOpts().getInt(8) +
-			"\nSDustThreshold: " + getOpts().getInt(12) +
-		    "\nMaxQueryLen: " + getOpts().getInt(16) +
-		    "\nBandwidth: " + getOpts().getInt(20) +
-		    "\nMaxGap: " + getOpts().getInt(24) +
-		    "\nMaxGapRef: " + getOpts().getInt(28) +
-		    "\nMaxFragLen: " + getOpts().getInt(32) +
-		    "\nMaxChainSkip: " + getOpts().getInt(36) +
-		    "\nMaxChainIter: " + getOpts().getInt(40) +
-		    "\nMinCnt: " + getOpts().getInt(44) +
-		    "\nMinChainScore: " + getOpts().getInt(48) +
-		    "\nMaskLevel: " + getOpts().getFloat(52) +
-		    "\nPriRatio: " + getOpts().getFloat(56) +
-		    "\nBestN: " + getOpts().getInt(60) +
-		    "\nMaxJoinLong: " + getOpts().getInt(64) +
-		    "\nMaxJoinShort: " + getOpts().getInt(68) +
-		    "\nMinJoinFlankScore: " + getOpts().getInt(72) +
-		    "\nMinJoinFlankRatio: " + getOpts().getFloat(76) +
-		    "\nA: " + getOpts().getInt(80) +
-		    "\nB: " + getOpts().getInt(84) +
-		    "\nQ: " + getOpts().getInt(88) +
-		    "\nE: " + getOpts().getInt(92) +
-		    "\nQ2: " + getOpts().getInt(96) +
-		    "\nE2: " + getOpts().getInt(100) +
-		    "\nScoreAmbi: " + getOpts().getInt(104) +
-		    "\nNonCan: " + getOpts().getInt(108) +
-		    "\nJuncBonus: " + getOpts().getInt(112) +
-		    "\nZDrop: " + getOpts().getInt(116) +
-		    "\nZDropInv: " + getOpts().getInt(120) +
-		    "\nEndBonus: " + getOpts().getInt(124) +
-		    "\nMinDPMax: " + getOpts().getInt(128) +
-		    "\nMinKSWLen: " + getOpts().getInt(132) +
-		    "\nAnchorExtLen: " + getOpts().getInt(136) +
-		    "\nAnchorExtShift: " + getOpts().getInt(140) +
-		    "\nMaxClipRatio: " + getOpts().getFloat(144) +
-		    "\nPEOri: " + getOpts().getInt(148) +
-		    "\nPEBonus: " + getOpts().getInt(152) +
-		    "\nMidOccFrac: " + getOpts().getFloat(156) +
-		    "\nMinMidOcc: " + getOpts().getInt(160) +
-		    "\nMidOcc: " + getOpts().getInt(164) +
-		    "\nMaxOcc: " + getOpts().getInt(168) +
-		    "\nMiniBatchSize: " + getOpts().getInt(172) +
-		    "\nMaxSWMat: " + getOpts().getLong(176);
+	public String toString() { return describeOptions(getOpts()); }
+
+	static String describeOptions( final ByteBuffer opts ) {
+		return "Flags: " + opts.getLong(0) +
+			"\nSeed: " + opts.getInt(8) +
+			"\nSDustThreshold: " + opts.getInt(12) +
+		    "\nMaxQueryLen: " + opts.getInt(16) +
+		    "\nBandwidth: " + opts.getInt(20) +
+		    "\nMaxGap: " + opts.getInt(24) +
+		    "\nMaxGapRef: " + opts.getInt(28) +
+		    "\nMaxFragLen: " + opts.getInt(32) +
+		    "\nMaxChainSkip: " + opts.getInt(36) +
+		    "\nMaxChainIter: " + opts.getInt(40) +
+		    "\nMinCnt: " + opts.getInt(44) +
+		    "\nMinChainScore: " + opts.getInt(48) +
+		    "\nMaskLevel: " + opts.getFloat(52) +
+		    "\nPriRatio: " + opts.getFloat(56) +
+		    "\nBestN: " + opts.getInt(60) +
+		    "\nMaxJoinLong: " + opts.getInt(64) +
+		    "\nMaxJoinShort: " + opts.getInt(68) +
+		    "\nMinJoinFlankScore: " + opts.getInt(72) +
+		    "\nMinJoinFlankRatio: " + opts.getFloat(76) +
+		    "\nA: " + opts.getInt(80) +
+		    "\nB: " + opts.getInt(84) +
+		    "\nQ: " + opts.getInt(88) +
+		    "\nE: " + opts.getInt(92) +
+		    "\nQ2: " + opts.getInt(96) +
+		    "\nE2: " + opts.getInt(100) +
+		    "\nScoreAmbi: " + opts.getInt(104) +
+		    "\nNonCan: " + opts.getInt(108) +
+		    "\nJuncBonus: " + opts.getInt(112) +
+		    "\nZDrop: " + opts.getInt(116) +
+		    "\nZDropInv: " + opts.getInt(120) +
+		    "\nEndBonus: " + opts.getInt(124) +
+		    "\nMinDPMax: " + opts.getInt(128) +
+		    "\nMinKSWLen: " + opts.getInt(132) +
+		    "\nAnchorExtLen: " + opts.getInt(136) +
+		    "\nAnchorExtShift: " + opts.getInt(140) +
+		    "\nMaxClipRatio: " + opts.getFloat(144) +
+		    "\nPEOri: " + opts.getInt(148) +
+		    "\nPEBonus: " + opts.getInt(152) +
+		    "\nMidOccFrac: " + opts.getFloat(156) +
+		    "\nMinMidOcc: " + opts.getInt(160) +
+		    "\nMidOcc: " + opts.getInt(164) +
+		    "\nMaxOcc: " + opts.getInt(168) +
+		    "\nMiniBatchSize: " + opts.getInt(172) +
+		    "\nMaxSWMat: " + opts.getLong(176);
 	}
+	private long getContext() {
+		if ( context == 0L ) {
+			throw new IllegalStateException("The aligner has been closed.");
+		}
+		return context;
+	}
+
 	private ByteBuffer getOpts() {
 		if ( opts == null ) {
 			throw new IllegalStateException("The aligner has been closed.");
@@ -0,0 +1,274 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A fixed set of MiniMap2Aligners on a shared MiniMap2Index, each driven by its own worker thread.
+ * Unlike MiniMap2Aligner, this class is thread-safe:  any number of threads may submit batches concurrently,
+ * and each batch is aligned by whichever aligner comes free first.
+ *
+ * There's a bound on the number of batches waiting for an aligner.  When the queue is full, alignAsync
+ * blocks until there's room, which provides back-pressure to the submitters.
+ *
+ * alignSeqs spreads a single batch over all the aligners.  The batch is cut into pieces of about equal cost
+ * (reckoned in bases), long sequences are put in pieces by themselves, and the pieces are queued most expensive
+ * first, so that each aligner takes the next piece as soon as it comes free.  A few long contigs mixed in with
+ * thousands of short reads therefore don't leave all but one aligner idle.
+ *
+ * Close the pool when you're done with it:  that waits for all submitted batches to finish, then closes
+ * the aligners.  The index is not closed -- it belongs to the caller.
+ */
+public class MiniMap2AlignerPool implements AutoCloseable {
+    // the cost of a sequence is its length plus this, which stands in for the fixed cost of seeding and chaining it
+    private static final long PER_SEQ_COST = 64L;
+    // alignSeqs cuts a batch into about this many pieces per aligner, so that there's slack for balancing the load
+    private static final int PIECES_PER_ALIGNER = 4;
+    // but not into pieces smaller than this, which would cost more in overhead than they'd gain in balance
+    private static final long MIN_PIECE_COST = 16384L;
+
+    private final MiniMap2Index index;
+    private final List<MiniMap2Aligner> aligners;
+    private final BlockingQueue<MiniMap2Aligner> idleAligners;
+    private final ThreadPoolExecutor executor;
+    // a permit for each batch that's running or waiting for an aligner
+    private final Semaphore batchPermits;
+    private boolean closed;
+
+    public MiniMap2AlignerPool( final MiniMap2Index index, final int nAligners, final int maxQueuedBatches ) {
+        this(index, null, nAligners, maxQueuedBatches, aligner -> {});
+    }
+
+    /**
+     * @param index The index to align to.
+     * @param preset A set of options for the aligners, or null for the defaults.
+     * @param nAligners The number of aligners (and worker threads) in the pool.
+     * @param maxQueuedBatches The number of batches that can wait for an aligner before alignAsync blocks.
+     * @param configurer Applied to each new aligner, so you can tweak its options.
+     */
+    public MiniMap2AlignerPool( final MiniMap2Index index, final MiniMap2Aligner.Preset preset,
+                                final int nAligners, final int maxQueuedBatches,
+                                final Consumer<MiniMap2Aligner> configurer ) {
+        if ( nAligners < 1 ) {
+            throw new IllegalArgumentException("The number of aligners must be positive.");
+        }
+        if ( maxQueuedBatches < 1 ) {
+            throw new IllegalArgumentException("The maximum number of queued batches must be positive.");
+        }
+        this.index = index;
+        aligners = new ArrayList<>(nAligners);
+        idleAligners = new ArrayBlockingQueue<>(nAligners);
+        try {
+            for ( int idx = 0; idx != nAligners; ++idx ) {
+                final MiniMap2Aligner aligner = new MiniMap2Aligner(index, preset);
+                aligners.add(aligner);
+                configurer.accept(aligner);
+                idleAligners.add(aligner);
+            }
+        } catch ( final RuntimeException re ) {
+            aligners.forEach(MiniMap2Aligner::close);
+            throw re;
+        }
+        // back-pressure comes from the permits, rather than from the queue, so that a submitter that's waiting
+        // for room can't slip a batch into the queue after close has let the workers go:  once the executor is
+        // shut down, it rejects every batch it's given.
+        batchPermits = new Semaphore(nAligners + maxQueuedBatches);
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(nAligners, nAligners, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "MiniMap2AlignerPool-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.prestartAllCoreThreads();
+    }
+
+    public MiniMap2Index getIndex() { return index; }
+
+    public int getNAligners() { return aligners.size(); }
+
+    /**
+     * Align some sequences asynchronously.
+     * The list (and the byte[]'s it contains) must not be modified until the returned future completes.
+     * @param sequences A list of byte[]'s that contain base calls.
+     * @return A future for a list of the same length as the input list, holding the alignments for each sequence.
+     */
+    public CompletableFuture<List<List<MiniMap2Alignment>>> alignAsync( final List<byte[]> sequences ) {
+        return alignAsync(sequences, seq -> seq);
+    }
+
+    /**
+     * A more abstract version that takes an iterable of read-like things.
+     * The iterable must not be modified until the returned future completes.
+     */
+    public <T> CompletableFuture<List<List<MiniMap2Alignment>>> alignAsync( final Iterable<T> iterable,
+                                                                           final Function<T, byte[]> func ) {
+        return apply(aligner -> aligner.alignSeqs(iterable, func));
+    }
+
+    /**
+     * Align a batch of sequences using all the aligners, and wait for the results.
+     * Don't call this from work that's running on the pool:  it waits for the pool's worker threads.
+     * @param sequences A list of byte[]'s that contain base calls.
+     * @return A list of the same length as the input list, holding the alignments for each sequence.
+     */
+    public List<List<MiniMap2Alignment>> alignSeqs( final List<byte[]> sequences ) {
+        return alignSeqs(sequences, seq -> seq);
+    }
+
+    /**
+     * A more abstract version that takes a list of read-like things.
+     * func is applied just once to each item:  the pieces are aligned from the byte[]'s it returned while the
+     * batch was being costed.
+     */
+    public <T> List<List<MiniMap2Alignment>> alignSeqs( final List<T> list, final Function<T, byte[]> func ) {
+        final int nSeqs = list.size();
+        final byte[][] seqs = new byte[nSeqs][];
+        final long[] costs = new long[nSeqs];
+        long totalCost = 0L;
+        for ( int idx = 0; idx != nSeqs; ++idx ) {
+            seqs[idx] = func.apply(list.get(idx));
+            costs[idx] = seqs[idx].length + PER_SEQ_COST;
+            totalCost += costs[idx];
+        }
+        final long pieceCost = Math.max(totalCost / (aligners.size() * PIECES_PER_ALIGNER), MIN_PIECE_COST);
+
+        // group runs of short sequences into pieces, and isolate sequences that cost a piece's worth by themselves
+        final List<Piece> pieces = new ArrayList<>();
+        Piece shortPiece = null;
+        for ( int idx = 0; idx != nSeqs; ++idx ) {
+            if ( costs[idx] >= pieceCost ) {
+                final Piece longPiece = new Piece();
+                longPiece.add(idx, costs[idx]);
+                pieces.add(longPiece);
+                continue;
+            }
+            if ( shortPiece == null ) {
+                shortPiece = new Piece();
+                pieces.add(shortPiece);
+            }
+            shortPiece.add(idx, costs[idx]);
+            if ( shortPiece.cost >= pieceCost ) shortPiece = null;
+        }
+        pieces.sort(Comparator.comparingLong((Piece piece) -> piece.cost).reversed());
+
+        final List<CompletableFuture<List<List<MiniMap2Alignment>>>> futures = new ArrayList<>(pieces.size());
+        for ( final Piece piece : pieces ) {
+            final List<byte[]> pieceSeqs = new ArrayList<>(piece.nSeqs);
+            for ( int idx = 0; idx != piece.nSeqs; ++idx ) {
+                pieceSeqs.add(seqs[piece.seqIndices[idx]]);
+            }
+            futures.add(alignAsync(pieceSeqs));
+        }
+
+        final List<List<MiniMap2Alignment>> result = new ArrayList<>(nSeqs);
+        for ( int idx = 0; idx != nSeqs; ++idx ) {
+            result.add(null); // filled in as the pieces finish
+        }
+        for ( int pieceIdx = 0; pieceIdx != pieces.size(); ++pieceIdx ) {
+            final List<List<MiniMap2Alignment>> pieceAlignments;
+            try {
+                pieceAlignments = futures.get(pieceIdx).join();
+            } catch ( final CompletionException ce ) {
+                final Throwable cause = ce.getCause();
+                if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+                if ( cause instanceof Error ) throw (Error)cause;
+                throw ce;
+            }
+            final Piece piece = pieces.get(pieceIdx);
+            for ( int idx = 0; idx != piece.nSeqs; ++idx ) {
+                result.set(piece.seqIndices[idx], pieceAlignments.get(idx));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Run some arbitrary work on one of the pooled aligners.
+     * The aligner must not be retained by the work, nor closed.
+     */
+    public <R> CompletableFuture<R> apply( final Function<MiniMap2Aligner, R> work ) {
+        final CompletableFuture<R> result = new CompletableFuture<>();
+        // back-pressure:  block the submitter until there's room for another batch
+        try {
+            batchPermits.acquire();
+        } catch ( final InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to queue a batch.", ie);
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    final MiniMap2Aligner aligner = idleAligners.poll();
+                    if ( aligner == null ) { // can't happen:  there are as many aligners as threads
+                        result.completeExceptionally(new MiniMap2Exception("No aligner available."));
+                        return;
+                    }
+                    try {
+                        result.complete(work.apply(aligner));
+                    } catch ( final Throwable t ) {
+                        result.completeExceptionally(t);
+                    } finally {
+                        idleAligners.add(aligner);
+                    }
+                } finally {
+                    batchPermits.release();
+                }
+            });
+        } catch ( final RejectedExecutionException ree ) {
+            batchPermits.release();
+            throw new RejectedExecutionException("The aligner pool has been closed.", ree);
+        }
+        return result;
+    }
+
+    public synchronized boolean isOpen() { return !closed; }
+
+    /** Waits for all submitted batches to finish, then closes the aligners. */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if ( closed ) return;
+            closed = true;
+        }
+        executor.shutdown();
+        boolean interrupted = false;
+        while ( true ) {
+            try {
+                if ( executor.awaitTermination(1L, TimeUnit.MINUTES) ) break;
+            } catch ( final InterruptedException ie ) {
+                interrupted = true;
+            }
+        }
+        aligners.forEach(MiniMap2Aligner::close);
+        if ( interrupted ) Thread.currentThread().interrupt();
+    }
+
+    // some of the sequences of a batch that alignSeqs is spreading over the aligners
+    private static final class Piece {
+        private int[] seqIndices = new int[8];
+        private int nSeqs;
+        private long cost;
+
+        void add( final int seqIdx, final long seqCost ) {
+            if ( nSeqs == seqIndices.length ) seqIndices = Arrays.copyOf(seqIndices, 2 * nSeqs);
+            seqIndices[nSeqs++] = seqIdx;
+            cost += seqCost;
+        }
+    }
+}
@@ -1,17 +1,44 @@
 package org.broadinstitute.hellbender.utils.minimap2;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
+/**
+ * One alignment of a sequence.
+ * Beyond the basic fields, an aligner can be asked for extra fields (see MiniMap2Aligner.setExtraFields), which
+ * minimap2 computes anyway, or can compute cheaply while it still has the reference at hand.
+ * Extra fields that weren't asked for are 0 (or null, for the MD and cs strings).
+ */
 public class MiniMap2Alignment {
+    /** query start and end, and reference end */
+    public static final int EXTRA_COORDS = 0x1;
+    /** DP alignment score (AS), chaining score, and the number of minimizers on the chain */
+    public static final int EXTRA_SCORES = 0x2;
+    /** the MD string */
+    public static final int EXTRA_MD = 0x4;
+    /** the cs string (short form) */
+    public static final int EXTRA_CS = 0x8;
+
     private final int samFlag;
     private final int refId;
     private final int refStart;
     private final int mapQ;
     private final int nm;
     private final String cigar;
+    private final int queryStart;
+    private final int queryEnd;
+    private final int refEnd;
+    private final int alignmentScore;
+    private final int chainScore;
+    private final int nMinimizers;
+    private final String md;
+    private final String cs;
+
+    public MiniMap2Alignment( final ByteBuffer alignBuffer ) { this(alignBuffer, 0); }
 
-    public MiniMap2Alignment( final ByteBuffer alignBuffer ) {
+    /** decodes a native alignment record that has the extra fields listed in extraFields */
+    public MiniMap2Alignment( final ByteBuffer alignBuffer, final int extraFields ) {
         samFlag = alignBuffer.getInt();
         refId = alignBuffer.getInt();
         refStart = alignBuffer.getInt();
@@ -21,21 +48,46 @@ public class MiniMap2Alignment {
         int nCigarWords = alignBuffer.getInt();
         nm = nCigarWords > 0 ? alignBuffer.getInt() : 0;
         while ( nCigarWords-- > 0 ) {
-            final int cigarWord = alignBuffer.getInt();
-            final char operator = "MIDNSHP=X".charAt(cigarWord & 0x0f);
-            sb.append(cigarWord >>> 4).append(operator);
+            appendCigarOp(sb, alignBuffer.getInt());
         }
         cigar = sb.toString();
+
+        final boolean hasCoords = (extraFields & EXTRA_COORDS) != 0;
+        queryStart = hasCoords ? alignBuffer.getInt() : 0;
+        queryEnd = hasCoords ? alignBuffer.getInt() : 0;
+        refEnd = hasCoords ? alignBuffer.getInt() : 0;
+        final boolean hasScores = (extraFields & EXTRA_SCORES) != 0;
+        alignmentScore = hasScores ? alignBuffer.getInt() : 0;
+        chainScore = hasScores ? alignBuffer.getInt() : 0;
+        nMinimizers = hasScores ? alignBuffer.getInt() : 0;
+        md = (extraFields & EXTRA_MD) != 0 ? getString(alignBuffer) : null;
+        cs = (extraFields & EXTRA_CS) != 0 ? getString(alignBuffer) : null;
     }
 
     public MiniMap2Alignment( final int samFlag, final int refId, final int refStart,
                               final int mapQ, final int nm, final String cigar ) {
+        this(samFlag, refId, refStart, mapQ, nm, cigar, 0, 0, 0, 0, 0, 0, null, null);
+    }
+
+    public MiniMap2Alignment( final int samFlag, final int refId, final int refStart,
+                              final int mapQ, final int nm, final String cigar,
+                              final int queryStart, final int queryEnd, final int refEnd,
+                              final int alignmentScore, final int chainScore, final int nMinimizers,
+                              final String md, final String cs ) {
         this.samFlag = samFlag;
         this.refId = refId;
         this.refStart = refStart;
         this.mapQ = mapQ;
         this.nm = nm;
         this.cigar = cigar;
+        this.queryStart = queryStart;
+        this.queryEnd = queryEnd;
+        this.refEnd = refEnd;
+        this.alignmentScore = alignmentScore;
+        this.chainScore = chainScore;
+        this.nMinimizers = nMinimizers;
+        this.md = md;
+        this.cs = cs;
     }
 
     public int getSAMFlag() { return samFlag; }
@@ -44,12 +96,56 @@ public class MiniMap2Alignment {
     public int getMapQ() { return mapQ; }
     public int getNM() { return nm; }
     public String getCigar() { return cigar; }
+    public boolean isReverseStrand() { return (samFlag & 0x10) != 0; }
+
+    /** the start of the aligned part of the query, in the query's original orientation (EXTRA_COORDS) */
+    public int getQueryStart() { return queryStart; }
+    /** the end of the aligned part of the query, in the query's original orientation (EXTRA_COORDS) */
+    public int getQueryEnd() { return queryEnd; }
+    /** the 0-based, exclusive end of the alignment on the reference (EXTRA_COORDS) */
+    public int getRefEnd() { return refEnd; }
+    /** the DP alignment score, i.e., the SAM AS tag (EXTRA_SCORES) */
+    public int getAlignmentScore() { return alignmentScore; }
+    /** the chaining score, i.e., minimap2's s1 tag (EXTRA_SCORES) */
+    public int getChainScore() { return chainScore; }
+    /** the number of minimizers on the chain, i.e., minimap2's cm tag (EXTRA_SCORES) */
+    public int getNMinimizers() { return nMinimizers; }
+    /** the MD string, without the MD:Z: prefix (EXTRA_MD) */
+    public String getMD() { return md; }
+    /** the short-form cs string, without the cs:Z: prefix (EXTRA_CS) */
+    public String getCS() { return cs; }
+
+    /** decodes a string from an alignment record:  a length, and then that many bytes null-padded to 4-byte alignment */
+    static String getString( final ByteBuffer alignBuffer ) {
+        final int len = alignBuffer.getInt();
+        final byte[] bytes = new byte[len];
+        alignBuffer.get(bytes);
+        alignBuffer.position(alignBuffer.position() + (-len & 3));
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /** builds a String CIGAR from nOps BAM-encoded cigar ops (len<<4 | op) */
+    static String cigarString( final int[] ops, final int offset, final int nOps ) {
+        final StringBuilder sb = new StringBuilder();
+        for ( int idx = offset; idx != offset + nOps; ++idx ) {
+            appendCigarOp(sb, ops[idx]);
+        }
+        return sb.toString();
+    }
+
+    private static void appendCigarOp( final StringBuilder sb, final int cigarWord ) {
+        final char operator = "MIDNSHP=X".charAt(cigarWord & 0x0f);
+        sb.append(cigarWord >>> 4).append(operator);
+    }
 
     @Override public boolean equals( final Object obj ) {
         if ( obj == this ) return true;
         if ( !(obj instanceof MiniMap2Alignment) ) return false;
         final MiniMap2Alignment that = (MiniMap2Alignment)obj;
         return this.samFlag == that.samFlag && this.refId == that.refId && this.refStart == that.refStart &&
-                this.mapQ == that.mapQ && this.nm == that.nm && Objects.equals(this.cigar, that.cigar);
+                this.mapQ == that.mapQ && this.nm == that.nm && Objects.equals(this.cigar, that.cigar) &&
+                this.queryStart == that.queryStart && this.queryEnd == that.queryEnd && this.refEnd == that.refEnd &&
+                this.alignmentScore == that.alignmentScore && this.chainScore == that.chainScore &&
+                this.nMinimizers == that.nMinimizers && Objects.equals(this.md, that.md) && Objects.equals(this.cs, that.cs);
     }
 }
@@ -0,0 +1,230 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of alignments in front of a MiniMap2Aligner, for workflows that align the same sequences
+ * over and over (e.g., the contigs and haplotypes of an iterative assembly, or duplicate reads).
+ *
+ * A sequence whose alignments are cached isn't sent to the aligner at all, and identical sequences within a batch
+ * are sent only once.  The cache is keyed by the bases and by a fingerprint of everything about the aligner that
+ * affects its results (its options, extra fields, and filters), so changing the aligner's settings between calls
+ * just makes the old entries unreachable until they're evicted.
+ *
+ * The cache is bounded by an approximate weight in bytes:  the bases of each key, plus the alignments.
+ * The least recently used entries are evicted to keep it under the bound.
+ * Each entry's alignments are an unmodifiable list, shared by every caller that gets them.
+ *
+ * Like the aligner, this class is not thread-safe.  It doesn't own the aligner:  close the aligner yourself.
+ */
+public final class MiniMap2AlignmentCache {
+    // rough sizes of the objects behind an entry, for weighing it
+    private static final long ENTRY_OVERHEAD = 128L;
+    private static final long ALIGNMENT_OVERHEAD = 96L;
+
+    private final MiniMap2Aligner aligner;
+    private final long maxWeight;
+    private final LinkedHashMap<SeqKey, List<MiniMap2Alignment>> entries = new LinkedHashMap<>(1024, .75f, true);
+    private long weight;
+    private Fingerprint fingerprint; // the most recent one, which we reuse in keys while the aligner's unchanged
+    private long hits;
+    private long misses;
+    private long duplicates;
+    private long evictions;
+
+    /**
+     * @param aligner The aligner to which sequences that aren't in the cache are sent.
+     * @param maxWeight About how many bytes the cache may hold.
+     */
+    public MiniMap2AlignmentCache( final MiniMap2Aligner aligner, final long maxWeight ) {
+        if ( maxWeight <= 0L ) {
+            throw new IllegalArgumentException("The maximum weight must be positive.");
+        }
+        this.aligner = aligner;
+        this.maxWeight = maxWeight;
+    }
+
+    public MiniMap2Aligner getAligner() { return aligner; }
+
+    /**
+     * Like MiniMap2Aligner.alignSeqs, but sequences whose alignments are cached aren't aligned again.
+     * The bases are copied into the cache's keys, so you may reuse the arrays afterwards.
+     */
+    public List<List<MiniMap2Alignment>> alignSeqs( final List<byte[]> sequences ) {
+        final Fingerprint currentFingerprint = getFingerprint();
+        final List<List<MiniMap2Alignment>> result = new ArrayList<>(sequences.size());
+        final Map<SeqKey, Integer> missIndices = new HashMap<>();
+        final List<SeqKey> missKeys = new ArrayList<>();
+        final List<byte[]> missSeqs = new ArrayList<>();
+        final int[] resultMissIndices = new int[sequences.size()];
+        int seqIdx = 0;
+        for ( final byte[] seq : sequences ) {
+            final SeqKey key = new SeqKey(seq, currentFingerprint);
+            final List<MiniMap2Alignment> cached = entries.get(key);
+            if ( cached != null ) {
+                hits += 1;
+                result.add(cached);
+                resultMissIndices[seqIdx++] = -1;
+                continue;
+            }
+            final Integer missIdx = missIndices.get(key);
+            if ( missIdx != null ) {
+                duplicates += 1;
+                resultMissIndices[seqIdx++] = missIdx;
+            } else {
+                misses += 1;
+                missIndices.put(key, missKeys.size());
+                resultMissIndices[seqIdx++] = missKeys.size();
+                missKeys.add(key.copy());
+                missSeqs.add(seq);
+            }
+            result.add(null); // filled in once the misses are aligned
+        }
+        if ( missSeqs.isEmpty() ) return result;
+
+        final List<List<MiniMap2Alignment>> missAlignments = aligner.alignSeqs(missSeqs);
+        final List<List<MiniMap2Alignment>> sharedAlignments = new ArrayList<>(missAlignments.size());
+        for ( final List<MiniMap2Alignment> alignments : missAlignments ) {
+            sharedAlignments.add(Collections.unmodifiableList(alignments));
+        }
+        for ( int idx = 0; idx != resultMissIndices.length; ++idx ) {
+            if ( resultMissIndices[idx] != -1 ) result.set(idx, sharedAlignments.get(resultMissIndices[idx]));
+        }
+        for ( int idx = 0; idx != missKeys.size(); ++idx ) {
+            put(missKeys.get(idx), sharedAlignments.get(idx));
+        }
+        return result;
+    }
+
+    /** the number of sequences whose alignments came from the cache */
+    public long getHits() { return hits; }
+
+    /** the number of sequences that had to be aligned */
+    public long getMisses() { return misses; }
+
+    /** the number of sequences that weren't cached, but were identical to another in the same batch */
+    public long getDuplicates() { return duplicates; }
+
+    public long getEvictions() { return evictions; }
+
+    /** the fraction of sequences that weren't sent to the aligner */
+    public double getHitRate() {
+        final long total = hits + misses + duplicates;
+        return total == 0L ? 0. : (double)(hits + duplicates) / total;
+    }
+
+    public int size() { return entries.size(); }
+
+    /** the approximate number of bytes that the cache holds */
+    public long getWeight() { return weight; }
+
+    public long getMaxWeight() { return maxWeight; }
+
+    public void clear() {
+        entries.clear();
+        weight = 0L;
+    }
+
+    public void resetStats() {
+        hits = misses = duplicates = evictions = 0L;
+    }
+
+    private void put( final SeqKey key, final List<MiniMap2Alignment> alignments ) {
+        final long entryWeight = weigh(key, alignments);
+        if ( entryWeight > maxWeight ) return; // it would just evict everything, including itself
+        final List<MiniMap2Alignment> previous = entries.put(key, alignments);
+        if ( previous != null ) weight -= weigh(key, previous);
+        weight += entryWeight;
+        final Iterator<Map.Entry<SeqKey, List<MiniMap2Alignment>>> itr = entries.entrySet().iterator();
+        while ( weight > maxWeight ) {
+            final Map.Entry<SeqKey, List<MiniMap2Alignment>> eldest = itr.next();
+            weight -= weigh(eldest.getKey(), eldest.getValue());
+            itr.remove();
+            evictions += 1;
+        }
+    }
+
+    private static long weigh( final SeqKey key, final List<MiniMap2Alignment> alignments ) {
+        long entryWeight = ENTRY_OVERHEAD + key.bases.length;
+        for ( final MiniMap2Alignment alignment : alignments ) {
+            entryWeight += ALIGNMENT_OVERHEAD + 2L * alignment.getCigar().length();
+            if ( alignment.getMD() != null ) entryWeight += 2L * alignment.getMD().length();
+            if ( alignment.getCS() != null ) entryWeight += 2L * alignment.getCS().length();
+        }
+        return entryWeight;
+    }
+
+    private Fingerprint getFingerprint() {
+        final Fingerprint current = new Fingerprint(aligner);
+        if ( !current.equals(fingerprint) ) fingerprint = current;
+        return fingerprint;
+    }
+
+    // everything about an aligner's configuration that changes its results
+    private static final class Fingerprint {
+        private final MiniMap2Options options;
+        private final int extraFields;
+        private final int filterFlags;
+        private final int maxHits;
+        private final int minMapQ;
+        private final int minAlignmentScore;
+        private final int hashCode;
+
+        Fingerprint( final MiniMap2Aligner aligner ) {
+            options = aligner.getOptions();
+            extraFields = aligner.getExtraFields();
+            filterFlags = aligner.getFilterFlags();
+            maxHits = aligner.getMaxHits();
+            minMapQ = aligner.getMinMapQ();
+            minAlignmentScore = aligner.getMinAlignmentScore();
+            hashCode = Arrays.hashCode(new int[] { options.hashCode(), extraFields, filterFlags, maxHits, minMapQ,
+                                                   minAlignmentScore });
+        }
+
+        @Override public boolean equals( final Object obj ) {
+            if ( obj == this ) return true;
+            if ( !(obj instanceof Fingerprint) ) return false;
+            final Fingerprint that = (Fingerprint)obj;
+            return options.equals(that.options) && extraFields == that.extraFields &&
+                    filterFlags == that.filterFlags && maxHits == that.maxHits &&
+                    minMapQ == that.minMapQ && minAlignmentScore == that.minAlignmentScore;
+        }
+
+        @Override public int hashCode() { return hashCode; }
+    }
+
+    private static final class SeqKey {
+        private final byte[] bases;
+        private final Fingerprint fingerprint;
+        private final int hashCode;
+
+        SeqKey( final byte[] bases, final Fingerprint fingerprint ) {
+            this(bases, fingerprint, 31 * Arrays.hashCode(bases) + fingerprint.hashCode());
+        }
+
+        private SeqKey( final byte[] bases, final Fingerprint fingerprint, final int hashCode ) {
+            this.bases = bases;
+            this.fingerprint = fingerprint;
+            this.hashCode = hashCode;
+        }
+
+        /** a key that doesn't share the caller's array */
+        SeqKey copy() { return new SeqKey(bases.clone(), fingerprint, hashCode); }
+
+        @Override public boolean equals( final Object obj ) {
+            if ( obj == this ) return true;
+            if ( !(obj instanceof SeqKey) ) return false;
+            final SeqKey that = (SeqKey)obj;
+            return hashCode == that.hashCode && Arrays.equals(bases, that.bases) && fingerprint.equals(that.fingerprint);
+        }
+
+        @Override public int hashCode() { return hashCode; }
+    }
+}
@@ -0,0 +1,185 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Aligns an unbounded stream of read-like things, returning each one paired with its alignments, in input order.
+ * Get one from MiniMap2Aligner.alignStream.
+ *
+ * The input is cut into batches holding a bounded number of bases, and processing is pipelined:
+ * while one batch is being aligned by native code on a background thread, the next batch is marshalled into
+ * a second native buffer on the caller's thread.  At most three batches are held in memory at once
+ * (the one being consumed, the one being aligned, and the one waiting to be aligned).
+ *
+ * The aligner belongs to the iterator until it's exhausted or closed:  don't use it for anything else meanwhile.
+ * Close the iterator if you abandon it before it's exhausted, so that its buffers and thread are released.
+ */
+public final class MiniMap2AlignmentIterator<T> implements Iterator<MiniMap2Aligner.AlignedItem<T>>, AutoCloseable {
+    private final MiniMap2Aligner aligner;
+    private final Iterator<T> input;
+    private final MiniMap2Aligner.SeqWriter<T> writer;
+    private final long maxBasesPerBatch;
+    private final ExecutorService executor;
+    private Batch<T> prepared; // marshalled, and waiting to be aligned
+    private Batch<T> inFlightBatch; // being aligned
+    private Future<Batch<T>> inFlight;
+    private Batch<T> current; // being consumed
+    private int currentIdx;
+    private boolean closed;
+
+    MiniMap2AlignmentIterator( final MiniMap2Aligner aligner, final Iterator<T> input,
+                               final MiniMap2Aligner.SeqWriter<T> writer, final long maxBasesPerBatch ) {
+        if ( maxBasesPerBatch <= 0 ) {
+            throw new IllegalArgumentException("The maximum number of bases per batch must be positive.");
+        }
+        if ( !aligner.isOpen() ) {
+            throw new MiniMap2Exception("Can't align:  the aligner has been closed.");
+        }
+        this.aligner = aligner;
+        this.input = input;
+        this.writer = writer;
+        this.maxBasesPerBatch = maxBasesPerBatch;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "MiniMap2AlignmentIterator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final Batch<T> first = prepare(new MiniMap2SeqBuffer());
+            if ( first != null ) {
+                inFlight = submit(first);
+                prepared = prepare(new MiniMap2SeqBuffer());
+            }
+        } catch ( final RuntimeException re ) {
+            close();
+            throw re;
+        }
+    }
+
+    @Override public boolean hasNext() {
+        if ( current != null && currentIdx < current.items.size() ) return true;
+        current = null;
+        if ( inFlight == null ) {
+            close();
+            return false;
+        }
+        current = await(inFlight);
+        currentIdx = 0;
+        inFlight = null;
+        inFlightBatch = null;
+        final MiniMap2SeqBuffer freedBuffer = current.buffer;
+        current.buffer = null;
+        if ( prepared != null ) {
+            inFlight = submit(prepared);
+            prepared = null;
+            // marshal the next batch while the one we just submitted is aligned
+            prepared = prepare(freedBuffer);
+        } else {
+            freedBuffer.close();
+        }
+        return currentIdx < current.items.size() || hasNext();
+    }
+
+    @Override public MiniMap2Aligner.AlignedItem<T> next() {
+        if ( !hasNext() ) throw new NoSuchElementException();
+        final MiniMap2Aligner.AlignedItem<T> result =
+                new MiniMap2Aligner.AlignedItem<>(current.items.get(currentIdx), current.alignments.get(currentIdx));
+        currentIdx += 1;
+        return result;
+    }
+
+    /** waits for any in-flight native work to finish, then frees the buffers and stops the background thread */
+    @Override public void close() {
+        if ( closed ) return;
+        closed = true;
+        if ( inFlight != null ) {
+            // native code may be reading the in-flight buffer, so we must wait for it before freeing anything
+            boolean interrupted = false;
+            while ( true ) {
+                try {
+                    inFlight.get();
+                    break;
+                } catch ( final InterruptedException ie ) {
+                    interrupted = true;
+                } catch ( final ExecutionException ee ) {
+                    break; // we're abandoning the results anyway
+                }
+            }
+            if ( interrupted ) Thread.currentThread().interrupt();
+            inFlight = null;
+            inFlightBatch.buffer.close();
+            inFlightBatch = null;
+        }
+        executor.shutdown();
+        if ( prepared != null ) {
+            prepared.buffer.close();
+            prepared = null;
+        }
+    }
+
+    // fills the buffer with the next batch of input, or closes it and returns null if there's no more input
+    private Batch<T> prepare( final MiniMap2SeqBuffer buffer ) {
+        try {
+            if ( !input.hasNext() ) {
+                buffer.close();
+                return null;
+            }
+            final List<T> items = new ArrayList<>();
+            buffer.start();
+            do {
+                final T item = input.next();
+                buffer.beginSeq();
+                writer.write(item, buffer);
+                buffer.endSeq();
+                items.add(item);
+            } while ( input.hasNext() && buffer.size() < maxBasesPerBatch );
+            return new Batch<>(items, buffer);
+        } catch ( final RuntimeException re ) {
+            buffer.close();
+            throw re;
+        }
+    }
+
+    private Future<Batch<T>> submit( final Batch<T> batch ) {
+        inFlightBatch = batch;
+        return executor.submit(() -> {
+            batch.alignments = MiniMap2Aligner.decodeAlignments(aligner.align(batch.buffer), batch.items.size(),
+                                                                aligner.getExtraFields());
+            aligner.recordBatch();
+            return batch;
+        });
+    }
+
+    private Batch<T> await( final Future<Batch<T>> future ) {
+        try {
+            return future.get();
+        } catch ( final InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new MiniMap2Exception("Interrupted while waiting for alignments.", ie);
+        } catch ( final ExecutionException ee ) {
+            close();
+            final Throwable cause = ee.getCause();
+            if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+            throw new MiniMap2Exception("Alignment failed.", ee);
+        }
+    }
+
+    private static final class Batch<T> {
+        final List<T> items;
+        MiniMap2SeqBuffer buffer;
+        List<List<MiniMap2Alignment>> alignments;
+
+        Batch( final List<T> items, final MiniMap2SeqBuffer buffer ) {
+            this.items = items;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact, reusable view of the alignments for a batch of sequences.
+ * The native results are copied in bulk into an int[], and fields are decoded only when you ask for them,
+ * so filling an instance creates no per-alignment garbage.  CIGARs are available as raw BAM-encoded ops
+ * (len&lt;&lt;4 | op), and a String CIGAR is only built if you call getCigarString.
+ *
+ * Alignments are addressed by an index that runs over the whole batch:
+ *   for ( int seqIdx = 0; seqIdx != alignments.getNSeqs(); ++seqIdx ) {
+ *       for ( int alnIdx = alignments.getFirstAlignment(seqIdx); alnIdx != alignments.getEndAlignment(seqIdx); ++alnIdx ) {
+ *           ... alignments.getRefId(alnIdx) ...
+ *       }
+ *   }
+ *
+ * The extra fields an aligner was asked for (see MiniMap2Aligner.setExtraFields) are available too.
+ * As in MiniMap2Alignment, those that weren't asked for are 0 or null.
+ *
+ * Pass the same instance to MiniMap2Aligner.alignSeqsInto over and over:  each call replaces its contents,
+ * and its arrays are only reallocated when a batch is bigger than any seen before.
+ * This class is not thread-safe.
+ */
+public final class MiniMap2Alignments {
+    // offsets of fields within each alignment record
+    private static final int SAM_FLAG = 0;
+    private static final int REF_ID = 1;
+    private static final int REF_START = 2;
+    private static final int MAP_Q = 3;
+    private static final int N_CIGAR = 4;
+    private static final int NM = 5;
+    private static final int CIGAR = 6;
+    // offsets of the optional fields from the end of the cigar ops
+    private static final int QUERY_START = 0;
+    private static final int QUERY_END = 1;
+    private static final int REF_END = 2;
+    private static final int N_COORDS = 3;
+    private static final int ALIGNMENT_SCORE = 0;
+    private static final int CHAIN_SCORE = 1;
+    private static final int N_MINIMIZERS = 2;
+    private static final int N_SCORES = 3;
+
+    private int[] data = new int[0];
+    private byte[] bytes = new byte[0]; // another copy of the results, only when there are strings to decode
+    private int extraFields;
+    private int nSeqs;
+    private int[] seqStarts = new int[1]; // index of the first alignment for each sequence, plus an end marker
+    private int nAlignments;
+    private int[] alignmentOffsets = new int[0]; // the offset in data of each alignment record
+
+    /** replaces our contents with the native results for nSeqs sequences, which have the given extra fields */
+    void load( final ByteBuffer alignBuffer, final int nSeqs, final int extraFields ) {
+        final int nInts = alignBuffer.capacity() / 4;
+        if ( data.length < nInts ) data = new int[Math.max(nInts, 2 * data.length)];
+        alignBuffer.order(ByteOrder.nativeOrder()).position(0).limit(alignBuffer.capacity());
+        alignBuffer.asIntBuffer().get(data, 0, nInts);
+        this.extraFields = extraFields;
+        if ( hasStrings() ) {
+            if ( bytes.length < alignBuffer.capacity() ) bytes = new byte[Math.max(alignBuffer.capacity(), 2 * bytes.length)];
+            alignBuffer.get(bytes, 0, alignBuffer.capacity());
+        }
+
+        if ( seqStarts.length < nSeqs + 1 ) seqStarts = new int[Math.max(nSeqs + 1, 2 * seqStarts.length)];
+        this.nSeqs = nSeqs;
+        int offset = 0;
+        int alnIdx = 0;
+        for ( int seqIdx = 0; seqIdx != nSeqs; ++seqIdx ) {
+            int nAligns = data[offset++];
+            seqStarts[seqIdx] = alnIdx;
+            if ( alignmentOffsets.length < alnIdx + nAligns ) {
+                alignmentOffsets = Arrays.copyOf(alignmentOffsets, Math.max(alnIdx + nAligns, 2 * alignmentOffsets.length));
+            }
+            while ( nAligns-- > 0 ) {
+                alignmentOffsets[alnIdx++] = offset;
+                offset = extrasOffset(offset);
+                if ( (extraFields & MiniMap2Alignment.EXTRA_COORDS) != 0 ) offset += N_COORDS;
+                if ( (extraFields & MiniMap2Alignment.EXTRA_SCORES) != 0 ) offset += N_SCORES;
+                if ( (extraFields & MiniMap2Alignment.EXTRA_MD) != 0 ) offset = skipString(offset);
+                if ( (extraFields & MiniMap2Alignment.EXTRA_CS) != 0 ) offset = skipString(offset);
+            }
+        }
+        seqStarts[nSeqs] = alnIdx;
+        nAlignments = alnIdx;
+    }
+
+    /** the number of sequences in the batch */
+    public int getNSeqs() { return nSeqs; }
+
+    /** the total number of alignments for all sequences in the batch */
+    public int getNAlignments() { return nAlignments; }
+
+    /** the number of alignments for a sequence (zero if it's unmapped) */
+    public int getNAlignments( final int seqIdx ) {
+        checkSeqIdx(seqIdx);
+        return seqStarts[seqIdx + 1] - seqStarts[seqIdx];
+    }
+
+    /** the index of a sequence's first alignment */
+    public int getFirstAlignment( final int seqIdx ) {
+        checkSeqIdx(seqIdx);
+        return seqStarts[seqIdx];
+    }
+
+    /** one past the index of a sequence's last alignment */
+    public int getEndAlignment( final int seqIdx ) {
+        checkSeqIdx(seqIdx);
+        return seqStarts[seqIdx + 1];
+    }
+
+    public int getSAMFlag( final int alnIdx ) { return data[offset(alnIdx) + SAM_FLAG]; }
+    public int getRefId( final int alnIdx ) { return data[offset(alnIdx) + REF_ID]; }
+    public int getRefStart( final int alnIdx ) { return data[offset(alnIdx) + REF_START]; }
+    public int getMapQ( final int alnIdx ) { return data[offset(alnIdx) + MAP_Q]; }
+    public int getNM( final int alnIdx ) {
+        final int offset = offset(alnIdx);
+        return data[offset + N_CIGAR] > 0 ? data[offset + NM] : 0;
+    }
+    public int getNCigarOps( final int alnIdx ) { return data[offset(alnIdx) + N_CIGAR]; }
+
+    /** a BAM-encoded cigar op:  length&lt;&lt;4 | op, where op indexes "MIDNSHP=X" */
+    public int getCigarOp( final int alnIdx, final int opIdx ) {
+        final int offset = offset(alnIdx);
+        if ( opIdx < 0 || opIdx >= data[offset + N_CIGAR] ) {
+            throw new IndexOutOfBoundsException("No cigar op " + opIdx + " for alignment " + alnIdx);
+        }
+        return data[offset + CIGAR + opIdx];
+    }
+
+    /** copies the BAM-encoded cigar ops into dest, and returns how many there were */
+    public int getCigarOps( final int alnIdx, final int[] dest, final int destOffset ) {
+        final int offset = offset(alnIdx);
+        final int nCigar = data[offset + N_CIGAR];
+        System.arraycopy(data, offset + CIGAR, dest, destOffset, nCigar);
+        return nCigar;
+    }
+
+    /** builds the String version of the CIGAR */
+    public String getCigarString( final int alnIdx ) {
+        final int offset = offset(alnIdx);
+        return MiniMap2Alignment.cigarString(data, offset + CIGAR, data[offset + N_CIGAR]);
+    }
+
+    public boolean isReverseStrand( final int alnIdx ) { return (getSAMFlag(alnIdx) & 0x10) != 0; }
+
+    public int getQueryStart( final int alnIdx ) { return getCoord(alnIdx, QUERY_START); }
+    public int getQueryEnd( final int alnIdx ) { return getCoord(alnIdx, QUERY_END); }
+    public int getRefEnd( final int alnIdx ) { return getCoord(alnIdx, REF_END); }
+    public int getAlignmentScore( final int alnIdx ) { return getScore(alnIdx, ALIGNMENT_SCORE); }
+    public int getChainScore( final int alnIdx ) { return getScore(alnIdx, CHAIN_SCORE); }
+    public int getNMinimizers( final int alnIdx ) { return getScore(alnIdx, N_MINIMIZERS); }
+
+    public String getMD( final int alnIdx ) {
+        if ( (extraFields & MiniMap2Alignment.EXTRA_MD) == 0 ) return null;
+        return getString(stringsOffset(alnIdx));
+    }
+
+    public String getCS( final int alnIdx ) {
+        if ( (extraFields & MiniMap2Alignment.EXTRA_CS) == 0 ) return null;
+        int offset = stringsOffset(alnIdx);
+        if ( (extraFields & MiniMap2Alignment.EXTRA_MD) != 0 ) offset = skipString(offset);
+        return getString(offset);
+    }
+
+    /** builds a stand-alone MiniMap2Alignment from one of ours */
+    public MiniMap2Alignment getAlignment( final int alnIdx ) {
+        return new MiniMap2Alignment(getSAMFlag(alnIdx), getRefId(alnIdx), getRefStart(alnIdx),
+                                     getMapQ(alnIdx), getNM(alnIdx), getCigarString(alnIdx),
+                                     getQueryStart(alnIdx), getQueryEnd(alnIdx), getRefEnd(alnIdx),
+                                     getAlignmentScore(alnIdx), getChainScore(alnIdx), getNMinimizers(alnIdx),
+                                     getMD(alnIdx), getCS(alnIdx));
+    }
+
+    private boolean hasStrings() {
+        return (extraFields & (MiniMap2Alignment.EXTRA_MD | MiniMap2Alignment.EXTRA_CS)) != 0;
+    }
+
+    // the offset in data of the optional fields of the record at offset
+    private int extrasOffset( final int offset ) {
+        final int nCigar = data[offset + N_CIGAR];
+        return offset + (nCigar > 0 ? CIGAR + nCigar : NM);
+    }
+
+    private int getCoord( final int alnIdx, final int field ) {
+        if ( (extraFields & MiniMap2Alignment.EXTRA_COORDS) == 0 ) return 0;
+        return data[extrasOffset(offset(alnIdx)) + field];
+    }
+
+    private int getScore( final int alnIdx, final int field ) {
+        if ( (extraFields & MiniMap2Alignment.EXTRA_SCORES) == 0 ) return 0;
+        int offset = extrasOffset(offset(alnIdx));
+        if ( (extraFields & MiniMap2Alignment.EXTRA_COORDS) != 0 ) offset += N_COORDS;
+        return data[offset + field];
+    }
+
+    // the offset in data of the first string field
+    private int stringsOffset( final int alnIdx ) {
+        int offset = extrasOffset(offset(alnIdx));
+        if ( (extraFields & MiniMap2Alignment.EXTRA_COORDS) != 0 ) offset += N_COORDS;
+        if ( (extraFields & MiniMap2Alignment.EXTRA_SCORES) != 0 ) offset += N_SCORES;
+        return offset;
+    }
+
+    // a string is its length, followed by its bytes null-padded to a whole number of ints
+    private int skipString( final int offset ) {
+        return offset + 1 + (data[offset] + 3) / 4;
+    }
+
+    private String getString( final int offset ) {
+        return new String(bytes, 4 * (offset + 1), data[offset], StandardCharsets.US_ASCII);
+    }
+
+    private int offset( final int alnIdx ) {
+        if ( alnIdx < 0 || alnIdx >= nAlignments ) {
+            throw new IndexOutOfBoundsException("No alignment " + alnIdx + " in a batch of " + nAlignments);
+        }
+        return alignmentOffsets[alnIdx];
+    }
+
+    private void checkSeqIdx( final int seqIdx ) {
+        if ( seqIdx < 0 || seqIdx >= nSeqs ) {
+            throw new IndexOutOfBoundsException("No sequence " + seqIdx + " in a batch of " + nSeqs);
+        }
+    }
+}
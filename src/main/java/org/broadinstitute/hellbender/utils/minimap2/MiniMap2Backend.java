@@ -0,0 +1,17 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How MiniMap2Index makes its hot-path native call, the one that aligns a batch.
+ * There's a JNI implementation, which works everywhere, and, on JDK 22 and later, one that uses the
+ * foreign function API instead (see MiniMap2Backends).  Both call the same native code, and return the same results.
+ */
+interface MiniMap2Backend {
+    /** the arguments and the result are the same as those of MiniMap2Index.createAlignments */
+    ByteBuffer createAlignments( long addr, long ctxAddr, ByteBuffer opts, ByteBuffer seqs, ByteBuffer reads,
+                                 int[] segCounts, int extraFields, int nThreads );
+
+    /** "jni" or "ffm" */
+    String getName();
+}
@@ -0,0 +1,41 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Picks the MiniMap2Backend, once the native library has been loaded.
+ * This is the version for JDKs before 22, which always uses JNI, and refuses a request for the foreign backend.
+ * The multi-release jar has another version of this class, in META-INF/versions/22, that uses the foreign function
+ * API when it's asked for (see src/main/java22).
+ */
+final class MiniMap2Backends {
+    /** set the LIBMM2_BACKEND property to "ffm" to use the foreign function API where it's available */
+    static final String BACKEND_PROPERTY = "LIBMM2_BACKEND";
+
+    static final MiniMap2Backend JNI = new MiniMap2Backend() {
+        @Override public ByteBuffer createAlignments( final long addr, final long ctxAddr, final ByteBuffer opts,
+                                                      final ByteBuffer seqs, final ByteBuffer reads,
+                                                      final int[] segCounts, final int extraFields,
+                                                      final int nThreads ) {
+            return MiniMap2Index.createAlignments(addr, ctxAddr, opts, seqs, reads, segCounts, extraFields, nThreads);
+        }
+
+        @Override public String getName() { return "jni"; }
+    };
+
+    private MiniMap2Backends() {}
+
+    static MiniMap2Backend select() {
+        if ( "ffm".equalsIgnoreCase(System.getProperty(BACKEND_PROPERTY)) ) {
+            throw new MiniMap2Exception("The foreign function backend was requested with " + BACKEND_PROPERTY +
+                                        "=ffm, but it needs JDK 22 or later.");
+        }
+        return JNI;
+    }
+
+    /** the backend with the given name, or a MiniMap2Exception if there's no such backend here */
+    static MiniMap2Backend forName( final String name ) {
+        if ( "jni".equals(name) ) return JNI;
+        throw new MiniMap2Exception("There's no minimap2 backend named " + name + " before JDK 22.");
+    }
+}
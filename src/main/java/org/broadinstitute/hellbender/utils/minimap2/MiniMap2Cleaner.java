@@ -0,0 +1,75 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A safety net for the native memory held by indices and aligners that are never closed.
+ * (It does the job of java.lang.ref.Cleaner, which we can't use while we still support Java 8.)
+ *
+ * An object registers the action that frees its native memory, and unregisters it when it's closed.
+ * If a registered object becomes unreachable instead, a daemon thread reports the leak and runs the action.
+ * The action must not refer to the object itself, or the object will never become unreachable.
+ */
+final class MiniMap2Cleaner {
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    // a phantom reference has to be reachable itself until it's enqueued
+    private static final Set<Cleanable> registered = ConcurrentHashMap.newKeySet();
+    private static volatile Consumer<String> leakReporter = System.err::println;
+
+    static {
+        final Thread cleanerThread = new Thread(MiniMap2Cleaner::cleanLeaks, "minimap2-cleaner");
+        cleanerThread.setDaemon(true);
+        cleanerThread.start();
+    }
+
+    private MiniMap2Cleaner() {}
+
+    /** arranges for action to be run if obj becomes unreachable before the returned Cleanable is unregistered */
+    static Cleanable register( final Object obj, final String description, final Runnable action ) {
+        final Cleanable cleanable = new Cleanable(obj, description, action);
+        registered.add(cleanable);
+        return cleanable;
+    }
+
+    /** where leaks are reported (standard error, by default) */
+    static void setLeakReporter( final Consumer<String> reporter ) { leakReporter = reporter; }
+
+    private static void cleanLeaks() {
+        while ( true ) {
+            try {
+                ((Cleanable)queue.remove()).leaked();
+            } catch ( final InterruptedException ie ) {
+                // we're a daemon:  just keep going
+            } catch ( final RuntimeException re ) {
+                leakReporter.accept("Failed to free the native memory of a leaked minimap2 object: " + re);
+            }
+        }
+    }
+
+    static final class Cleanable extends PhantomReference<Object> {
+        private final String description;
+        private final Runnable action;
+
+        private Cleanable( final Object obj, final String description, final Runnable action ) {
+            super(obj, queue);
+            this.description = description;
+            this.action = action;
+        }
+
+        /** the object has been closed properly:  its action will never run */
+        void unregister() {
+            registered.remove(this);
+            clear();
+        }
+
+        private void leaked() {
+            if ( !registered.remove(this) ) return;
+            leakReporter.accept("A " + description + " was never closed.  Freeing its native memory.");
+            action.run();
+        }
+    }
+}
@@ -3,4 +3,5 @@ package org.broadinstitute.hellbender.utils.minimap2;
 public class MiniMap2Exception extends RuntimeException {
     public MiniMap2Exception( final String message ) { super(message); }
     public MiniMap2Exception( final String message, final Exception cause ) { super(message, cause); }
+    public MiniMap2Exception( final String message, final Throwable cause ) { super(message, cause); }
 }
@@ -0,0 +1,89 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where a sequence maps, without a base-level alignment:  one of minimap2's chains, with its mapQ and scores.
+ * This is what MiniMap2Aligner.mapSeqs returns.  It's enough to tell which contig a sequence came from and roughly
+ * where, which is all that screening for contamination, triaging reads, or placing contigs coarsely needs, and it's
+ * several times cheaper to compute than a full alignment.
+ * The coordinates are those of the chain, so its ends may be off by a few bases from where an alignment would end.
+ */
+public final class MiniMap2Hit {
+    private final int flags;
+    private final int refId;
+    private final int refStart;
+    private final int refEnd;
+    private final int queryStart;
+    private final int queryEnd;
+    private final int mapQ;
+    private final int chainScore;
+    private final int nMinimizers;
+
+    /** decodes a native hit record */
+    MiniMap2Hit( final ByteBuffer hitBuffer ) {
+        flags = hitBuffer.getInt();
+        refId = hitBuffer.getInt();
+        refStart = hitBuffer.getInt();
+        refEnd = hitBuffer.getInt();
+        queryStart = hitBuffer.getInt();
+        queryEnd = hitBuffer.getInt();
+        mapQ = hitBuffer.getInt();
+        chainScore = hitBuffer.getInt();
+        nMinimizers = hitBuffer.getInt();
+    }
+
+    public MiniMap2Hit( final int flags, final int refId, final int refStart, final int refEnd,
+                        final int queryStart, final int queryEnd, final int mapQ,
+                        final int chainScore, final int nMinimizers ) {
+        this.flags = flags;
+        this.refId = refId;
+        this.refStart = refStart;
+        this.refEnd = refEnd;
+        this.queryStart = queryStart;
+        this.queryEnd = queryEnd;
+        this.mapQ = mapQ;
+        this.chainScore = chainScore;
+        this.nMinimizers = nMinimizers;
+    }
+
+    /** SAM-like flags:  0x10 for the reverse strand, 0x100 for secondary, 0x800 for supplementary */
+    public int getFlags() { return flags; }
+    public int getRefId() { return refId; }
+    /** the 0-based start of the hit on the reference */
+    public int getRefStart() { return refStart; }
+    /** the 0-based, exclusive end of the hit on the reference */
+    public int getRefEnd() { return refEnd; }
+    /** the start of the hit on the query, in the query's original orientation */
+    public int getQueryStart() { return queryStart; }
+    /** the end of the hit on the query, in the query's original orientation */
+    public int getQueryEnd() { return queryEnd; }
+    public int getMapQ() { return mapQ; }
+    /** the chaining score, i.e., minimap2's s1 tag */
+    public int getChainScore() { return chainScore; }
+    /** the number of minimizers on the chain, i.e., minimap2's cm tag */
+    public int getNMinimizers() { return nMinimizers; }
+    public boolean isReverseStrand() { return (flags & 0x10) != 0; }
+    public boolean isPrimary() { return (flags & 0x900) == 0; }
+
+    @Override public boolean equals( final Object obj ) {
+        if ( obj == this ) return true;
+        if ( !(obj instanceof MiniMap2Hit) ) return false;
+        final MiniMap2Hit that = (MiniMap2Hit)obj;
+        return this.flags == that.flags && this.refId == that.refId && this.refStart == that.refStart &&
+                this.refEnd == that.refEnd && this.queryStart == that.queryStart && this.queryEnd == that.queryEnd &&
+                this.mapQ == that.mapQ && this.chainScore == that.chainScore && this.nMinimizers == that.nMinimizers;
+    }
+
+    @Override public int hashCode() {
+        int hash = flags;
+        hash = 31 * hash + refId;
+        hash = 31 * hash + refStart;
+        hash = 31 * hash + refEnd;
+        hash = 31 * hash + queryStart;
+        hash = 31 * hash + queryEnd;
+        hash = 31 * hash + mapQ;
+        hash = 31 * hash + chainScore;
+        return 31 * hash + nMinimizers;
+    }
+}
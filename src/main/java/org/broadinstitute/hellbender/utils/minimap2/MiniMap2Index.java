@@ -1,14 +1,16 @@
 package org.broadinstitute.hellbender.utils.minimap2;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Controls a minimap2 index file.
  * Creating an instance causes an entire index file (which may be many gigabytes) to be read.
@@ -16,52 +18,201 @@ import java.util.List;
  * It should be closed when you're done with it to reclaim large amounts of (non-Java) memory.
  *
  * This class is thread-safe, and should be shared among threads to conserve resources.
+ * Concurrent alignments don't contend for any lock:  each just bumps an atomic count of calls in flight.
+ * Closing the index turns away new calls and waits for the ones in flight to finish.
+ * An index that's dropped without being closed is eventually freed, and the leak is reported on standard error.
+ * MiniMap2IndexRegistry will do that sharing for you, across all the components of a JVM.
  *
- * Current implementation only reads the first chunk of multi-chunk indices.
- * (However, an entire human reference genome is typically in one chunk, so this is probably not a big issue.)
+ * An index can also be built in the JVM, either from a FASTA file or from contig sequences held in memory,
+ * using the static build methods.  That saves shelling out to the minimap2 command-line tool to index, e.g.,
+ * a small local assembly before aligning to it.
+ *
+ * For near-instant startup, and to share one copy of an index among all the JVMs on a host, you can use
+ * writeMappableIndex to save a loaded index in a layout that this class can memory-map rather than read.
+ * Opening a file in that layout just maps it:  its pages come from the OS page cache as they're needed.
+ *
+ * Indices built in several parts (e.g., with minimap2's -I option set smaller than the reference) are read in full.
+ * Each sequence is aligned against every part, and the hits are merged as if the index were a single part:
+ * reference ids run consecutively across the parts, and primary/secondary status and mapQ are reassigned.
+ *
+ * The index also serves as a reference dictionary:  you can look up contigs' ids and lengths, and (unless the index
+ * was built without them) copy out reference bases, which come straight from the index's packed sequence.
+ * That saves keeping a second copy of the reference around just to, e.g., compute MD tags or realign locally.
  */
 public class MiniMap2Index implements AutoCloseable {
-    private long nativeAddress;
-    private int refCount;
-    private List<String> refNames = null;
+    // the count of calls in flight that are using the native index, plus this bit once close has begun
+    private static final long CLOSING = 1L << 62;
+    private final AtomicLong state = new AtomicLong();
+    private volatile long nativeAddress;
+    private volatile List<String> refNames = null;
+    private volatile Map<String, Integer> refIds = null;
+    private volatile int[] refLengths = null;
+    private final MiniMap2Cleaner.Cleanable cleanable;
+    private final MiniMap2Metrics metrics = new MiniMap2Metrics();
+    private final ConcurrentHashMap<String, MiniMap2Options> optionsTemplates = new ConcurrentHashMap<>();
 
     private static boolean nativeLibLoaded = false;
+    private static volatile MiniMap2Backend backend = MiniMap2Backends.JNI;
+
+    // set LIBMM2_PRELOAD=true to pay for loading the native library when this class is initialized
+    static {
+        if ( Boolean.getBoolean("LIBMM2_PRELOAD") ) loadNativeLibrary();
+    }
 
+    /**
+     * Opens either an ordinary .mmi file, which is read into memory, or a file written by writeMappableIndex,
+     * which is memory-mapped.
+     */
     public MiniMap2Index( final String mmiFile ) {
         loadNativeLibrary();
-        nativeAddress = openIndex(mmiFile);
-        if ( nativeAddress == 0L ) {
+        final long addr = openIndex(mmiFile);
+        if ( addr == 0L ) {
             throw new MiniMap2Exception("Can't open minimap2 index file: " + mmiFile);
         }
-        refCount = 0;
+        nativeAddress = addr;
+        cleanable = MiniMap2Cleaner.register(this, "MiniMap2Index for " + mmiFile, destroyer(addr));
+    }
+
+    private MiniMap2Index( final long nativeAddress ) {
+        this.nativeAddress = nativeAddress;
+        cleanable = MiniMap2Cleaner.register(this, "MiniMap2Index", destroyer(nativeAddress));
+    }
+
+    // what the cleaner does with an index that was never closed.  it mustn't capture the index itself.
+    private static Runnable destroyer( final long addr ) {
+        return () -> destroyIndex(addr);
+    }
+
+    /**
+     * Builds an index from a FASTA (or FASTQ) file, which may be gzipped.
+     * The preset (which may be null for minimap2's defaults) supplies the indexing parameters, but
+     * k and w override them if they're not 0.
+     * Indexing is spread over nThreads native threads.
+     * If mmiFile isn't null, the index is also written there as an ordinary .mmi file.
+     */
+    public static MiniMap2Index buildFromFasta( final String fastaFile, final MiniMap2Aligner.Preset preset,
+                                                final int k, final int w, final int nThreads, final String mmiFile ) {
+        return buildFromFasta(fastaFile, preset, k, w, 0L, nThreads, mmiFile);
+    }
+
+    /**
+     * Like the method above, but a new part of the index is begun after every batchSize bases (rounded up to the
+     * end of a contig), like minimap2's -I option.  A batchSize of 0 means minimap2's default, which is 4 gigabases.
+     */
+    public static MiniMap2Index buildFromFasta( final String fastaFile, final MiniMap2Aligner.Preset preset,
+                                                final int k, final int w, final long batchSize, final int nThreads,
+                                                final String mmiFile ) {
+        checkIndexParams(k, w);
+        if ( batchSize < 0L ) {
+            throw new IllegalArgumentException("The batch size can't be negative.");
+        }
+        loadNativeLibrary();
+        final long addr = buildIndex(fastaFile, preset == null ? null : preset.getName(), k, w, batchSize,
+                                     nThreads, mmiFile);
+        if ( addr == 0L ) {
+            throw new MiniMap2Exception("Can't build minimap2 index from: " + fastaFile);
+        }
+        return new MiniMap2Index(addr);
+    }
+
+    public static MiniMap2Index buildFromFasta( final String fastaFile, final MiniMap2Aligner.Preset preset,
+                                                final int nThreads ) {
+        return buildFromFasta(fastaFile, preset, 0, 0, nThreads, null);
+    }
+
+    /**
+     * Builds an index from contig sequences held in memory.  Each contig's name is at the same position
+     * in contigNames that its bases are in contigSeqs.
+     * The preset, k, w, and mmiFile mean the same things they do for buildFromFasta.
+     * The index is built on the calling thread, which is fast enough for the small references
+     * (local assemblies, haplotypes) that you'd typically have in memory.
+     */
+    public static MiniMap2Index buildFromContigs( final List<String> contigNames, final List<byte[]> contigSeqs,
+                                                  final MiniMap2Aligner.Preset preset,
+                                                  final int k, final int w, final String mmiFile ) {
+        if ( contigNames.size() != contigSeqs.size() ) {
+            throw new MiniMap2Exception("Can't build index:  there are " + contigNames.size() + " contig names, but " +
+                    contigSeqs.size() + " contig sequences.");
+        }
+        if ( contigSeqs.isEmpty() ) {
+            throw new MiniMap2Exception("Can't build index:  there are no contigs.");
+        }
+        checkIndexParams(k, w);
+        loadNativeLibrary();
+        final long addr = buildIndexFromContigs(contigNames.toArray(new String[0]), contigSeqs.toArray(new byte[0][]),
+                                                preset == null ? null : preset.getName(), k, w, mmiFile);
+        if ( addr == 0L ) {
+            throw new MiniMap2Exception("Can't build minimap2 index from contigs.");
+        }
+        return new MiniMap2Index(addr);
+    }
+
+    public static MiniMap2Index buildFromContigs( final List<String> contigNames, final List<byte[]> contigSeqs,
+                                                  final MiniMap2Aligner.Preset preset ) {
+        return buildFromContigs(contigNames, contigSeqs, preset, 0, 0, null);
+    }
+
+    // minimap2 packs a k-mer into 56 bits, and the window size into 8
+    private static void checkIndexParams( final int k, final int w ) {
+        if ( k < 0 || k > 28 ) {
+            throw new MiniMap2Exception("Can't build index:  k must be between 1 and 28 (or 0 for the default).");
+        }
+        if ( w < 0 || w > 255 ) {
+            throw new MiniMap2Exception("Can't build index:  w must be between 1 and 255 (or 0 for the default).");
+        }
     }
 
     public boolean isOpen() { return nativeAddress != 0; }
 
+    /** closes the index, first waiting for any calls in flight to finish, however long they take */
+    @Override
     public void close() {
-        final long addr;
-        synchronized (this) {
-            if ( (addr = nativeAddress) == 0L ) return;
-            if ( refCount > 0 ) {
-                throw new MiniMap2Exception("Can't close index:  it's in use.");
+        close(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Turns away new calls, and waits up to the timeout for those in flight to finish before freeing the index.
+     * Returns false, leaving the index open and usable, if they don't finish in time.
+     */
+    public synchronized boolean close( final long timeout, final TimeUnit unit ) {
+        if ( nativeAddress == 0L ) return true;
+        state.getAndAdd(CLOSING);
+        final long waitNanos = unit.toNanos(timeout);
+        final long startTime = System.nanoTime();
+        boolean interrupted = false;
+        try {
+            synchronized (state) {
+                while ( state.get() != CLOSING ) {
+                    final long remainingNanos = waitNanos - (System.nanoTime() - startTime);
+                    if ( remainingNanos <= 0L ) {
+                        state.getAndAdd(-CLOSING);
+                        return false;
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(state, remainingNanos);
+                    } catch ( final InterruptedException ie ) {
+                        // the native code can't be interrupted, so there's no point in giving up
+                        interrupted = true;
+                    }
+                }
             }
-            nativeAddress = 0L;
+        } finally {
+            if ( interrupted ) Thread.currentThread().interrupt();
         }
+        final long addr = nativeAddress;
+        nativeAddress = 0L;
+        cleanable.unregister();
         destroyIndex(addr);
+        return true;
     }
 
     /** returns an immutable list of contig names for the reference */
     public List<String> getRefNames() {
-        if ( refNames == null ) {
+        List<String> names = refNames;
+        if ( names == null ) {
+            // racing threads may each build the list, but they're all the same, and any one of them will do
+            final long addr = acquire("get ref names");
             try {
-                final long addr;
-                synchronized (this) {
-                    refCount += 1;
-                    addr = nativeAddress;
-                }
-                if ( addr == 0L ) {
-                    throw new MiniMap2Exception("Can't get ref names:  index is closed.");
-                }
                 final ByteBuffer refNameBuffer = getRefNames(addr);
                 if ( refNameBuffer == null ) {
                     throw new MiniMap2Exception("Couldn't retrieve ref names:  Reasons are obscure.");
@@ -69,62 +220,203 @@ public class MiniMap2Index implements AutoCloseable {
                 final byte[] nameBytes = new byte[refNameBuffer.capacity()];
                 refNameBuffer.get(nameBytes, 0, nameBytes.length);
                 destroyByteBuffer(refNameBuffer);
-                final List<String> names = new ArrayList<>();
+                final List<String> nameList = new ArrayList<>();
                 int startIdx = 0;
                 for ( int idx = 0; idx != nameBytes.length; ++idx ) {
                     if ( nameBytes[idx] == 0 ) {
-                        names.add(new String(nameBytes, startIdx, idx - startIdx));
+                        nameList.add(new String(nameBytes, startIdx, idx - startIdx));
                         startIdx = idx + 1;
                     }
                 }
-                refNames = Collections.unmodifiableList(names);
+                refNames = names = Collections.unmodifiableList(nameList);
             } finally {
-                synchronized (this) {
-                    refCount -= 1;
-                }
+                release();
             }
         }
-        return refNames;
+        return names;
+    }
+
+    /**
+     * Writes this index in a layout that can be memory-mapped when it's opened, rather than read.
+     * The file is specific to this library (and the version of minimap2 it wraps), and can't be used
+     * by the minimap2 command-line tool.
+     */
+    public void writeMappableIndex( final String fileName ) {
+        final long addr = acquire("write mappable index");
+        try {
+            writeMappableIndex(addr, fileName);
+        } finally {
+            release();
+        }
     }
 
+    /** the totals of the metrics of all the aligners that have used this index */
+    public MiniMap2Metrics getMetrics() { return metrics; }
+
     /** get the contig name for a MiniMap2Alignment's refId */
     public String getRefName( final int refId ) {
         return getRefNames().get(refId);
     }
 
-    ByteBuffer createOptions( final String preset ) {
-        synchronized (this) {
-            if ( nativeAddress == 0L ) {
-                throw new MiniMap2Exception("Can't create options for aligner:  index is closed.");
+    /** the number of parts the index was built in (see buildFromFasta) */
+    public int getNParts() {
+        final long addr = acquire("count index parts");
+        try {
+            return getNParts(addr);
+        } finally {
+            release();
+        }
+    }
+
+    /** get the refId of a named contig, or -1 if there's no such contig */
+    public int getRefId( final String refName ) {
+        Map<String, Integer> ids = refIds;
+        if ( ids == null ) {
+            final List<String> names = getRefNames();
+            ids = new HashMap<>(2 * names.size());
+            for ( int refId = 0; refId != names.size(); ++refId ) {
+                ids.put(names.get(refId), refId);
             }
-            return createOptions(nativeAddress, preset);
+            refIds = ids;
         }
+        final Integer refId = ids.get(refName);
+        return refId == null ? -1 : refId;
     }
 
-    ByteBuffer align( final ByteBuffer opts, final ByteBuffer seqs ) {
+    /** the number of contigs in the reference */
+    public int getNRefs() { return getRefLengths().length; }
+
+    /** get the length of the contig with the given refId */
+    public int getRefLength( final int refId ) {
+        final int[] lengths = getRefLengths();
+        if ( refId < 0 || refId >= lengths.length ) {
+            throw new IllegalArgumentException("There's no contig with refId " + refId + ".");
+        }
+        return lengths[refId];
+    }
+
+    /** whether the index holds the reference bases, so that getRefBases will work */
+    public boolean hasRefBases() {
+        final long addr = acquire("examine index");
         try {
-            final long addr;
-            synchronized (this) {
-                refCount += 1;
-                addr = nativeAddress;
+            return hasRefBases(addr);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Copies the reference bases [start, end) of a contig into dest, starting at destOffset, as upper-case ASCII
+     * (A, C, G, T, or N).  An end past the end of the contig is clipped to it, so that, e.g., you can ask for a fixed
+     * size window.  Nothing is allocated:  the bases are decoded from the index directly into dest.
+     * @return the number of bases copied
+     */
+    public int getRefBases( final int refId, final int start, final int end, final byte[] dest, final int destOffset ) {
+        final int refLength = getRefLength(refId);
+        if ( start < 0 || start > end || start > refLength ) {
+            throw new IllegalArgumentException("Invalid interval [" + start + ", " + end + ") for contig " +
+                    getRefName(refId) + " of length " + refLength + ".");
+        }
+        final int nBases = Math.min(end, refLength) - start;
+        if ( destOffset < 0 || destOffset > dest.length - nBases ) {
+            throw new IllegalArgumentException("There's no room for " + nBases + " bases in an array of length " +
+                    dest.length + " at offset " + destOffset + ".");
+        }
+        if ( nBases == 0 ) return 0;
+        final long addr = acquire("get ref bases");
+        try {
+            return getRefBases(addr, refId, start, end, dest, destOffset);
+        } finally {
+            release();
+        }
+    }
+
+    private int[] getRefLengths() {
+        int[] lengths = refLengths;
+        if ( lengths == null ) {
+            // like refNames, racing threads may each fetch these, and any one of them will do
+            final long addr = acquire("get ref lengths");
+            try {
+                refLengths = lengths = getRefLengths(addr);
+            } finally {
+                release();
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * Returns the options for a preset (or minimap2's defaults, if preset is null) as adjusted for this index.
+     * They're computed natively the first time they're asked for, and cached.
+     */
+    public MiniMap2Options getOptions( final MiniMap2Aligner.Preset preset ) {
+        final String presetName = preset == null ? null : preset.getName();
+        return optionsTemplates.computeIfAbsent(presetName == null ? "" : presetName, key -> {
+            final ByteBuffer opts = createOptions(presetName);
+            if ( opts == null ) {
+                throw new MiniMap2Exception("Unable to retrieve options object.");
             }
-            if ( addr == 0L ) {
-                throw new MiniMap2Exception("Can't align:  index is closed.");
+            try {
+                return MiniMap2Options.copyOf(opts);
+            } finally {
+                destroyByteBuffer(opts);
             }
-            return createAlignments(addr, opts, seqs);
+        });
+    }
+
+    ByteBuffer createOptions( final String preset ) {
+        final long addr = acquire("create options for aligner");
+        try {
+            return createOptions(addr, preset);
         } finally {
-            synchronized (this) {
-                refCount -= 1;
+            release();
+        }
+    }
+
+    ByteBuffer align( final long ctxAddr, final ByteBuffer opts, final ByteBuffer seqs, final ByteBuffer reads,
+                      final int[] segCounts, final int extraFields, final int nThreads ) {
+        final long addr = acquire("align");
+        try {
+            return backend.createAlignments(addr, ctxAddr, opts, seqs, reads, segCounts, extraFields, nThreads);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Registers a call in flight, and returns the native address it may use until it calls release.
+     * This is the hot path:  it's a single atomic increment.
+     */
+    long acquire( final String what ) {
+        if ( (state.getAndIncrement() & CLOSING) != 0L ) {
+            release();
+            throw new MiniMap2Exception("Can't " + what + ":  index is closed.");
+        }
+        return nativeAddress;
+    }
+
+    void release() {
+        if ( state.decrementAndGet() == CLOSING ) {
+            // we were the last call in flight, and someone's waiting to close
+            synchronized (state) {
+                state.notifyAll();
             }
         }
     }
 
-    private static synchronized void loadNativeLibrary() {
+    /**
+     * Loads the native library, if it isn't already loaded.
+     * The library comes from the file named by the LIBMM2_PATH property, if it's set.
+     * Otherwise it's extracted from the jar into a cache directory (see MiniMap2LibraryCache), once per build of the
+     * library rather than once per JVM.
+     */
+    static synchronized void loadNativeLibrary() {
         if ( nativeLibLoaded ) return;
 
         final String libNameOverride = System.getProperty("LIBMM2_PATH");
         if ( libNameOverride != null ) {
             System.load(libNameOverride);
+            backend = MiniMap2Backends.select();
             nativeLibLoaded = true;
             return;
         }
@@ -148,17 +440,19 @@ public class MiniMap2Index implements AutoCloseable {
                             "Set property LIBMM2_PATH to point to a native library for your operating system.");
         }
 
-        try ( final InputStream is = MiniMap2Index.class.getResourceAsStream(libName) ) {
-            if ( is == null ) {
-                throw new MiniMap2Exception("Can't find resource " + libName);
-            }
-            final File tmpFile = File.createTempFile("libbwa.",".jnilib");
-            tmpFile.deleteOnExit();
-            Files.copy(is, tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            System.load(tmpFile.getPath());
+        Path libFile;
+        try {
+            libFile = MiniMap2LibraryCache.extract(libName, MiniMap2LibraryCache.getCacheDir());
         } catch ( final IOException ioe ) {
-            throw new MiniMap2Exception("Misconfiguration: Unable to load minimap2 native library " + libName, ioe);
+            // e.g., the cache directory isn't writable
+            try {
+                libFile = MiniMap2LibraryCache.extractToTempFile(libName);
+            } catch ( final IOException ioe2 ) {
+                throw new MiniMap2Exception("Misconfiguration: Unable to load minimap2 native library " + libName, ioe2);
+            }
         }
+        System.load(libFile.toString());
+        backend = MiniMap2Backends.select();
         nativeLibLoaded = true;
     }
 
@@ -216,34 +510,115 @@ public class MiniMap2Index implements AutoCloseable {
     // frees native memory
     static native void destroyByteBuffer( ByteBuffer buffer );
 
+    // reallocates the native memory behind a ByteBuffer from createSeqBuffer, preserving its contents
+    // the old ByteBuffer must not be used afterwards
+    static native ByteBuffer growByteBuffer( ByteBuffer buffer, int length );
+
+    // allocates the long-lived native state of an aligner:  thread buffers and a result arena
+    static native long createAlignerContext();
+
+    static native void destroyAlignerContext( long ctxAddr );
+
+    // sets the filters that the aligner context applies to each sequence's alignments before encoding them
+    // (see MiniMap2Aligner.setFilterFlags and friends)
+    static native void setAlignerFilter( long ctxAddr, int filterFlags, int maxHits, int minMapQ, int minScore );
+
+    // returns a ByteBuffer over the aligner context's measurements of its most recent call (see MiniMap2Aligner.STAT_*)
+    // it's a view of the context's memory, so it must not be freed, and it's invalid once the context is destroyed
+    static native ByteBuffer getAlignerStats( long ctxAddr );
+
+    /**
+     * How alignment calls cross into native code:  "jni", or "ffm" (Java's foreign function API) if you've set the
+     * LIBMM2_BACKEND property to "ffm" (which needs JDK 22 or later, and the multi-release jar:  without them, loading
+     * the native library fails).
+     */
+    public static String getBackendName() {
+        loadNativeLibrary();
+        return backend.getName();
+    }
+
+    // for testing:  replaces the backend, and returns the one it replaced
+    static MiniMap2Backend setBackend( final MiniMap2Backend newBackend ) {
+        loadNativeLibrary();
+        final MiniMap2Backend oldBackend = backend;
+        backend = newBackend;
+        return oldBackend;
+    }
+
     public static native String getVersion();
 
     private static native long openIndex( String mmiFile );
 
+    // indexes a FASTA, and optionally writes the index as a .mmi file
+    // preset may be null, and k and w override the preset unless they're 0
+    private static native long buildIndex( String fastaFile, String preset, int k, int w, long batchSize, int nThreads,
+                                           String mmiFile );
+
+    // indexes contigs from memory, and optionally writes the index as a .mmi file
+    private static native long buildIndexFromContigs( String[] names, byte[][] seqs, String preset, int k, int w, String mmiFile );
+
     private static native void destroyIndex( long addr );
 
+    // writes an index in a layout that openIndex will mmap instead of reading
+    private static native void writeMappableIndex( long addr, String fileName );
+
     /*
      addr is the native memory address of the index
+     ctxAddr is the native memory address of an aligner context (from createAlignerContext)
      opts is a ByteBuffer than contains a mm_mapopt_t structure
      seqs is a ByteBuffer that contains:
        a 32-bit integer count of the number of sequences to follow
-       a 32-bit integer for each sequence, giving its length
-       the base calls for each sequence, all run together in a single pool of bytes
-
-     we return a ByteBuffer that contains:
-     for each sequence,
+       for each sequence, a 32-bit integer giving its length, followed immediately by its base calls
+       (the top two bits of the length give the encoding of the base calls (MiniMap2Aligner.SeqEncoding), and the
+       rest give the number of bases.  packed sequences are decoded natively before they're aligned.)
+     reads is null, except with MiniMap2Aligner.RECORD_BAM.  then it has the same layout as seqs, with two entries
+       for each sequence:  its name, and its base qualities (raw phred scores, or nothing if it has none).
+     segCounts is null to align each sequence independently.  otherwise, it gives the number of consecutive
+       sequences that make up each fragment (e.g., 2 for each read pair), and the fragments are aligned together
+       in minimap2's fragment mode.
+     extraFields says which optional fields (MiniMap2Alignment.EXTRA_*) to append to each alignment record.
+       or, if it's MiniMap2Aligner.RECORD_HITS, the sequences are mapped without base-level alignment, and each
+       alignment record below is replaced by a hit record of 9 32-bit integers:
+       flags, refId, refStart, refEnd, queryStart, queryEnd, mapQ, chainScore, nMinimizers.
+       or, if it includes MiniMap2Aligner.RECORD_BAM, the results are BAM records instead (see
+       MiniMap2Aligner.alignToBam), and EXTRA_CS is the only extra field that matters:  it adds a cs tag.
+     nThreads is the number of native worker threads over which the sequences are distributed
+
+     we return a ByteBuffer over the aligner context's result arena.  it must not be freed, and it's only
+     valid until the next call with the same context.  it contains:
+     for each sequence (in input order),
        a 32-bit integer count of the number of alignments that follow
        for each alignment, a pseudo-structure like this:
       typedef struct {
+          int32_t samFlag; // 0x10 for reverse strand, 0x100 for secondary, 0x800 for supplementary
+                           // and, in fragment mode, 0x1, 0x2, 0x8, 0x20, 0x40, and 0x80 as in SAM
           int32_t refID; // reference id
           int32_t pos;   // reference starting position (0-based) -- if negative, it means reverse strand starting at ~pos
           int32_t mapQ;  // the map quality
           int32_t nCigar; // nCigarOps
+          int32_t NM;    // edit distance (present only when nCigar > 0)
           int32_t cigarOp[nCigarOps]; // len<<4 | op (i.e., the usual BAM encoding)
+          // the optional fields follow, each group present only if asked for
+          int32_t qs, qe, re;       // EXTRA_COORDS:  query start and end (original orientation), reference end
+          int32_t AS, s1, cm;       // EXTRA_SCORES:  DP score, chaining score, number of minimizers
+          int32_t mdLen; char md[]; // EXTRA_MD:  the MD string, null-padded to a multiple of 4 bytes
+          int32_t csLen; char cs[]; // EXTRA_CS:  the short-form cs string, padded the same way
       } Alignment;
     */
-    private static native ByteBuffer createAlignments( long addr, ByteBuffer opts, ByteBuffer seqs );
+    static native ByteBuffer createAlignments( long addr, long ctxAddr, ByteBuffer opts, ByteBuffer seqs,
+                                               ByteBuffer reads, int[] segCounts, int extraFields, int nThreads );
 
     // returns a ByteBuffer with all the reference contig names concatenated (null byte delimited)
     private static native ByteBuffer getRefNames( long addr );
+
+    private static native int getNParts( long addr );
+
+    // returns the lengths of the reference contigs, in refId order
+    private static native int[] getRefLengths( long addr );
+
+    private static native boolean hasRefBases( long addr );
+
+    // copies reference bases as ASCII into dest[destOffset...], clipping end to the contig's length.
+    // returns the number of bases copied.
+    private static native int getRefBases( long addr, int refId, int start, int end, byte[] dest, int destOffset );
 }
@@ -0,0 +1,175 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shares MiniMap2Index instances among all the components of a JVM, so that each index file is read into
+ * memory just once, no matter how many tools (or Spark tasks) want it.
+ *
+ * Call acquire to get a Handle on the index for a file:  the first acquire loads it (other threads wanting the
+ * same file wait for that load rather than doing their own), and later acquires share it.
+ * Close the Handle when you're done.  When the last Handle on an index is closed, the index is closed too --
+ * either immediately, or after an idle timeout during which a new acquire can pick it up again without reloading.
+ *
+ * Indices are keyed by canonical path.  Don't close an index you got from a Handle:  close the Handle.
+ * This class is thread-safe.
+ */
+public final class MiniMap2IndexRegistry {
+    private static final MiniMap2IndexRegistry INSTANCE = new MiniMap2IndexRegistry(0L, TimeUnit.MILLISECONDS);
+
+    private final long idleTimeoutMillis;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private ScheduledExecutorService unloader;
+
+    /**
+     * Make a private registry.  Most callers should use the process-wide one from getInstance.
+     * @param idleTimeout How long to keep an index loaded after its last Handle has been closed.  Zero to unload immediately.
+     */
+    public MiniMap2IndexRegistry( final long idleTimeout, final TimeUnit unit ) {
+        if ( idleTimeout < 0L ) {
+            throw new IllegalArgumentException("The idle timeout can't be negative.");
+        }
+        this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+    }
+
+    /** the process-wide registry, which unloads indices as soon as they're no longer in use */
+    public static MiniMap2IndexRegistry getInstance() { return INSTANCE; }
+
+    /** returns a Handle on the (possibly newly loaded) index for a .mmi file */
+    public Handle acquire( final String mmiFile ) {
+        final String key;
+        try {
+            key = new File(mmiFile).getCanonicalPath();
+        } catch ( final IOException ioe ) {
+            throw new MiniMap2Exception("Can't resolve path of minimap2 index file: " + mmiFile, ioe);
+        }
+        while ( true ) {
+            final Entry entry = entries.computeIfAbsent(key, Entry::new);
+            synchronized (entry) {
+                if ( entry.removed ) continue; // lost a race with an unload:  try again with a fresh entry
+                if ( entry.index == null ) {
+                    try {
+                        entry.index = new MiniMap2Index(key);
+                    } catch ( final RuntimeException re ) {
+                        entry.removed = true;
+                        entries.remove(key, entry);
+                        throw re;
+                    }
+                }
+                if ( entry.pendingUnload != null ) {
+                    entry.pendingUnload.cancel(false);
+                    entry.pendingUnload = null;
+                }
+                entry.refCount += 1;
+                return new Handle(entry);
+            }
+        }
+    }
+
+    /** the number of Handles outstanding on the index for a file (zero if it isn't loaded) */
+    public int getRefCount( final String mmiFile ) {
+        try {
+            final Entry entry = entries.get(new File(mmiFile).getCanonicalPath());
+            if ( entry == null ) return 0;
+            synchronized (entry) {
+                return entry.refCount;
+            }
+        } catch ( final IOException ioe ) {
+            return 0;
+        }
+    }
+
+    /** whether the index for a file is currently loaded */
+    public boolean isLoaded( final String mmiFile ) {
+        try {
+            final Entry entry = entries.get(new File(mmiFile).getCanonicalPath());
+            if ( entry == null ) return false;
+            synchronized (entry) {
+                return entry.index != null;
+            }
+        } catch ( final IOException ioe ) {
+            return false;
+        }
+    }
+
+    private void release( final Entry entry ) {
+        synchronized (entry) {
+            entry.refCount -= 1;
+            if ( entry.refCount > 0 ) return;
+            if ( idleTimeoutMillis == 0L ) {
+                unload(entry);
+            } else {
+                entry.pendingUnload = getUnloader().schedule(() -> {
+                    synchronized (entry) {
+                        if ( entry.refCount == 0 && !entry.removed ) unload(entry);
+                    }
+                }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // caller must hold the entry's lock
+    private void unload( final Entry entry ) {
+        entry.removed = true;
+        entry.pendingUnload = null;
+        entries.remove(entry.key, entry);
+        final MiniMap2Index index = entry.index;
+        entry.index = null;
+        index.close();
+    }
+
+    private synchronized ScheduledExecutorService getUnloader() {
+        if ( unloader == null ) {
+            unloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "MiniMap2IndexRegistry-unloader");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return unloader;
+    }
+
+    private static final class Entry {
+        final String key;
+        MiniMap2Index index;
+        int refCount;
+        ScheduledFuture<?> pendingUnload;
+        boolean removed;
+
+        Entry( final String key ) { this.key = key; }
+    }
+
+    /** A reference-counted claim on a shared index.  Close it when you're done with the index. */
+    public final class Handle implements AutoCloseable {
+        private final Entry entry;
+        private final MiniMap2Index index;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Handle( final Entry entry ) {
+            this.entry = entry;
+            this.index = entry.index;
+        }
+
+        public MiniMap2Index getIndex() {
+            if ( closed.get() ) {
+                throw new IllegalStateException("The index handle has been closed.");
+            }
+            return index;
+        }
+
+        public String getPath() { return entry.key; }
+
+        @Override
+        public void close() {
+            if ( closed.compareAndSet(false, true) ) release(entry);
+        }
+    }
+}
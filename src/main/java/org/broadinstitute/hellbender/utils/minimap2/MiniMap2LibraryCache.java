@@ -0,0 +1,187 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * Extracts the native library from the jar into a directory where it persists from one JVM to the next.
+ * The extracted file is named for a hash of its contents, so a JVM that finds the file already there just loads it:
+ * there's no copy, and the OS can share the pages it already has for that file among all the JVMs on the host.
+ * A new build of the library gets a new name, so a stale copy is never loaded.
+ *
+ * The hash is computed when the library is built, and stored next to it in the jar (libmm2.Linux.so.sha256, say:
+ * the hex digest on one line, and the library's size in bytes on the next).  So a JVM that finds its copy already
+ * in the cache reads nothing from the jar but that little file, and checks the copy with a stat.
+ * The library's bytes are read, and checked against the hash, only when the copy has to be written.
+ *
+ * Several processes can extract at once:  each writes its own temporary file and atomically renames it into place,
+ * so a reader never sees a partial file, and the loser of a race just replaces the file with identical bytes.
+ *
+ * The directory is given by the LIBMM2_CACHE_DIR property.  It's a per-user subdirectory of java.io.tmpdir by default.
+ * Since whatever's in it gets loaded into the JVM, it's created readable only by its owner, and it's refused
+ * (so that the caller falls back to a private temporary file) unless it's owned by the current user, and
+ * writable by nobody else.
+ */
+final class MiniMap2LibraryCache {
+    static final String CACHE_DIR_PROPERTY = "LIBMM2_CACHE_DIR";
+    static final String HASH_SUFFIX = ".sha256";
+
+    private MiniMap2LibraryCache() {}
+
+    static Path getCacheDir() {
+        final String cacheDir = System.getProperty(CACHE_DIR_PROPERTY);
+        if ( cacheDir != null ) return Paths.get(cacheDir);
+        return Paths.get(System.getProperty("java.io.tmpdir"), "libmm2-" + System.getProperty("user.name", "unknown"));
+    }
+
+    /**
+     * Returns the path of a copy of the resource in cacheDir, extracting it if there isn't a good copy already.
+     * Throws an IOException if the cache can't be used safely, or if the resource has no (or a wrong) hash.
+     */
+    static Path extract( final String resourceName, final Path cacheDir ) throws IOException {
+        final String[] hashAndSize = readHashResource(resourceName);
+        final String hash = hashAndSize[0];
+        final long size;
+        try {
+            size = Long.parseLong(hashAndSize[1]);
+        } catch ( final NumberFormatException nfe ) {
+            throw new IOException("Resource " + resourceName + HASH_SUFFIX + " has a bad size:  " + hashAndSize[1]);
+        }
+        final String fileName = resourceName.substring(resourceName.lastIndexOf('/') + 1);
+        final int dotIdx = fileName.lastIndexOf('.');
+        final Path cachedFile = cacheDir.resolve(fileName.substring(0, dotIdx) + "." + hash.substring(0, 32) +
+                                                    fileName.substring(dotIdx));
+        checkPrivateDir(cacheDir);
+        if ( isIntact(cachedFile, size) ) return cachedFile;
+
+        final byte[] contents = readResource(resourceName);
+        if ( contents.length != size || !hash.equals(sha256(contents)) ) {
+            throw new IOException("Resource " + resourceName + " doesn't match its hash.");
+        }
+        final Path tmpFile = Files.createTempFile(cacheDir, fileName + ".", ".tmp");
+        try {
+            Files.write(tmpFile, contents);
+            try {
+                Files.move(tmpFile, cachedFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch ( final AtomicMoveNotSupportedException amnse ) {
+                Files.move(tmpFile, cachedFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+        return cachedFile;
+    }
+
+    /**
+     * The old way, for when the cache directory isn't usable:  extract to a new temporary file for each JVM.
+     */
+    static Path extractToTempFile( final String resourceName ) throws IOException {
+        final Path tmpFile = Files.createTempFile("libmm2.", ".jnilib");
+        tmpFile.toFile().deleteOnExit();
+        Files.write(tmpFile, readResource(resourceName));
+        return tmpFile;
+    }
+
+    // creates the directory, if need be, so that only its owner can use it.  then makes sure that that's how it is:
+    // otherwise, another user could plant a library of their own, or swap it in after we've checked ours.
+    private static void checkPrivateDir( final Path cacheDir ) throws IOException {
+        final FileAttribute<Set<PosixFilePermission>> ownerOnly =
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"));
+        try {
+            final Path parent = cacheDir.toAbsolutePath().getParent();
+            if ( parent != null ) Files.createDirectories(parent);
+            Files.createDirectory(cacheDir, ownerOnly);
+        } catch ( final FileAlreadyExistsException faee ) {
+            // fine, if it passes inspection
+        } catch ( final UnsupportedOperationException uoe ) {
+            throw new IOException("Can't make a private directory on this file system:  " + cacheDir);
+        }
+        final PosixFileAttributes attrs =
+                Files.readAttributes(cacheDir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        final UserPrincipal currentUser = FileSystems.getDefault().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if ( !attrs.isDirectory() || !attrs.owner().equals(currentUser) ) {
+            throw new IOException(cacheDir + " isn't a directory owned by " + currentUser.getName());
+        }
+        final Set<PosixFilePermission> permissions = attrs.permissions();
+        if ( permissions.contains(PosixFilePermission.GROUP_WRITE) ||
+                permissions.contains(PosixFilePermission.OTHERS_WRITE) ) {
+            throw new IOException(cacheDir + " is writable by others");
+        }
+    }
+
+    // guards against a truncated file, which would otherwise be loaded forever after
+    private static boolean isIntact( final Path cachedFile, final long size ) {
+        try {
+            return Files.isRegularFile(cachedFile, LinkOption.NOFOLLOW_LINKS) && Files.size(cachedFile) == size;
+        } catch ( final IOException ioe ) {
+            return false;
+        }
+    }
+
+    // returns the hex digest and the size, as written by the native library's Makefile
+    private static String[] readHashResource( final String resourceName ) throws IOException {
+        try ( final InputStream is = MiniMap2LibraryCache.class.getResourceAsStream(resourceName + HASH_SUFFIX) ) {
+            if ( is == null ) {
+                throw new IOException("Can't find resource " + resourceName + HASH_SUFFIX);
+            }
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.US_ASCII));
+            final String hash = reader.readLine();
+            final String size = reader.readLine();
+            if ( hash == null || hash.trim().length() != 64 || size == null ) {
+                throw new IOException("Resource " + resourceName + HASH_SUFFIX + " is malformed.");
+            }
+            return new String[] { hash.trim().toLowerCase(), size.trim() };
+        }
+    }
+
+    private static byte[] readResource( final String resourceName ) throws IOException {
+        try ( final InputStream is = MiniMap2LibraryCache.class.getResourceAsStream(resourceName) ) {
+            if ( is == null ) {
+                throw new IOException("Can't find resource " + resourceName);
+            }
+            final ByteArrayOutputStream os = new ByteArrayOutputStream(1 << 20);
+            final byte[] buf = new byte[1 << 16];
+            int nRead;
+            while ( (nRead = is.read(buf)) != -1 ) {
+                os.write(buf, 0, nRead);
+            }
+            return os.toByteArray();
+        }
+    }
+
+    // the full hex digest, to compare with the one recorded at build time
+    private static String sha256( final byte[] contents ) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(contents);
+        } catch ( final NoSuchAlgorithmException nsae ) {
+            throw new MiniMap2Exception("Every JVM is supposed to have SHA-256", nsae);
+        }
+        final StringBuilder sb = new StringBuilder(2 * digest.length);
+        for ( final byte b : digest ) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
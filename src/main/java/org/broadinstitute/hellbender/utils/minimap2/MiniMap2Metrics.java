@@ -0,0 +1,245 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cheap, always-on counters for alignment work.
+ * Each aligner has its own, and each index has one that sums up the work of all the aligners that use it.
+ *
+ * For every batch an aligner aligns, we count reads, bases, alignments, unmapped reads, and the bytes that
+ * cross the JNI boundary, and we time each phase:  marshalling the bases in Java, the native call as a whole
+ * (and, within it, mapping, finishing, and encoding, as timed natively), and decoding the results in Java.
+ * Recording a batch costs a handful of uncontended LongAdder increments.
+ *
+ * Listeners see each batch's BatchStats as it's recorded, on the thread that aligned it, so they should be quick.
+ * The totals can also be published as a JMX MBean, to watch with jconsole or the like.
+ * This class is thread-safe.
+ */
+public final class MiniMap2Metrics implements MiniMap2MetricsMXBean {
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder bases = new LongAdder();
+    private final LongAdder alignments = new LongAdder();
+    private final LongAdder unmappedReads = new LongAdder();
+    private final LongAdder inputBytes = new LongAdder();
+    private final LongAdder resultBytes = new LongAdder();
+    private final LongAdder marshalNanos = new LongAdder();
+    private final LongAdder nativeNanos = new LongAdder();
+    private final LongAdder nativeMapNanos = new LongAdder();
+    private final LongAdder nativeFinishNanos = new LongAdder();
+    private final LongAdder nativeEncodeNanos = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final Histogram batchLatency = new Histogram();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** is told about each batch as it's recorded */
+    @FunctionalInterface
+    public interface Listener {
+        void batchAligned( BatchStats stats );
+    }
+
+    public void addListener( final Listener listener ) { listeners.add(listener); }
+    public void removeListener( final Listener listener ) { listeners.remove(listener); }
+
+    void record( final BatchStats stats ) {
+        batches.increment();
+        reads.add(stats.getReads());
+        bases.add(stats.getBases());
+        alignments.add(stats.getAlignments());
+        unmappedReads.add(stats.getUnmappedReads());
+        inputBytes.add(stats.getInputBytes());
+        resultBytes.add(stats.getResultBytes());
+        marshalNanos.add(stats.getMarshalNanos());
+        nativeNanos.add(stats.getNativeNanos());
+        nativeMapNanos.add(stats.getNativeMapNanos());
+        nativeFinishNanos.add(stats.getNativeFinishNanos());
+        nativeEncodeNanos.add(stats.getNativeEncodeNanos());
+        decodeNanos.add(stats.getDecodeNanos());
+        batchLatency.record(stats.getTotalNanos());
+        for ( final Listener listener : listeners ) {
+            listener.batchAligned(stats);
+        }
+    }
+
+    @Override public long getBatches() { return batches.sum(); }
+    @Override public long getReads() { return reads.sum(); }
+    @Override public long getBases() { return bases.sum(); }
+    @Override public long getAlignments() { return alignments.sum(); }
+    @Override public long getUnmappedReads() { return unmappedReads.sum(); }
+    @Override public long getInputBytes() { return inputBytes.sum(); }
+    @Override public long getResultBytes() { return resultBytes.sum(); }
+    @Override public long getMarshalNanos() { return marshalNanos.sum(); }
+    @Override public long getNativeNanos() { return nativeNanos.sum(); }
+    @Override public long getNativeMapNanos() { return nativeMapNanos.sum(); }
+    @Override public long getNativeFinishNanos() { return nativeFinishNanos.sum(); }
+    @Override public long getNativeEncodeNanos() { return nativeEncodeNanos.sum(); }
+    @Override public long getDecodeNanos() { return decodeNanos.sum(); }
+
+    @Override public double getMeanAlignmentsPerRead() {
+        final long nReads = reads.sum();
+        return nReads == 0 ? 0. : (double)alignments.sum() / nReads;
+    }
+
+    @Override public long getBatchLatencyMedianNanos() { return batchLatency.getPercentile(.5); }
+    @Override public long getBatchLatency99thPercentileNanos() { return batchLatency.getPercentile(.99); }
+
+    /** the distribution of the time to align a whole batch, from the start of marshalling to the end of decoding */
+    public Histogram getBatchLatency() { return batchLatency; }
+
+    /** zeroes everything.  a batch recorded at the same time may be partly counted. */
+    @Override public void reset() {
+        for ( final LongAdder adder : new LongAdder[] { batches, reads, bases, alignments, unmappedReads,
+                                                        inputBytes, resultBytes, marshalNanos, nativeNanos,
+                                                        nativeMapNanos, nativeFinishNanos, nativeEncodeNanos,
+                                                        decodeNanos } ) {
+            adder.reset();
+        }
+        batchLatency.reset();
+    }
+
+    /**
+     * Publishes these metrics on the platform MBean server as
+     * org.broadinstitute.hellbender.utils.minimap2:type=MiniMap2Metrics,name=(the name you supply).
+     * Returns the ObjectName, which you'll need to unregister it.
+     */
+    public ObjectName registerMBean( final String name ) {
+        try {
+            final ObjectName objectName = new ObjectName(MiniMap2Metrics.class.getPackage().getName() +
+                    ":type=MiniMap2Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch ( final JMException jme ) {
+            throw new MiniMap2Exception("Can't register metrics MBean " + name, jme);
+        }
+    }
+
+    public static void unregisterMBean( final ObjectName objectName ) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if ( server.isRegistered(objectName) ) server.unregisterMBean(objectName);
+        } catch ( final JMException jme ) {
+            throw new MiniMap2Exception("Can't unregister metrics MBean " + objectName, jme);
+        }
+    }
+
+    /** What was measured for a single batch.  Times are in nanoseconds. */
+    public static final class BatchStats {
+        private final int reads;
+        private final long bases;
+        private final long alignments;
+        private final long unmappedReads;
+        private final long inputBytes;
+        private final long resultBytes;
+        private final long marshalNanos;
+        private final long nativeNanos;
+        private final long nativeMapNanos;
+        private final long nativeFinishNanos;
+        private final long nativeEncodeNanos;
+        private final long decodeNanos;
+
+        BatchStats( final int reads, final long bases, final long alignments, final long unmappedReads,
+                    final long inputBytes, final long resultBytes,
+                    final long marshalNanos, final long nativeNanos, final long nativeMapNanos,
+                    final long nativeFinishNanos, final long nativeEncodeNanos, final long decodeNanos ) {
+            this.reads = reads;
+            this.bases = bases;
+            this.alignments = alignments;
+            this.unmappedReads = unmappedReads;
+            this.inputBytes = inputBytes;
+            this.resultBytes = resultBytes;
+            this.marshalNanos = marshalNanos;
+            this.nativeNanos = nativeNanos;
+            this.nativeMapNanos = nativeMapNanos;
+            this.nativeFinishNanos = nativeFinishNanos;
+            this.nativeEncodeNanos = nativeEncodeNanos;
+            this.decodeNanos = decodeNanos;
+        }
+
+        public int getReads() { return reads; }
+        public long getBases() { return bases; }
+        public long getAlignments() { return alignments; }
+        public long getUnmappedReads() { return unmappedReads; }
+        /** the size of the native sequence buffer that was handed to minimap2 */
+        public long getInputBytes() { return inputBytes; }
+        /** the size of the native results */
+        public long getResultBytes() { return resultBytes; }
+        /** copying the bases into native memory (0 if the batch was marshalled elsewhere, e.g., by alignStream) */
+        public long getMarshalNanos() { return marshalNanos; }
+        /** the whole native call, as seen from Java */
+        public long getNativeNanos() { return nativeNanos; }
+        /** the mapping, as timed natively */
+        public long getNativeMapNanos() { return nativeMapNanos; }
+        /** merging index parts, filtering, making MD and cs strings, and sizing the results, as timed natively */
+        public long getNativeFinishNanos() { return nativeFinishNanos; }
+        /** writing the results into native memory, as timed natively */
+        public long getNativeEncodeNanos() { return nativeEncodeNanos; }
+        /** turning the native results into Java objects (or loading a MiniMap2Alignments) */
+        public long getDecodeNanos() { return decodeNanos; }
+        public long getTotalNanos() { return marshalNanos + nativeNanos + decodeNanos; }
+    }
+
+    /**
+     * A lock-free histogram with power-of-two buckets:  bucket i counts values in [2^(i-1), 2^i).
+     * Percentiles are therefore accurate to within a factor of two, which is plenty for sizing batches.
+     */
+    public static final class Histogram {
+        private static final int N_BUCKETS = 64;
+        private final LongAdder[] buckets = new LongAdder[N_BUCKETS];
+
+        Histogram() {
+            for ( int idx = 0; idx != N_BUCKETS; ++idx ) {
+                buckets[idx] = new LongAdder();
+            }
+        }
+
+        void record( final long value ) {
+            buckets[value <= 0L ? 0 : N_BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        }
+
+        void reset() {
+            for ( final LongAdder bucket : buckets ) {
+                bucket.reset();
+            }
+        }
+
+        public long getCount() {
+            long count = 0L;
+            for ( final LongAdder bucket : buckets ) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /** a snapshot of the bucket counts */
+        public long[] getBucketCounts() {
+            final long[] counts = new long[N_BUCKETS];
+            for ( int idx = 0; idx != N_BUCKETS; ++idx ) {
+                counts[idx] = buckets[idx].sum();
+            }
+            return counts;
+        }
+
+        /** the upper bound of the bucket that holds the given fraction (0 to 1) of the values, or 0 if there are none */
+        public long getPercentile( final double fraction ) {
+            final long[] counts = getBucketCounts();
+            long total = 0L;
+            for ( final long count : counts ) {
+                total += count;
+            }
+            if ( total == 0L ) return 0L;
+            final long rank = Math.max(1L, (long)Math.ceil(fraction * total));
+            long seen = 0L;
+            for ( int idx = 0; idx != N_BUCKETS; ++idx ) {
+                seen += counts[idx];
+                if ( seen >= rank ) return idx == N_BUCKETS - 1 ? Long.MAX_VALUE : (1L << idx) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+/**
+ * The JMX view of a MiniMap2Metrics (see MiniMap2Metrics.registerMBean).
+ * Counts and times are totals since the metrics were created or last reset.  Times are in nanoseconds.
+ */
+public interface MiniMap2MetricsMXBean {
+    long getBatches();
+    long getReads();
+    long getBases();
+    long getAlignments();
+    long getUnmappedReads();
+    long getInputBytes();
+    long getResultBytes();
+
+    long getMarshalNanos();
+    long getNativeNanos();
+    long getNativeMapNanos();
+    long getNativeFinishNanos();
+    long getNativeEncodeNanos();
+    long getDecodeNanos();
+
+    double getMeanAlignmentsPerRead();
+    long getBatchLatencyMedianNanos();
+    long getBatchLatency99thPercentileNanos();
+
+    void reset();
+}
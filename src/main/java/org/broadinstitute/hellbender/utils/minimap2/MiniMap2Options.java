@@ -0,0 +1,60 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of an aligner's options (minimap2's mm_mapopt_t), to use as a template for new aligners.
+ * Creating an aligner from a template is just a small memory copy:  there's no native option setup, and
+ * nothing that contends with other threads.
+ *
+ * Get the template for a preset from MiniMap2Index.getOptions, which computes it once and caches it.
+ * For a template with other settings, configure an aligner with its setters and call its getOptions method.
+ * Some options (e.g., mid_occ) are derived from the index's statistics, so a template is meant for aligners
+ * of the index it came from.
+ *
+ * Templates can be shared freely among threads, and compared and hashed by value.
+ */
+public final class MiniMap2Options {
+    private final byte[] bytes; // an image of the mm_mapopt_t, in native byte order
+    private final int hashCode;
+
+    private MiniMap2Options( final byte[] bytes ) {
+        this.bytes = bytes;
+        this.hashCode = Arrays.hashCode(bytes);
+    }
+
+    /** takes a snapshot of the native options in a ByteBuffer */
+    static MiniMap2Options copyOf( final ByteBuffer opts ) {
+        if ( opts.capacity() != MiniMap2Aligner.EXPECTED_OPTS_SIZE ) {
+            throw new MiniMap2Exception(
+                    "Unexpected options object size suggests wrong version of MiniMap2.");
+        }
+        final byte[] bytes = new byte[MiniMap2Aligner.EXPECTED_OPTS_SIZE];
+        final ByteBuffer source = opts.duplicate();
+        source.clear();
+        source.get(bytes);
+        return new MiniMap2Options(bytes);
+    }
+
+    /** overwrites the native options in a ByteBuffer with ours */
+    void copyTo( final ByteBuffer opts ) {
+        final ByteBuffer dest = opts.duplicate();
+        dest.clear();
+        dest.put(bytes);
+    }
+
+    @Override public boolean equals( final Object obj ) {
+        if ( obj == this ) return true;
+        if ( !(obj instanceof MiniMap2Options) ) return false;
+        final MiniMap2Options that = (MiniMap2Options)obj;
+        return this.hashCode == that.hashCode && Arrays.equals(this.bytes, that.bytes);
+    }
+
+    @Override public int hashCode() { return hashCode; }
+
+    @Override public String toString() {
+        return MiniMap2Aligner.describeOptions(ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()));
+    }
+}
@@ -0,0 +1,146 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A growable native buffer of sequences in the layout that MiniMap2Index.align expects:
+ *   a 32-bit count of sequences, then for each sequence a 32-bit length followed by its bases.
+ *   The top two bits of the length give the sequence's encoding (MiniMap2Aligner.SeqEncoding), and the rest give the
+ *   number of bases, which, for packed sequences, is more than the number of bytes that follow.
+ * Sequences are written in a single pass:  start, then beginSeq/put.../endSeq for each sequence, then finish.
+ * The native memory is reused across batches until the buffer is closed.
+ */
+final class MiniMap2SeqBuffer implements MiniMap2Aligner.SeqSink, AutoCloseable {
+    static final int INITIAL_SIZE = 64 * 1024;
+    static final int MAX_SEQ_LENGTH = (1 << 30) - 1; // the length word's top two bits hold the encoding
+    private static final int ENCODING_SHIFT = 30;
+
+    private ByteBuffer buffer;
+    private int nSeqs;
+    private int lengthPosition = -1;
+    private int packedLengthWord = -1; // the length word of the current sequence, if it was packed
+
+    /** resets the buffer to hold a new batch of sequences */
+    void start() {
+        if ( buffer == null ) {
+            buffer = MiniMap2Index.createSeqBuffer(INITIAL_SIZE);
+            if ( buffer == null ) {
+                throw new MiniMap2Exception("Can't create buffer for passing sequences to MiniMap2.");
+            }
+        }
+        buffer.order(ByteOrder.nativeOrder()).clear();
+        buffer.putInt(0); // placeholder for the count of sequences
+        nSeqs = 0;
+        lengthPosition = -1;
+        packedLengthWord = -1;
+    }
+
+    void beginSeq() {
+        if ( lengthPosition != -1 ) {
+            throw new IllegalStateException("The previous sequence wasn't ended.");
+        }
+        ensureRoom(4);
+        lengthPosition = buffer.position();
+        buffer.putInt(0); // placeholder for the sequence length
+    }
+
+    void endSeq() {
+        if ( lengthPosition == -1 ) {
+            throw new IllegalStateException("No sequence was begun.");
+        }
+        if ( packedLengthWord != -1 ) {
+            buffer.putInt(lengthPosition, packedLengthWord);
+            packedLengthWord = -1;
+        } else {
+            final int length = buffer.position() - lengthPosition - 4;
+            if ( length > MAX_SEQ_LENGTH ) {
+                throw new MiniMap2Exception("A sequence can't be longer than " + MAX_SEQ_LENGTH + " bases.");
+            }
+            buffer.putInt(lengthPosition, length);
+        }
+        lengthPosition = -1;
+        nSeqs += 1;
+    }
+
+    /** fills in the count of sequences, and returns the buffer ready to pass to native code */
+    ByteBuffer finish() {
+        if ( lengthPosition != -1 ) {
+            throw new IllegalStateException("The final sequence wasn't ended.");
+        }
+        buffer.putInt(0, nSeqs);
+        return buffer;
+    }
+
+    int getNSeqs() { return nSeqs; }
+
+    /** the number of bytes written so far */
+    int size() { return buffer == null ? 0 : buffer.position(); }
+
+    @Override public void put( final byte[] bases, final int offset, final int length ) {
+        checkNotPacked();
+        ensureRoom(length);
+        buffer.put(bases, offset, length);
+    }
+
+    @Override public void put( final ByteBuffer bases ) {
+        checkNotPacked();
+        ensureRoom(bases.remaining());
+        buffer.put(bases.duplicate());
+    }
+
+    @Override public void put( final byte base ) {
+        checkNotPacked();
+        ensureRoom(1);
+        buffer.put(base);
+    }
+
+    @Override public void putPacked( final byte[] packedBases, final int offset, final int nBases,
+                                     final MiniMap2Aligner.SeqEncoding encoding ) {
+        if ( lengthPosition == -1 ) {
+            throw new IllegalStateException("No sequence was begun.");
+        }
+        if ( buffer.position() != lengthPosition + 4 ) {
+            throw new IllegalStateException("A packed sequence can't be combined with other bases.");
+        }
+        if ( nBases < 0 || nBases > MAX_SEQ_LENGTH ) {
+            throw new IllegalArgumentException("A sequence must have between 0 and " + MAX_SEQ_LENGTH + " bases.");
+        }
+        final int packedLength = encoding.getPackedLength(nBases);
+        ensureRoom(packedLength);
+        buffer.put(packedBases, offset, packedLength);
+        packedLengthWord = nBases | (encoding.getCode() << ENCODING_SHIFT);
+    }
+
+    private void checkNotPacked() {
+        if ( packedLengthWord != -1 ) {
+            throw new IllegalStateException("A packed sequence can't be combined with other bases.");
+        }
+    }
+
+    @Override public void close() {
+        if ( buffer != null ) {
+            MiniMap2Index.destroyByteBuffer(buffer);
+            buffer = null;
+        }
+    }
+
+    private void ensureRoom( final int len ) {
+        if ( buffer == null ) {
+            throw new IllegalStateException("The sequence buffer hasn't been started.");
+        }
+        if ( buffer.remaining() >= len ) return;
+        final int position = buffer.position();
+        final long needed = (long)position + len;
+        if ( needed > Integer.MAX_VALUE ) {
+            throw new MiniMap2Exception("Too many bases for a single batch.");
+        }
+        final int newCapacity = (int)Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * buffer.capacity()));
+        final ByteBuffer newBuffer = MiniMap2Index.growByteBuffer(buffer, newCapacity);
+        if ( newBuffer == null ) {
+            throw new MiniMap2Exception("Can't grow buffer for passing sequences to MiniMap2.");
+        }
+        buffer = newBuffer;
+        buffer.order(ByteOrder.nativeOrder()).clear().position(position);
+    }
+}
@@ -0,0 +1,45 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Picks the MiniMap2Backend, once the native library has been loaded.
+ * This is the JDK 22+ version of this class, from META-INF/versions/22 in the multi-release jar.  It uses JNI unless
+ * the LIBMM2_BACKEND property says "ffm", in which case it uses the foreign function API.  If that was asked for but
+ * can't be set up (e.g., because native access has been denied to this module, or because LIBMM2_PATH names an old
+ * library without mm2j_align), loading the library fails, rather than quietly going on with JNI.
+ */
+final class MiniMap2Backends {
+    /** set the LIBMM2_BACKEND property to "ffm" to use the foreign function API where it's available */
+    static final String BACKEND_PROPERTY = "LIBMM2_BACKEND";
+
+    static final MiniMap2Backend JNI = new MiniMap2Backend() {
+        @Override public ByteBuffer createAlignments( final long addr, final long ctxAddr, final ByteBuffer opts,
+                                                      final ByteBuffer seqs, final ByteBuffer reads,
+                                                      final int[] segCounts, final int extraFields,
+                                                      final int nThreads ) {
+            return MiniMap2Index.createAlignments(addr, ctxAddr, opts, seqs, reads, segCounts, extraFields, nThreads);
+        }
+
+        @Override public String getName() { return "jni"; }
+    };
+
+    private MiniMap2Backends() {}
+
+    static MiniMap2Backend select() {
+        if ( !"ffm".equalsIgnoreCase(System.getProperty(BACKEND_PROPERTY)) ) return JNI;
+        try {
+            return forName("ffm");
+        } catch ( final RuntimeException re ) {
+            throw new MiniMap2Exception("The foreign function backend was requested with " + BACKEND_PROPERTY +
+                                        "=ffm, but it can't be set up.", re);
+        }
+    }
+
+    /** the backend with the given name, or a MiniMap2Exception if there's no such backend here */
+    static MiniMap2Backend forName( final String name ) {
+        if ( "jni".equals(name) ) return JNI;
+        if ( "ffm".equals(name) ) return new MiniMap2ForeignBackend();
+        throw new MiniMap2Exception("There's no minimap2 backend named " + name + ".");
+    }
+}
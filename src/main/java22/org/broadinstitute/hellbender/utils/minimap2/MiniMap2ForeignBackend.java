@@ -0,0 +1,75 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * Aligns batches by calling the native library's mm2j_align function through the foreign function API.
+ * It does what the JNI createAlignments does, without the JNI-specific work around each call:  there are no
+ * GetDirectBufferAddress lookups, no copying of the segment counts out of a Java array, and no exception to be
+ * thrown from native code.  The small amount of memory each call needs (the segment counts and the places
+ * for mm2j_align to put the location and size of the results) comes from a confined Arena, freed as the call returns.
+ * The results are, as with JNI, a view of the aligner context's arena that's valid until the context's next call.
+ */
+final class MiniMap2ForeignBackend implements MiniMap2Backend {
+    private final MethodHandle align;
+
+    MiniMap2ForeignBackend() {
+        final MemorySegment alignFunc = SymbolLookup.loaderLookup().find("mm2j_align")
+                .orElseThrow(() -> new MiniMap2Exception("The minimap2 native library has no mm2j_align function."));
+        // const char* mm2j_align( void* pIdx, void* pCtx, void* pOpts, void* pSeqsBuf, void* pReadsBuf,
+        //                         const int32_t* pSegCounts, int32_t nFrags, int32_t extraFields, int32_t nThreads,
+        //                         char** ppResults, size_t* pResultsLen )
+        align = Linker.nativeLinker().downcallHandle(alignFunc,
+                FunctionDescriptor.of(ValueLayout.ADDRESS,
+                        ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS,
+                        ValueLayout.ADDRESS, ValueLayout.ADDRESS,
+                        ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
+                        ValueLayout.ADDRESS, ValueLayout.ADDRESS));
+    }
+
+    @Override
+    public ByteBuffer createAlignments( final long addr, final long ctxAddr, final ByteBuffer opts,
+                                        final ByteBuffer seqs, final ByteBuffer reads, final int[] segCounts,
+                                        final int extraFields, final int nThreads ) {
+        if ( !opts.isDirect() || !seqs.isDirect() || (reads != null && !reads.isDirect()) ) {
+            throw new MiniMap2Exception("The options, sequences, and reads must be in direct buffers.");
+        }
+        try ( final Arena arena = Arena.ofConfined() ) {
+            final MemorySegment segCountsSeg =
+                    segCounts == null ? MemorySegment.NULL : arena.allocateFrom(ValueLayout.JAVA_INT, segCounts);
+            final MemorySegment resultsSeg = arena.allocate(ValueLayout.ADDRESS);
+            final MemorySegment resultsLenSeg = arena.allocate(ValueLayout.JAVA_LONG);
+            final MemorySegment errMsg;
+            try {
+                errMsg = (MemorySegment)align.invokeExact(MemorySegment.ofAddress(addr), MemorySegment.ofAddress(ctxAddr),
+                        wholeBuffer(opts), wholeBuffer(seqs), reads == null ? MemorySegment.NULL : wholeBuffer(reads),
+                        segCountsSeg, segCounts == null ? 0 : segCounts.length, extraFields, nThreads,
+                        resultsSeg, resultsLenSeg);
+            } catch ( final RuntimeException | Error e ) {
+                throw e;
+            } catch ( final Throwable t ) {
+                throw new MiniMap2Exception("Call to mm2j_align failed.", t);
+            }
+            if ( !MemorySegment.NULL.equals(errMsg) ) {
+                throw new MiniMap2Exception(errMsg.reinterpret(Integer.MAX_VALUE).getString(0));
+            }
+            final long resultsLen = resultsLenSeg.get(ValueLayout.JAVA_LONG, 0);
+            return resultsSeg.get(ValueLayout.ADDRESS, 0).reinterpret(resultsLen).asByteBuffer();
+        }
+    }
+
+    @Override public String getName() { return "ffm"; }
+
+    // a segment from the start of the buffer's memory:  ofBuffer starts at the position, which for a finished
+    // MiniMap2SeqBuffer is the end of the data.  JNI's GetDirectBufferAddress, by contrast, ignores the position.
+    private static MemorySegment wholeBuffer( final ByteBuffer buffer ) {
+        return MemorySegment.ofBuffer(buffer.duplicate().clear());
+    }
+}
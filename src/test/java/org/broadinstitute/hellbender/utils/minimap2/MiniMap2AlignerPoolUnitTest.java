@@ -0,0 +1,122 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+@Test
+public class MiniMap2AlignerPoolUnitTest {
+    private static MiniMap2Index index;
+
+    @BeforeClass
+    void openIndex() {
+        index = new MiniMap2Index("src/test/resources/org/broadinstitute/hellbender/utils/minimap2/test.mmi");
+    }
+
+    @AfterClass
+    void closeIndex() { index.close(); index = null; }
+
+    @Test
+    void testAlignAsync() throws Exception {
+        final List<byte[]> seqs = Arrays.asList(
+                "AGAACTCCACACATGGGATAATGTTTTGGCTAGATGGCTCCCCTACTTAGAAACATACAATTGCTAGTCATATTTCTAATTTTAGGATTTCGAGATACTGGTGATGAAGATCACATGTCC".getBytes(),
+                "ATCCAAAGAAAAGCAGAGAAATAAATAACTTGTTAGAGAGCAATGTAAGGTTAAGGGAAAGCTTTCAGGTTTGTTTTGAAGAACGAGAAATACCAAATGGTGCTTGCAAGCAATGAGAAA".getBytes());
+        final List<List<MiniMap2Alignment>> expected = Arrays.asList(
+                Collections.singletonList(new MiniMap2Alignment(0, 0, 0, 60, 0, "120M")),
+                Collections.singletonList(new MiniMap2Alignment(16, 1, 60, 60, 0, "120M")));
+        final List<CompletableFuture<List<List<MiniMap2Alignment>>>> futures = new ArrayList<>();
+        final MiniMap2AlignerPool pool = new MiniMap2AlignerPool(index, 3, 2);
+        try {
+            for ( int idx = 0; idx != 100; ++idx ) {
+                futures.add(pool.alignAsync(seqs));
+            }
+        } finally {
+            pool.close();
+        }
+        Assert.assertFalse(pool.isOpen());
+        for ( final CompletableFuture<List<List<MiniMap2Alignment>>> future : futures ) {
+            Assert.assertTrue(future.isDone());
+            Assert.assertEquals(future.get(), expected);
+        }
+    }
+
+    @Test
+    void testAlignSeqs() {
+        // thousands of short reads with a few whole contigs scattered among them
+        final byte[] contig = new byte[index.getRefLength(0)];
+        index.getRefBases(0, 0, contig.length, contig, 0);
+        final List<byte[]> seqs = new ArrayList<>();
+        for ( int idx = 0; idx != 2000; ++idx ) {
+            if ( idx % 500 == 7 ) seqs.add(contig);
+            seqs.add(Arrays.copyOfRange(contig, idx, idx + 150));
+        }
+        final List<List<MiniMap2Alignment>> expected;
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            expected = aligner.alignSeqs(seqs);
+        }
+        try ( final MiniMap2AlignerPool pool = new MiniMap2AlignerPool(index, 3, 2) ) {
+            Assert.assertEquals(pool.alignSeqs(seqs), expected);
+
+            // the bases are extracted from each item just once
+            final AtomicInteger nExtractions = new AtomicInteger();
+            Assert.assertEquals(pool.alignSeqs(seqs, seq -> { nExtractions.incrementAndGet(); return seq.clone(); }),
+                                expected);
+            Assert.assertEquals(nExtractions.get(), seqs.size());
+            Assert.assertEquals(pool.alignSeqs(Collections.emptyList()), Collections.emptyList());
+        }
+    }
+
+    @Test
+    void testSubmitterWaitingDuringClose() throws Exception {
+        final MiniMap2AlignerPool pool = new MiniMap2AlignerPool(index, 1, 1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Function<MiniMap2Aligner, Boolean> waitForLatch = aligner -> {
+            try {
+                return latch.await(10, TimeUnit.SECONDS);
+            } catch ( final InterruptedException ie ) {
+                return false;
+            }
+        };
+        // one batch running, and one waiting:  the next submitter has to wait for room
+        final CompletableFuture<Boolean> running = pool.apply(waitForLatch);
+        final CompletableFuture<Boolean> queued = pool.apply(waitForLatch);
+        final AtomicReference<Throwable> submitterResult = new AtomicReference<>();
+        final Thread submitter = new Thread(() -> {
+            try {
+                pool.apply(aligner -> true).join();
+            } catch ( final Throwable t ) {
+                submitterResult.set(t);
+            }
+        });
+        submitter.start();
+        final Thread closer = new Thread(pool::close);
+        closer.start();
+        Thread.sleep(100L);
+        latch.countDown();
+        closer.join(10000L);
+        submitter.join(10000L);
+        Assert.assertFalse(submitter.isAlive(), "A batch submitted while the pool was closing was never finished.");
+        Assert.assertTrue(running.get() && queued.get());
+        Assert.assertTrue(submitterResult.get() instanceof RejectedExecutionException);
+    }
+
+    @Test(expectedExceptions = java.util.concurrent.RejectedExecutionException.class)
+    void testClosedPool() {
+        final MiniMap2AlignerPool pool = new MiniMap2AlignerPool(index, 1, 1);
+        pool.close();
+        pool.alignAsync(Collections.emptyList());
+    }
+}
@@ -1,13 +1,20 @@
 package org.broadinstitute.hellbender.utils.minimap2;
 
 import org.testng.Assert;
+import org.testng.SkipException;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.stream.Stream;
 
 @Test
 public class MiniMap2AlignerUnitTest {
@@ -21,6 +28,504 @@ public class MiniMap2AlignerUnitTest {
     @AfterClass
     void closeIndex() { index.close(); index = null; }
 
+    private static final List<byte[]> TEST_SEQS = Arrays.asList(
+            "AGAACTCCACACATGGGATAATGTTTTGGCTAGATGGCTCCCCTACTTAGAAACATACAATTGCTAGTCATATTTCTAATTTTAGGATTTCGAGATACTGGTGATGAAGATCACATGTCC".getBytes(),
+            "TTTTTTTTACACATGGGATAATGTTTTGGCTAGATGGCTCCCCTACTTAGAAACATACAATTGCTAGTCATATTTCTAATTTTAGGATTTCGAGATACTGGTGATGAAGATCACATGTCC".getBytes(),
+            "AGAACTCCACACATGGGATAATGTTTTGGCTAGATGGCTCCCCTACTTAGAAACATACAATTGCTAGTCATATTTCTAATTTTAGGATTTCGAGATACTGGTGATGAAGATCGGGGGGGG".getBytes(),
+            "TTTTTTTTACACATGGGATAATGTTTTGGCTAGATGGCTCCCCTACTTAGAAACATACAATTGCTAGTCATATTTCTAATTTTAGGATTTCGAGATACTGGTGATGAAGATCGGGGGGGG".getBytes(),
+            "ATCCAAAGAAAAGCAGAGAAATAAATAACTTGTTAGAGAGCAATGTAAGGTTAAGGGAAAGCTTTCAGGTTTGTTTTGAAGAACGAGAAATACCAAATGGTGCTTGCAAGCAATGAGAAA".getBytes());
+
+    private static final List<List<MiniMap2Alignment>> EXPECTED_ALIGNMENTS = Arrays.asList(
+            Collections.singletonList(new MiniMap2Alignment(0, 0, 0, 60, 0, "120M")),
+            Collections.singletonList(new MiniMap2Alignment(0, 0, 8, 60, 0, "8S112M")),
+            Collections.singletonList(new MiniMap2Alignment(0, 0, 0, 60, 0, "112M8S")),
+            Collections.singletonList(new MiniMap2Alignment(0, 0, 8, 60, 0, "8S104M8S")),
+            Collections.singletonList(new MiniMap2Alignment(16, 1, 60, 60, 0, "120M")));
+
+    @Test
+    void testAlignPairs() {
+        // the reverse complement of ref1:240-360, which pairs with TEST_SEQS[0] in the usual FR orientation
+        final byte[] secondMate =
+                "AGAGTGGCAGCAATGGAGGTGGCGAGAATAATTGCATTCTGGATATAATTTGCAGGCAGATGTAATAGACTTCCTGATAGATATGAGTGTCATAGGATATAGAAAAATCATAGATAATTC".getBytes();
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index, MiniMap2Aligner.Preset.SR) ) {
+            final List<List<List<MiniMap2Alignment>>> pairAligns =
+                    aligner.alignPairs(Arrays.asList(TEST_SEQS.get(0), TEST_SEQS.get(0)),
+                                       Arrays.asList(secondMate, TEST_SEQS.get(4)));
+            Assert.assertEquals(pairAligns.size(), 2);
+            final MiniMap2Alignment mate1 = pairAligns.get(0).get(0).get(0);
+            final MiniMap2Alignment mate2 = pairAligns.get(0).get(1).get(0);
+            Assert.assertEquals(mate1.getSAMFlag(), 0x1 | 0x2 | 0x20 | 0x40);
+            Assert.assertEquals(mate1.getRefStart(), 0);
+            Assert.assertEquals(mate2.getSAMFlag(), 0x1 | 0x2 | 0x10 | 0x80);
+            Assert.assertEquals(mate2.getRefStart(), 240);
+            // mates on different contigs aren't a proper pair
+            Assert.assertEquals(pairAligns.get(1).get(0).get(0).getSAMFlag() & 0x2, 0);
+            Assert.assertEquals(pairAligns.get(1).get(1).get(0).getRefId(), 1);
+
+            // and the aligner still aligns single sequences independently
+            Assert.assertEquals(aligner.alignSeqs(Collections.singletonList(TEST_SEQS.get(0))).get(0).get(0).getSAMFlag(), 0);
+        }
+    }
+
+    @Test
+    void testExtraFields() {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            aligner.setExtraFields(MiniMap2Alignment.EXTRA_COORDS | MiniMap2Alignment.EXTRA_SCORES |
+                                    MiniMap2Alignment.EXTRA_MD | MiniMap2Alignment.EXTRA_CS);
+            final List<List<MiniMap2Alignment>> aligns = aligner.alignSeqs(TEST_SEQS);
+            final MiniMap2Alignment exact = aligns.get(0).get(0);
+            Assert.assertEquals(exact.getQueryStart(), 0);
+            Assert.assertEquals(exact.getQueryEnd(), 120);
+            Assert.assertEquals(exact.getRefEnd(), 120);
+            Assert.assertEquals(exact.getAlignmentScore(), 240);
+            Assert.assertTrue(exact.getNMinimizers() > 0);
+            Assert.assertEquals(exact.getMD(), "120");
+            Assert.assertEquals(exact.getCS(), ":120");
+            final MiniMap2Alignment clipped = aligns.get(1).get(0);
+            Assert.assertEquals(clipped.getQueryStart(), 8);
+            Assert.assertEquals(clipped.getRefEnd(), 120);
+            Assert.assertEquals(clipped.getMD(), "112");
+            Assert.assertTrue(aligns.get(4).get(0).isReverseStrand());
+
+            // the view decodes the same fields
+            final MiniMap2Alignments view = aligner.alignSeqsInto(TEST_SEQS, new MiniMap2Alignments());
+            for ( int seqIdx = 0; seqIdx != TEST_SEQS.size(); ++seqIdx ) {
+                Assert.assertEquals(view.getAlignment(view.getFirstAlignment(seqIdx)), aligns.get(seqIdx).get(0));
+            }
+
+            // and turning them off gets the compact records back
+            aligner.setExtraFields(0);
+            Assert.assertEquals(aligner.alignSeqs(TEST_SEQS), EXPECTED_ALIGNMENTS);
+        }
+    }
+
+    @Test
+    void testMetrics() throws Exception {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            final List<MiniMap2Metrics.BatchStats> batches = new ArrayList<>();
+            final MiniMap2Metrics metrics = aligner.getMetrics();
+            metrics.addListener(batches::add);
+            final long indexReads = index.getMetrics().getReads();
+            aligner.alignSeqs(TEST_SEQS);
+            aligner.alignSeqsInto(Collections.singletonList(new byte[0]), new MiniMap2Alignments());
+
+            Assert.assertEquals(batches.size(), 2);
+            final MiniMap2Metrics.BatchStats stats = batches.get(0);
+            Assert.assertEquals(stats.getReads(), TEST_SEQS.size());
+            Assert.assertEquals(stats.getBases(), 120 * TEST_SEQS.size());
+            Assert.assertEquals(stats.getAlignments(), TEST_SEQS.size());
+            Assert.assertEquals(stats.getUnmappedReads(), 0);
+            Assert.assertTrue(stats.getResultBytes() > 0);
+            Assert.assertTrue(stats.getNativeNanos() > 0);
+            Assert.assertTrue(stats.getNativeMapNanos() <= stats.getNativeNanos());
+            Assert.assertEquals(batches.get(1).getUnmappedReads(), 1);
+
+            Assert.assertEquals(metrics.getBatches(), 2);
+            Assert.assertEquals(metrics.getReads(), TEST_SEQS.size() + 1);
+            Assert.assertEquals(metrics.getBatchLatency().getCount(), 2);
+            Assert.assertTrue(metrics.getBatchLatencyMedianNanos() > 0);
+            Assert.assertTrue(index.getMetrics().getReads() >= indexReads + TEST_SEQS.size() + 1);
+
+            final ObjectName name = metrics.registerMBean("testMetrics");
+            try {
+                Assert.assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Reads"),
+                                    (long)TEST_SEQS.size() + 1);
+            } finally {
+                MiniMap2Metrics.unregisterMBean(name);
+            }
+            metrics.reset();
+            Assert.assertEquals(metrics.getReads(), 0);
+        }
+    }
+
+    @Test
+    void testOptionTemplates() {
+        final MiniMap2Options template = index.getOptions(MiniMap2Aligner.Preset.SR);
+        Assert.assertSame(index.getOptions(MiniMap2Aligner.Preset.SR), template);
+        try ( final MiniMap2Aligner aligner1 = new MiniMap2Aligner(index, MiniMap2Aligner.Preset.SR);
+              final MiniMap2Aligner aligner2 = new MiniMap2Aligner(index, template) ) {
+            Assert.assertEquals(aligner1.getOptions(), template);
+            Assert.assertEquals(aligner2.getOptions(), template);
+            Assert.assertEquals(aligner2.toString(), template.toString());
+
+            aligner2.setA(aligner2.getA() + 1);
+            final MiniMap2Options modified = aligner2.getOptions();
+            Assert.assertNotEquals(modified, template);
+            try ( final MiniMap2Aligner aligner3 = new MiniMap2Aligner(index, modified) ) {
+                Assert.assertEquals(aligner3.getA(), aligner2.getA());
+            }
+            aligner2.setOptions(template);
+            Assert.assertEquals(aligner2.getA(), aligner1.getA());
+        }
+    }
+
+    @Test
+    void testFilters() {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            aligner.setExtraFields(MiniMap2Alignment.EXTRA_SCORES);
+            final List<List<MiniMap2Alignment>> unfiltered = aligner.alignSeqs(TEST_SEQS);
+
+            aligner.setFilterFlags(MiniMap2Aligner.FILTER_PRIMARY_ONLY);
+            aligner.setMaxHits(1);
+            final List<List<MiniMap2Alignment>> primaries = aligner.alignSeqs(TEST_SEQS);
+            Assert.assertEquals(primaries.size(), TEST_SEQS.size());
+            for ( int seqIdx = 0; seqIdx != TEST_SEQS.size(); ++seqIdx ) {
+                Assert.assertEquals(primaries.get(seqIdx).size(), 1);
+                Assert.assertEquals(primaries.get(seqIdx).get(0), unfiltered.get(seqIdx).get(0));
+            }
+
+            aligner.setMinAlignmentScore(unfiltered.get(0).get(0).getAlignmentScore() + 1);
+            Assert.assertTrue(aligner.alignSeqs(TEST_SEQS).get(0).isEmpty());
+            aligner.setMinAlignmentScore(0);
+            aligner.setMinMapQ(256);
+            Assert.assertTrue(aligner.alignSeqs(TEST_SEQS).stream().allMatch(List::isEmpty));
+        }
+    }
+
+    @Test
+    void testPackedSeqs() {
+        // odd lengths exercise the partly-filled final byte
+        final List<byte[]> seqs = new ArrayList<>(TEST_SEQS);
+        seqs.add(Arrays.copyOf(TEST_SEQS.get(0), 119));
+        seqs.add(Arrays.copyOf(TEST_SEQS.get(0), 118));
+        final int[] lengths = seqs.stream().mapToInt(seq -> seq.length).toArray();
+        final String nt16 = "=ACMGRSVTWYHKDBN";
+        final String nt4 = "ACGT";
+        final List<byte[]> packed4 = new ArrayList<>(seqs.size());
+        final List<byte[]> packed2 = new ArrayList<>(seqs.size());
+        for ( final byte[] seq : seqs ) {
+            final byte[] seq4 = new byte[(seq.length + 1) / 2];
+            final byte[] seq2 = new byte[(seq.length + 3) / 4];
+            for ( int idx = 0; idx != seq.length; ++idx ) {
+                seq4[idx / 2] |= nt16.indexOf(seq[idx]) << (idx % 2 == 0 ? 4 : 0);
+                seq2[idx / 4] |= nt4.indexOf(seq[idx]) << (6 - 2 * (idx % 4));
+            }
+            packed4.add(seq4);
+            packed2.add(seq2);
+        }
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            final List<List<MiniMap2Alignment>> expected = aligner.alignSeqs(seqs);
+            Assert.assertEquals(aligner.alignPackedSeqs(packed4, lengths, MiniMap2Aligner.SeqEncoding.BAM_4BIT), expected);
+            Assert.assertEquals(aligner.alignPackedSeqs(packed2, lengths, MiniMap2Aligner.SeqEncoding.PACKED_2BIT), expected);
+            Assert.assertEquals(aligner.getMetrics().getBases(), 3L * Arrays.stream(lengths).sum());
+
+            // packed and ASCII sequences can be mixed in a batch
+            final List<List<MiniMap2Alignment>> mixed = aligner.alignSeqs(Arrays.asList(0, 1), ( idx, sink ) -> {
+                if ( idx == 0 ) sink.put(seqs.get(0));
+                else sink.putPacked(packed4.get(1), 0, lengths[1], MiniMap2Aligner.SeqEncoding.BAM_4BIT);
+            });
+            Assert.assertEquals(mixed, expected.subList(0, 2));
+        }
+    }
+
+    @Test
+    void testAlignmentCache() {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            final List<List<MiniMap2Alignment>> expected = aligner.alignSeqs(TEST_SEQS);
+            final MiniMap2AlignmentCache cache = new MiniMap2AlignmentCache(aligner, 1L << 20);
+            final List<byte[]> seqs = new ArrayList<>(TEST_SEQS);
+            seqs.add(TEST_SEQS.get(0).clone()); // a duplicate within the batch
+            final List<List<MiniMap2Alignment>> expectedWithDup = new ArrayList<>(expected);
+            expectedWithDup.add(expected.get(0));
+
+            final long nativeReads = aligner.getMetrics().getReads();
+            Assert.assertEquals(cache.alignSeqs(seqs), expectedWithDup);
+            Assert.assertEquals(aligner.getMetrics().getReads(), nativeReads + TEST_SEQS.size());
+            Assert.assertEquals(cache.getMisses(), TEST_SEQS.size());
+            Assert.assertEquals(cache.getDuplicates(), 1);
+            Assert.assertEquals(cache.size(), TEST_SEQS.size());
+
+            Assert.assertEquals(cache.alignSeqs(seqs), expectedWithDup);
+            Assert.assertEquals(aligner.getMetrics().getReads(), nativeReads + TEST_SEQS.size());
+            Assert.assertEquals(cache.getHits(), seqs.size());
+
+            // changing the aligner's settings means realigning
+            aligner.setExtraFields(MiniMap2Alignment.EXTRA_COORDS);
+            Assert.assertEquals(cache.alignSeqs(TEST_SEQS).get(0).get(0).getQueryEnd(), 120);
+            Assert.assertEquals(cache.getMisses(), 2 * TEST_SEQS.size());
+
+            // a tiny cache keeps only the most recent entries
+            final MiniMap2AlignmentCache tinyCache = new MiniMap2AlignmentCache(aligner, 400L);
+            tinyCache.alignSeqs(TEST_SEQS);
+            Assert.assertTrue(tinyCache.getWeight() <= 400L);
+            Assert.assertTrue(tinyCache.getEvictions() > 0);
+        }
+    }
+
+    @Test
+    void testMapSeqs() {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            final List<List<MiniMap2Alignment>> alignments = aligner.alignSeqs(TEST_SEQS);
+            final List<List<MiniMap2Hit>> hits = aligner.mapSeqs(TEST_SEQS);
+            Assert.assertEquals(hits.size(), TEST_SEQS.size());
+            for ( int seqIdx = 0; seqIdx != TEST_SEQS.size(); ++seqIdx ) {
+                final MiniMap2Alignment alignment = alignments.get(seqIdx).get(0);
+                final MiniMap2Hit hit = hits.get(seqIdx).get(0);
+                Assert.assertTrue(hit.isPrimary());
+                Assert.assertEquals(hit.getRefId(), alignment.getRefId());
+                Assert.assertEquals(hit.isReverseStrand(), alignment.isReverseStrand());
+                Assert.assertTrue(Math.abs(hit.getRefStart() - alignment.getRefStart()) < 20);
+                Assert.assertTrue(hit.getRefEnd() > hit.getRefStart());
+                Assert.assertTrue(hit.getQueryEnd() > hit.getQueryStart());
+                Assert.assertTrue(hit.getChainScore() > 0);
+                Assert.assertTrue(hit.getNMinimizers() > 0);
+            }
+            // the aligner still makes full alignments afterwards
+            Assert.assertEquals(aligner.alignSeqs(TEST_SEQS), alignments);
+        }
+    }
+
+    @Test
+    void testAlignToBam() {
+        final List<byte[]> seqs = new ArrayList<>(TEST_SEQS);
+        seqs.add("NNNNNNNNNNNNNNNNNNNNNNNNNNNNNN".getBytes());
+        final byte[] quals = new byte[120];
+        for ( int idx = 0; idx != quals.length; ++idx ) quals[idx] = (byte)(idx % 60);
+        final MiniMap2Aligner.BamReadWriter<Integer> writer = new MiniMap2Aligner.BamReadWriter<Integer>() {
+            @Override public void write( final Integer readIdx, final MiniMap2Aligner.SeqSink sink ) {
+                sink.put(seqs.get(readIdx));
+            }
+            @Override public byte[] getName( final Integer readIdx ) { return ("read" + readIdx).getBytes(); }
+            @Override public byte[] getQuals( final Integer readIdx ) { return readIdx < TEST_SEQS.size() ? quals : null; }
+        };
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            final ByteBuffer records = aligner.alignToBam(Arrays.asList(0, 1, 2, 3, 4, 5), writer);
+            for ( int readIdx = 0; readIdx != seqs.size(); ++readIdx ) {
+                final int recordEnd = records.position() + 4 + records.getInt();
+                final int refId = records.getInt();
+                final int pos = records.getInt();
+                final int nameLen = records.get() & 0xff;
+                final int mapQ = records.get() & 0xff;
+                records.getShort(); // bin
+                final int nCigar = records.getShort() & 0xffff;
+                final int flag = records.getShort() & 0xffff;
+                final int seqLen = records.getInt();
+                Assert.assertEquals(records.getInt(), -1);
+                Assert.assertEquals(records.getInt(), -1);
+                Assert.assertEquals(records.getInt(), 0);
+                final byte[] name = new byte[nameLen];
+                records.get(name);
+                Assert.assertEquals(new String(name, 0, nameLen - 1), "read" + readIdx);
+                final StringBuilder cigar = new StringBuilder();
+                for ( int opIdx = 0; opIdx != nCigar; ++opIdx ) {
+                    final int op = records.getInt();
+                    cigar.append(op >>> 4).append("MIDNSHP=X".charAt(op & 0xf));
+                }
+                records.position(records.position() + (seqLen + 1) / 2);
+                final byte firstQual = records.get();
+                records.position(records.position() + seqLen - 1);
+                final byte[] tags = new byte[recordEnd - records.position()];
+                records.get(tags);
+                if ( readIdx == TEST_SEQS.size() ) {
+                    Assert.assertEquals(flag, 0x4);
+                    Assert.assertEquals(refId, -1);
+                    Assert.assertEquals(pos, -1);
+                    Assert.assertEquals(seqLen, 30);
+                    Assert.assertEquals(firstQual, (byte)0xff);
+                    Assert.assertEquals(tags.length, 0);
+                    continue;
+                }
+                final MiniMap2Alignment expected = EXPECTED_ALIGNMENTS.get(readIdx).get(0);
+                Assert.assertEquals(flag, expected.getSAMFlag());
+                Assert.assertEquals(refId, expected.getRefId());
+                Assert.assertEquals(pos, expected.getRefStart());
+                Assert.assertEquals(mapQ, expected.getMapQ());
+                Assert.assertEquals(cigar.toString(), expected.getCigar());
+                Assert.assertEquals(seqLen, 120);
+                // the qualities of a reverse-strand record are reversed
+                Assert.assertEquals(firstQual, expected.isReverseStrand() ? quals[119] : quals[0]);
+                final String tagString = new String(tags);
+                Assert.assertTrue(tagString.startsWith("NMi"));
+                Assert.assertTrue(tagString.contains("MDZ"));
+            }
+            Assert.assertFalse(records.hasRemaining());
+        }
+    }
+
+    @Test
+    void testBackendName() {
+        // when the foreign function backend is asked for, we get it or nothing:  we don't quietly fall back to JNI
+        Assert.assertEquals(MiniMap2Index.getBackendName(), isFfmRequested() ? "ffm" : "jni");
+    }
+
+    private static boolean isFfmRequested() {
+        return "ffm".equalsIgnoreCase(System.getProperty(MiniMap2Backends.BACKEND_PROPERTY));
+    }
+
+    @Test
+    void testBackendsAgree() {
+        final MiniMap2Backend ffm;
+        try {
+            ffm = MiniMap2Backends.forName("ffm");
+        } catch ( final MiniMap2Exception me ) {
+            if ( isFfmRequested() ) throw me; // e.g., in testJava22:  don't let the comparison be skipped
+            throw new SkipException("The foreign function backend isn't available on this JDK.");
+        }
+        final MiniMap2Backend jni = MiniMap2Backends.forName("jni");
+        final MiniMap2Aligner.BamReadWriter<byte[]> writer = new MiniMap2Aligner.BamReadWriter<byte[]>() {
+            @Override public void write( final byte[] seq, final MiniMap2Aligner.SeqSink sink ) { sink.put(seq); }
+            @Override public byte[] getName( final byte[] seq ) { return "read".getBytes(); }
+            @Override public byte[] getQuals( final byte[] seq ) { return null; }
+        };
+        final List<Object> results = new ArrayList<>();
+        final MiniMap2Backend original = MiniMap2Index.setBackend(jni);
+        try {
+            for ( final MiniMap2Backend backend : Arrays.asList(jni, ffm) ) {
+                MiniMap2Index.setBackend(backend);
+                try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+                    aligner.setExtraFields(MiniMap2Alignment.EXTRA_COORDS | MiniMap2Alignment.EXTRA_MD);
+                    final List<Object> backendResults = new ArrayList<>();
+                    // a big batch, and then a smaller one in the same (reused) buffers
+                    final List<byte[]> seqs = new ArrayList<>();
+                    for ( int idx = 0; idx != 10; ++idx ) seqs.addAll(TEST_SEQS);
+                    backendResults.add(aligner.alignSeqs(seqs));
+                    backendResults.add(aligner.alignSeqs(TEST_SEQS.subList(1, 3)));
+                    backendResults.add(aligner.alignPairs(TEST_SEQS.subList(0, 2), TEST_SEQS.subList(3, 5)));
+                    final ByteBuffer records = aligner.alignToBam(TEST_SEQS, writer);
+                    final byte[] recordBytes = new byte[records.remaining()];
+                    records.get(recordBytes);
+                    backendResults.add(Arrays.toString(recordBytes));
+                    results.add(backendResults);
+                }
+            }
+        } finally {
+            MiniMap2Index.setBackend(original);
+        }
+        Assert.assertEquals(((List<?>)((List<?>)results.get(0)).get(0)).size(), 50);
+        Assert.assertEquals(results.get(1), results.get(0));
+    }
+
+    @Test
+    void testMultiThreadedAlignment() {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            aligner.setNumThreads(3);
+            final List<byte[]> seqs = new ArrayList<>();
+            final List<List<MiniMap2Alignment>> expected = new ArrayList<>();
+            for ( int idx = 0; idx != 20; ++idx ) {
+                seqs.addAll(TEST_SEQS);
+                expected.addAll(EXPECTED_ALIGNMENTS);
+            }
+            Assert.assertEquals(aligner.alignSeqs(seqs), expected);
+        }
+    }
+
+    @Test
+    void testReusedAligner() {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            final List<byte[]> seqs = new ArrayList<>();
+            final List<List<MiniMap2Alignment>> expected = new ArrayList<>();
+            // batches that grow past the initial size of the sequence buffer
+            for ( int batch = 0; batch != 12; ++batch ) {
+                for ( int idx = 0; idx != 1 << batch; ++idx ) {
+                    seqs.addAll(TEST_SEQS);
+                    expected.addAll(EXPECTED_ALIGNMENTS);
+                }
+                Assert.assertEquals(aligner.alignSeqs(seqs), expected);
+            }
+            Assert.assertEquals(aligner.alignSeqs(TEST_SEQS), EXPECTED_ALIGNMENTS);
+            Assert.assertEquals(aligner.alignSeqs(Collections.emptyList()), Collections.emptyList());
+        }
+    }
+
+    @Test
+    void testInputVariants() {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            final int[] calls = new int[1];
+            Assert.assertEquals(aligner.alignSeqs(TEST_SEQS, seq -> { calls[0] += 1; return seq; }), EXPECTED_ALIGNMENTS);
+            Assert.assertEquals(calls[0], TEST_SEQS.size());
+
+            Assert.assertEquals(aligner.alignSeqs(TEST_SEQS, ( seq, sink ) -> {
+                sink.put(seq, 0, 10);
+                sink.put(seq[10]);
+                sink.put(ByteBuffer.wrap(seq, 11, seq.length - 11));
+            }), EXPECTED_ALIGNMENTS);
+
+            final List<ByteBuffer> buffers = new ArrayList<>();
+            for ( final byte[] seq : TEST_SEQS ) {
+                final ByteBuffer buffer = ByteBuffer.allocate(seq.length + 4);
+                buffer.put((byte)'N').put(seq).put((byte)'N').flip().position(1).limit(seq.length + 1);
+                buffers.add(buffer.slice());
+            }
+            Assert.assertEquals(aligner.alignByteBuffers(buffers), EXPECTED_ALIGNMENTS);
+            Assert.assertEquals(buffers.get(0).position(), 0);
+
+            final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+            final int[] offsets = new int[TEST_SEQS.size()];
+            final int[] lengths = new int[TEST_SEQS.size()];
+            for ( int idx = 0; idx != offsets.length; ++idx ) {
+                pool.write('N');
+                offsets[idx] = pool.size();
+                lengths[idx] = TEST_SEQS.get(idx).length;
+                pool.write(TEST_SEQS.get(idx), 0, lengths[idx]);
+            }
+            Assert.assertEquals(aligner.alignSeqs(pool.toByteArray(), offsets, lengths), EXPECTED_ALIGNMENTS);
+        }
+    }
+
+    @Test
+    void testAlignmentsView() {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            final MiniMap2Alignments alignments = new MiniMap2Alignments();
+            for ( int pass = 0; pass != 2; ++pass ) {
+                Assert.assertSame(aligner.alignSeqsInto(TEST_SEQS, alignments), alignments);
+                Assert.assertEquals(alignments.getNSeqs(), EXPECTED_ALIGNMENTS.size());
+                Assert.assertEquals(alignments.getNAlignments(), EXPECTED_ALIGNMENTS.size());
+                for ( int seqIdx = 0; seqIdx != alignments.getNSeqs(); ++seqIdx ) {
+                    final List<MiniMap2Alignment> expected = EXPECTED_ALIGNMENTS.get(seqIdx);
+                    Assert.assertEquals(alignments.getNAlignments(seqIdx), expected.size());
+                    final int alnIdx = alignments.getFirstAlignment(seqIdx);
+                    Assert.assertEquals(alignments.getEndAlignment(seqIdx), alnIdx + 1);
+                    final MiniMap2Alignment alignment = expected.get(0);
+                    Assert.assertEquals(alignments.getSAMFlag(alnIdx), alignment.getSAMFlag());
+                    Assert.assertEquals(alignments.getRefId(alnIdx), alignment.getRefId());
+                    Assert.assertEquals(alignments.getRefStart(alnIdx), alignment.getRefStart());
+                    Assert.assertEquals(alignments.getMapQ(alnIdx), alignment.getMapQ());
+                    Assert.assertEquals(alignments.getNM(alnIdx), alignment.getNM());
+                    Assert.assertEquals(alignments.getCigarString(alnIdx), alignment.getCigar());
+                    Assert.assertEquals(alignments.getAlignment(alnIdx), alignment);
+                }
+            }
+            // the first op of "8S112M"
+            Assert.assertEquals(alignments.getCigarOp(1, 0), 8 << 4 | 4);
+            aligner.alignSeqsInto(Collections.emptyList(), alignments);
+            Assert.assertEquals(alignments.getNSeqs(), 0);
+            Assert.assertEquals(alignments.getNAlignments(), 0);
+        }
+    }
+
+    @Test
+    void testAlignStream() {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
+            final List<byte[]> seqs = new ArrayList<>();
+            final List<List<MiniMap2Alignment>> expected = new ArrayList<>();
+            for ( int idx = 0; idx != 50; ++idx ) {
+                seqs.addAll(TEST_SEQS);
+                expected.addAll(EXPECTED_ALIGNMENTS);
+            }
+            // small batches, so that the pipeline is exercised
+            int seqIdx = 0;
+            try ( final MiniMap2AlignmentIterator<byte[]> itr = aligner.alignStream(seqs.iterator(), seq -> seq, 1000) ) {
+                while ( itr.hasNext() ) {
+                    final MiniMap2Aligner.AlignedItem<byte[]> alignedItem = itr.next();
+                    Assert.assertSame(alignedItem.getItem(), seqs.get(seqIdx));
+                    Assert.assertEquals(alignedItem.getAlignments(), expected.get(seqIdx));
+                    seqIdx += 1;
+                }
+            }
+            Assert.assertEquals(seqIdx, seqs.size());
+
+            // abandoning a stream part way through
+            try ( final Stream<MiniMap2Aligner.AlignedItem<byte[]>> stream =
+                          aligner.alignStream(seqs.stream(), seq -> seq, 1000) ) {
+                Assert.assertEquals(stream.limit(7).count(), 7);
+            }
+
+            // the aligner is usable again once the stream is closed
+            Assert.assertEquals(aligner.alignSeqs(TEST_SEQS), EXPECTED_ALIGNMENTS);
+            Assert.assertFalse(aligner.alignStream(Collections.<byte[]>emptyIterator(), seq -> seq, 1000).hasNext());
+        }
+    }
+
     @Test
     void testAlignment() {
         try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(index) ) {
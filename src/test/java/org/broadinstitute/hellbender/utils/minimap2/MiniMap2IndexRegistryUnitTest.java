@@ -0,0 +1,72 @@
+package org.broadinstitute.hellbender.utils.minimap2;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Test
+public class MiniMap2IndexRegistryUnitTest {
+    private static final String MMI_FILE = "src/test/resources/org/broadinstitute/hellbender/utils/minimap2/test.mmi";
+
+    @Test
+    void testSharing() {
+        final MiniMap2IndexRegistry registry = new MiniMap2IndexRegistry(0L, TimeUnit.MILLISECONDS);
+        final MiniMap2Index index;
+        try ( final MiniMap2IndexRegistry.Handle handle1 = registry.acquire(MMI_FILE);
+              final MiniMap2IndexRegistry.Handle handle2 = registry.acquire("./" + MMI_FILE) ) {
+            index = handle1.getIndex();
+            Assert.assertSame(handle2.getIndex(), index);
+            Assert.assertEquals(registry.getRefCount(MMI_FILE), 2);
+            handle2.close();
+            handle2.close(); // closing twice doesn't matter
+            Assert.assertEquals(registry.getRefCount(MMI_FILE), 1);
+            Assert.assertTrue(index.isOpen());
+        }
+        Assert.assertFalse(index.isOpen());
+        Assert.assertFalse(registry.isLoaded(MMI_FILE));
+    }
+
+    @Test
+    void testConcurrentFirstLoad() throws Exception {
+        final MiniMap2IndexRegistry registry = new MiniMap2IndexRegistry(0L, TimeUnit.MILLISECONDS);
+        final List<MiniMap2IndexRegistry.Handle> handles = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        for ( int idx = 0; idx != 8; ++idx ) {
+            final Thread thread = new Thread(() -> {
+                final MiniMap2IndexRegistry.Handle handle = registry.acquire(MMI_FILE);
+                synchronized (handles) { handles.add(handle); }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for ( final Thread thread : threads ) thread.join();
+        Assert.assertEquals(handles.size(), 8);
+        for ( final MiniMap2IndexRegistry.Handle handle : handles ) {
+            Assert.assertSame(handle.getIndex(), handles.get(0).getIndex());
+            handle.close();
+        }
+        Assert.assertFalse(registry.isLoaded(MMI_FILE));
+    }
+
+    @Test
+    void testIdleTimeout() throws Exception {
+        final MiniMap2IndexRegistry registry = new MiniMap2IndexRegistry(200L, TimeUnit.MILLISECONDS);
+        final MiniMap2Index index;
+        try ( final MiniMap2IndexRegistry.Handle handle = registry.acquire(MMI_FILE) ) {
+            index = handle.getIndex();
+        }
+        Assert.assertTrue(registry.isLoaded(MMI_FILE));
+        try ( final MiniMap2IndexRegistry.Handle handle = registry.acquire(MMI_FILE) ) {
+            Assert.assertSame(handle.getIndex(), index);
+        }
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while ( registry.isLoaded(MMI_FILE) && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(50L);
+        }
+        Assert.assertFalse(registry.isLoaded(MMI_FILE));
+        Assert.assertFalse(index.isOpen());
+    }
+}
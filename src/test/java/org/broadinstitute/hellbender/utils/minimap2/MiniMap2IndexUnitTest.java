@@ -5,16 +5,29 @@ import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Test
 public class MiniMap2IndexUnitTest {
+    private static final String TEST_DIR = "src/test/resources/org/broadinstitute/hellbender/utils/minimap2/";
+    private static final byte[] TEST_SEQ =
+            "ATCCAAAGAAAAGCAGAGAAATAAATAACTTGTTAGAGAGCAATGTAAGGTTAAGGGAAAGCTTTCAGGTTTGTTTTGAAGAACGAGAAATACCAAATGGTGCTTGCAAGCAATGAGAAA".getBytes();
     private static MiniMap2Index index;
 
     @BeforeClass
     void openIndex() {
-        index = new MiniMap2Index("src/test/resources/org/broadinstitute/hellbender/utils/minimap2/test.mmi");
+        index = new MiniMap2Index(TEST_DIR + "test.mmi");
     }
 
     @AfterClass
@@ -39,6 +52,265 @@ public class MiniMap2IndexUnitTest {
         Assert.assertEquals(index.getRefNames(), Arrays.asList("ref1", "ref2"));
     }
 
+    @Test
+    void testMappableIndex() throws IOException {
+        final File mappableFile = File.createTempFile("test.", ".mm2map");
+        mappableFile.deleteOnExit();
+        index.writeMappableIndex(mappableFile.getPath());
+        try ( final MiniMap2Index mappedIndex = new MiniMap2Index(mappableFile.getPath()) ) {
+            assertSameAlignments(mappedIndex);
+        }
+
+        // damaged files are refused, rather than crashing the JVM
+        final byte[] image = Files.readAllBytes(mappableFile.toPath());
+        final File damagedFile = File.createTempFile("damaged.", ".mm2map");
+        damagedFile.deleteOnExit();
+        Files.write(damagedFile.toPath(), Arrays.copyOf(image, image.length / 2));
+        assertUnopenable(damagedFile);
+        final byte[] zeroLength = image.clone();
+        Arrays.fill(zeroLength, 72, 80, (byte)0); // the header's partLen
+        Files.write(damagedFile.toPath(), zeroLength);
+        assertUnopenable(damagedFile);
+    }
+
+    private static void assertUnopenable( final File indexFile ) {
+        try ( final MiniMap2Index badIndex = new MiniMap2Index(indexFile.getPath()) ) {
+            Assert.fail("Opened a damaged index: " + badIndex.getRefNames());
+        } catch ( final MiniMap2Exception me ) {
+            // expected
+        }
+    }
+
+    @Test
+    void testBuildFromFasta() throws IOException {
+        final File mmiFile = File.createTempFile("test.", ".mmi");
+        mmiFile.deleteOnExit();
+        try ( final MiniMap2Index builtIndex =
+                      MiniMap2Index.buildFromFasta(TEST_DIR + "test.fasta", null, 0, 0, 2, mmiFile.getPath()) ) {
+            assertSameAlignments(builtIndex);
+        }
+        try ( final MiniMap2Index savedIndex = new MiniMap2Index(mmiFile.getPath()) ) {
+            assertSameAlignments(savedIndex);
+        }
+    }
+
+    @Test
+    void testBuildFromContigs() throws IOException {
+        final List<String> names = new ArrayList<>();
+        final List<byte[]> seqs = new ArrayList<>();
+        readTestFasta(names, seqs);
+        try ( final MiniMap2Index builtIndex = MiniMap2Index.buildFromContigs(names, seqs, null) ) {
+            assertSameAlignments(builtIndex);
+        }
+    }
+
+    @Test
+    void testRefDictionary() throws IOException {
+        final List<String> names = new ArrayList<>();
+        final List<byte[]> seqs = new ArrayList<>();
+        readTestFasta(names, seqs);
+        Assert.assertEquals(index.getNRefs(), names.size());
+        Assert.assertEquals(index.getRefId("noSuchContig"), -1);
+        Assert.assertTrue(index.hasRefBases());
+        for ( int refId = 0; refId != names.size(); ++refId ) {
+            final byte[] seq = seqs.get(refId);
+            Assert.assertEquals(index.getRefId(names.get(refId)), refId);
+            Assert.assertEquals(index.getRefLength(refId), seq.length);
+
+            final byte[] bases = new byte[seq.length];
+            Assert.assertEquals(index.getRefBases(refId, 0, seq.length, bases, 0), seq.length);
+            Assert.assertEquals(bases, seq);
+
+            // an interior window, copied to an offset, and a window that runs off the end of the contig
+            final byte[] window = new byte[110];
+            Assert.assertEquals(index.getRefBases(refId, 17, 117, window, 10), 100);
+            Assert.assertEquals(Arrays.copyOfRange(window, 10, 110), Arrays.copyOfRange(seq, 17, 117));
+            Assert.assertEquals(index.getRefBases(refId, seq.length - 50, seq.length + 50, window, 0), 50);
+            Assert.assertEquals(Arrays.copyOf(window, 50), Arrays.copyOfRange(seq, seq.length - 50, seq.length));
+            Assert.assertEquals(index.getRefBases(refId, seq.length, seq.length + 50, window, 0), 0);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    void testGetRefBasesWithoutRoom() {
+        index.getRefBases(0, 0, 100, new byte[100], 1);
+    }
+
+    @Test
+    void testMultiPartIndex() throws IOException {
+        // the test contigs, plus a copy of the start of ref1 with a couple of substitutions, so that a read from the
+        // start of ref1 has a secondary alignment in another part of the index
+        final List<String> names = new ArrayList<>();
+        final List<byte[]> seqs = new ArrayList<>();
+        readTestFasta(names, seqs);
+        final byte[] copy = Arrays.copyOf(seqs.get(0), 1000);
+        copy[30] = substitute(copy[30]);
+        copy[90] = substitute(copy[90]);
+        names.add("ref1copy");
+        seqs.add(copy);
+        final File fastaFile = File.createTempFile("multipart.", ".fasta");
+        fastaFile.deleteOnExit();
+        final StringBuilder sb = new StringBuilder();
+        for ( int refId = 0; refId != names.size(); ++refId ) {
+            sb.append('>').append(names.get(refId)).append('\n').append(new String(seqs.get(refId))).append('\n');
+        }
+        Files.write(fastaFile.toPath(), sb.toString().getBytes());
+        final List<byte[]> reads = Arrays.asList(Arrays.copyOfRange(seqs.get(0), 0, 120),
+                                                 Arrays.copyOfRange(seqs.get(1), 500, 620),
+                                                 Arrays.copyOfRange(seqs.get(0), 2000, 2150));
+
+        final File mappableFile = File.createTempFile("multipart.", ".mm2map");
+        mappableFile.deleteOnExit();
+        try ( final MiniMap2Index singlePart = MiniMap2Index.buildFromFasta(fastaFile.getPath(), null, 0, 0, 0L, 1, null);
+              final MiniMap2Index multiPart = MiniMap2Index.buildFromFasta(fastaFile.getPath(), null, 0, 0, 1000L, 2, null) ) {
+            Assert.assertEquals(singlePart.getNParts(), 1);
+            Assert.assertEquals(multiPart.getNParts(), 3); // a part for each contig
+            final List<List<MiniMap2Alignment>> expected = alignToMultiPart(multiPart, names, seqs, reads);
+
+            // the merged hits are those that we'd get from a single part, mapQs and all
+            Assert.assertEquals(alignWith(singlePart, reads), expected);
+
+            multiPart.writeMappableIndex(mappableFile.getPath());
+            try ( final MiniMap2Index mappedIndex = new MiniMap2Index(mappableFile.getPath()) ) {
+                Assert.assertEquals(mappedIndex.getNParts(), 3);
+                Assert.assertEquals(alignToMultiPart(mappedIndex, names, seqs, reads), expected);
+            }
+        }
+    }
+
+    // checks the contigs and the flags of the alignments to the multi-part index, and returns the alignments
+    private static List<List<MiniMap2Alignment>> alignToMultiPart( final MiniMap2Index multiPart,
+                                                                   final List<String> names, final List<byte[]> seqs,
+                                                                   final List<byte[]> reads ) {
+        Assert.assertEquals(multiPart.getRefNames(), names);
+        for ( int refId = 0; refId != names.size(); ++refId ) {
+            Assert.assertEquals(multiPart.getRefLength(refId), seqs.get(refId).length);
+        }
+        final List<List<MiniMap2Alignment>> alignments = alignWith(multiPart, reads);
+        for ( final List<MiniMap2Alignment> readAlignments : alignments ) {
+            int nPrimary = 0;
+            for ( final MiniMap2Alignment alignment : readAlignments ) {
+                if ( (alignment.getSAMFlag() & 0x900) == 0 ) nPrimary += 1;
+                if ( (alignment.getSAMFlag() & 0x100) != 0 ) Assert.assertEquals(alignment.getMapQ(), 0);
+            }
+            Assert.assertEquals(nPrimary, 1);
+        }
+        // the read from the start of ref1 is primary there, and secondary on its copy, which is in the third part
+        final List<MiniMap2Alignment> repeated = alignments.get(0);
+        Assert.assertEquals(repeated.size(), 2);
+        Assert.assertEquals(repeated.get(0).getSAMFlag(), 0);
+        Assert.assertEquals(repeated.get(0).getRefId(), 0);
+        Assert.assertEquals(repeated.get(0).getRefStart(), 0);
+        Assert.assertEquals(repeated.get(1).getSAMFlag(), 0x100);
+        Assert.assertEquals(repeated.get(1).getRefId(), 2);
+        Assert.assertEquals(repeated.get(1).getRefStart(), 0);
+        Assert.assertEquals(alignments.get(1).get(0).getRefId(), 1);
+        Assert.assertEquals(alignments.get(1).get(0).getRefStart(), 500);
+        Assert.assertEquals(alignments.get(2).get(0).getRefId(), 0);
+        Assert.assertEquals(alignments.get(2).get(0).getRefStart(), 2000);
+        return alignments;
+    }
+
+    private static List<List<MiniMap2Alignment>> alignWith( final MiniMap2Index testIndex, final List<byte[]> reads ) {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(testIndex) ) {
+            return aligner.alignSeqs(reads);
+        }
+    }
+
+    private static byte substitute( final byte base ) {
+        switch ( base ) {
+            case 'A': return 'C';
+            case 'C': return 'G';
+            case 'G': return 'T';
+            default: return 'A';
+        }
+    }
+
+    @Test(expectedExceptions = MiniMap2Exception.class)
+    void testBuildWithBadK() {
+        MiniMap2Index.buildFromContigs(Collections.singletonList("x"), Collections.singletonList(TEST_SEQ),
+                                       null, 29, 0, null);
+    }
+
+    private static void readTestFasta( final List<String> names, final List<byte[]> seqs ) throws IOException {
+        StringBuilder sb = null;
+        for ( final String line : Files.readAllLines(Paths.get(TEST_DIR + "test.fasta")) ) {
+            if ( line.startsWith(">") ) {
+                if ( sb != null ) seqs.add(sb.toString().getBytes());
+                names.add(line.substring(1).trim());
+                sb = new StringBuilder();
+            } else if ( sb != null ) {
+                sb.append(line.trim());
+            }
+        }
+        if ( sb != null ) seqs.add(sb.toString().getBytes());
+    }
+
+    private static void assertSameAlignments( final MiniMap2Index testIndex ) {
+        try ( final MiniMap2Aligner aligner = new MiniMap2Aligner(testIndex);
+              final MiniMap2Aligner expectedAligner = new MiniMap2Aligner(index) ) {
+            Assert.assertEquals(testIndex.getRefNames(), index.getRefNames());
+            Assert.assertEquals(aligner.toString(), expectedAligner.toString());
+            Assert.assertEquals(aligner.alignSeqs(Collections.singletonList(TEST_SEQ)),
+                                expectedAligner.alignSeqs(Collections.singletonList(TEST_SEQ)));
+        }
+    }
+
+    @Test
+    void testCloseWaitsForCallsInFlight() throws InterruptedException {
+        final MiniMap2Index testIndex = new MiniMap2Index(TEST_DIR + "test.mmi");
+        testIndex.acquire("test");
+        Assert.assertFalse(testIndex.close(10, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(testIndex.isOpen());
+        testIndex.getRefNames(); // still usable after a close that timed out
+
+        final Thread releaser = new Thread(() -> {
+            try { Thread.sleep(50); } catch ( final InterruptedException ie ) { /* just release early */ }
+            testIndex.release();
+        });
+        releaser.start();
+        testIndex.close();
+        releaser.join();
+        Assert.assertFalse(testIndex.isOpen());
+        try {
+            testIndex.acquire("test");
+            Assert.fail("acquired a closed index");
+        } catch ( final MiniMap2Exception mme ) {
+            // expected
+        }
+    }
+
+    @Test
+    void testLibraryCache() throws IOException {
+        final String resource = "/org/broadinstitute/hellbender/utils/minimap2/test.fasta";
+        final File cacheDir = Files.createTempDirectory("libmm2-cache").toFile();
+        try {
+            final Path cached = MiniMap2LibraryCache.extract(resource, cacheDir.toPath());
+            Assert.assertEquals(Files.readAllBytes(cached), Files.readAllBytes(Paths.get(TEST_DIR + "test.fasta")));
+            Assert.assertEquals(MiniMap2LibraryCache.extract(resource, cacheDir.toPath()), cached);
+
+            // a damaged copy is replaced
+            Files.write(cached, new byte[] { 'X' });
+            Assert.assertEquals(MiniMap2LibraryCache.extract(resource, cacheDir.toPath()), cached);
+            Assert.assertEquals(Files.readAllBytes(cached), Files.readAllBytes(Paths.get(TEST_DIR + "test.fasta")));
+            Assert.assertEquals(cacheDir.list().length, 1);
+
+            // a directory that others can write to is refused
+            Files.setPosixFilePermissions(cacheDir.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+            try {
+                MiniMap2LibraryCache.extract(resource, cacheDir.toPath());
+                Assert.fail("Used a world-writable cache directory.");
+            } catch ( final IOException ioe ) {
+                // expected
+            }
+        } finally {
+            for ( final File file : cacheDir.listFiles() ) {
+                file.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+
     @Test
     void testGetVersion() {
         final String version = MiniMap2Index.getVersion();